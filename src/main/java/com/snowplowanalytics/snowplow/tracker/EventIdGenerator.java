@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker;
+
+/**
+ * Generates the event ID ("eid") of each event. Event IDs are used to deduplicate events,
+ * so they must be unique, but they don't need to be unpredictable.
+ * <p>
+ * The default generator uses {@link java.util.UUID#randomUUID()}, which draws from a shared
+ * SecureRandom. Under heavy concurrent tracking, one of the faster generators avoids contention on it.
+ */
+@FunctionalInterface
+public interface EventIdGenerator {
+
+    /**
+     * Random (version 4) UUIDs from {@link java.util.UUID#randomUUID()}. This is the default.
+     */
+    EventIdGenerator RANDOM_UUID = Utils::getEventId;
+
+    /**
+     * Random (version 4) UUIDs from each thread's ThreadLocalRandom, so threads don't contend.
+     * The IDs are not cryptographically random, which event deduplication doesn't need.
+     */
+    EventIdGenerator FAST_RANDOM_UUID = new FastRandomEventIdGenerator();
+
+    /**
+     * Time-ordered (version 7) UUIDs: a millisecond Unix timestamp followed by random bits.
+     * IDs generated by the same process increase monotonically, and IDs sort by creation time,
+     * which keeps them close together in database indexes.
+     */
+    EventIdGenerator TIME_ORDERED_UUID = new TimeOrderedEventIdGenerator();
+
+    /**
+     * Returns a new event ID.
+     *
+     * @return the event ID
+     */
+    String generateEventId();
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates version 7 UUIDs, as defined by RFC 9562: a 48 bit millisecond Unix timestamp,
+ * a 12 bit counter, and 62 random bits.
+ * <p>
+ * The counter starts at a random value in the lower half of its range each millisecond, and increases
+ * for each ID generated in the same millisecond, so that IDs are strictly increasing. If it overflows,
+ * it carries into the timestamp, which then runs slightly ahead of the clock; the same happens if
+ * the clock goes backwards.
+ */
+class TimeOrderedEventIdGenerator implements EventIdGenerator {
+
+    private static final int COUNTER_BITS = 12;
+
+    // The timestamp and counter of the last ID
+    private final AtomicLong lastTimestampAndCounter = new AtomicLong(0);
+
+    @Override
+    public String generateEventId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long timestampAndCounter = nextTimestampAndCounter(System.currentTimeMillis(), random);
+
+        long timestamp = timestampAndCounter >>> COUNTER_BITS;
+        long counter = timestampAndCounter & ((1L << COUNTER_BITS) - 1);
+        long mostSigBits = (timestamp << 16) | 0x7000L | counter;
+        long leastSigBits = (random.nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+        return new UUID(mostSigBits, leastSigBits).toString();
+    }
+
+    private long nextTimestampAndCounter(long now, ThreadLocalRandom random) {
+        long start = (now << COUNTER_BITS) | random.nextInt(1 << (COUNTER_BITS - 1));
+        while (true) {
+            long last = lastTimestampAndCounter.get();
+            long next = start > last ? start : last + 1;
+            if (lastTimestampAndCounter.compareAndSet(last, next)) {
+                return next;
+            }
+        }
+    }
+}
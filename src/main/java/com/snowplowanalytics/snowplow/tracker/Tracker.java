@@ -22,6 +22,8 @@ import com.snowplowanalytics.snowplow.tracker.payload.TrackerParameters;
 import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Allows tracking of Events.
@@ -31,6 +33,7 @@ public class Tracker {
     private Emitter emitter;
     private Subject subject;
     private final TrackerParameters parameters;
+    private final EventIdGenerator eventIdGenerator;
 
     /**
      * Creates a new Snowplow Tracker.
@@ -56,6 +59,9 @@ public class Tracker {
         this.parameters = new TrackerParameters(trackerConfig.getAppId(), trackerConfig.getPlatform(), trackerConfig.getNamespace(), Version.TRACKER, trackerConfig.isBase64Encoded());
         this.emitter = emitter;
         this.subject = subject;
+        this.eventIdGenerator = trackerConfig.getEventIdGenerator() != null
+                ? trackerConfig.getEventIdGenerator()
+                : EventIdGenerator.RANDOM_UUID;
 
     }
 
@@ -172,25 +178,98 @@ public class Tracker {
      */
     public List<String> track(Event event) {
         List<String> results = new ArrayList<>();
+        for (TrackerPayload payload : createPayloads(event)) {
+            boolean addedToBuffer = emitter.add(payload);
+            results.add(addedToBuffer ? payload.getEventId() : null);
+        }
+        return results;
+    }
+
+    /**
+     * Tracks an event like {@link #track(Event)}, but if the Emitter event buffer is full,
+     * waits for space instead of losing the event. This slows down the caller to the rate at which
+     * events can be sent.
+     *
+     * @param event the event to track
+     * @return a list of eventIDs (UUIDs), or null for payloads that the Emitter didn't accept
+     * @throws InterruptedException if interrupted while waiting for space in the buffer
+     */
+    public List<String> trackBlocking(Event event) throws InterruptedException {
+        List<String> results = new ArrayList<>();
+        for (TrackerPayload payload : createPayloads(event)) {
+            boolean addedToBuffer = emitter.addBlocking(payload);
+            results.add(addedToBuffer ? payload.getEventId() : null);
+        }
+        return results;
+    }
+
+    /**
+     * Tracks an event like {@link #track(Event)}, but if the Emitter event buffer is full,
+     * waits up to the given time for space before losing the event.
+     * For EcommerceTransactions, the timeout applies to all the payloads together.
+     *
+     * @param event the event to track
+     * @param timeout how long to wait for space in the buffer
+     * @param unit the unit of the timeout
+     * @return a list of eventIDs (UUIDs), or null for payloads that were not added in time
+     * @throws InterruptedException if interrupted while waiting for space in the buffer
+     */
+    public List<String> track(Event event, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        List<String> results = new ArrayList<>();
+        for (TrackerPayload payload : createPayloads(event)) {
+            long remaining = Math.max(0, deadline - System.nanoTime());
+            boolean addedToBuffer = emitter.add(payload, remaining, TimeUnit.NANOSECONDS);
+            results.add(addedToBuffer ? payload.getEventId() : null);
+        }
+        return results;
+    }
+
+    /**
+     * Tracks an event like {@link #track(Event)}, but if the Emitter event buffer is full,
+     * the event is added once there is space. The returned future completes when all the event payloads
+     * are in the buffer, or the Emitter has given up on them.
+     *
+     * @param event the event to track
+     * @return a future list of eventIDs (UUIDs), with null for payloads that the Emitter didn't accept
+     */
+    public CompletableFuture<List<String>> trackAsync(Event event) {
+        List<TrackerPayload> payloads = createPayloads(event);
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (TrackerPayload payload : payloads) {
+            futures.add(emitter.addAsync(payload));
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            List<String> results = new ArrayList<>();
+            for (int i = 0; i < payloads.size(); i++) {
+                results.add(futures.get(i).join() ? payloads.get(i).getEventId() : null);
+            }
+            return results;
+        });
+    }
+
+    /**
+     * Creates the complete TrackerPayloads for an event, ready to be added to the Emitter.
+     *
+     * @param event the event to track
+     * @return the event payloads
+     */
+    private List<TrackerPayload> createPayloads(Event event) {
+        List<TrackerPayload> payloads = new ArrayList<>();
         // a list because Ecommerce events become multiple Payloads
         List<Event> processedEvents = eventTypeSpecificPreProcessing(event);
         for (Event processedEvent : processedEvents) {
             // Event ID (eid) and device_created_timestamp (dtm) are generated now when
-            // the TrackerPayload is created
-            TrackerPayload payload = (TrackerPayload) processedEvent.getPayload();
+            // the TrackerPayload is created, the event ID by the configured generator
+            TrackerPayload payload = (TrackerPayload) processedEvent.getPayload(eventIdGenerator);
 
             addTrackerParameters(payload);
             addContext(processedEvent, payload);
             addSubject(processedEvent, payload);
-
-            boolean addedToBuffer = emitter.add(payload);
-            if (addedToBuffer) {
-                results.add(payload.getEventId());
-            } else {
-                results.add(null);
-            }
+            payloads.add(payload);
         }
-        return results;
+        return payloads;
     }
 
     private List<Event> eventTypeSpecificPreProcessing(Event event) {
@@ -12,7 +12,11 @@
  */
 package com.snowplowanalytics.snowplow.tracker;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.net.URL;
 import java.net.URLEncoder;
@@ -36,6 +40,10 @@ public class Utils {
             .registerModule(new JavaTimeModule())
             .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
 
+    // Buffers larger than this are not kept for reuse, so that a single large event doesn't pin memory
+    private static final int MAX_REUSED_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<ReusableBuffer> base64Buffer = ThreadLocal.withInitial(ReusableBuffer::new);
+
     // Tracker Utils
 
     /**
@@ -132,6 +140,51 @@ public class Utils {
         return jString;
     }
 
+    /**
+     * Processes a Map into UTF-8 encoded JSON, written directly
+     * as bytes without building a String, or returns an empty
+     * JSON object if it fails
+     *
+     * @param map the map to process into JSON
+     * @return the encoded JSON
+     */
+    public static byte[] mapToJSONBytes(Map<String, ?> map) {
+        try {
+            return objectMapper.writeValueAsBytes(map);
+        } catch (JsonProcessingException e) {
+            LOGGER.error("Could not process Map into JSON");
+            LOGGER.debug("Could not process Map {} into JSON: {}", map, e.getMessage());
+            return "{}".getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Processes a Map into Base64 encoded UTF-8 JSON, or returns an empty
+     * String if it fails. This gives the same result as
+     * {@code base64Encode(mapToJSONString(map), UTF_8)}, but the JSON is
+     * Base64 encoded as it is written, into a buffer reused by each thread,
+     * so no intermediate String or byte array is built.
+     *
+     * @param map the map to process into JSON
+     * @return the Base64 encoded JSON
+     */
+    public static String mapToBase64JSONString(Map<String, ?> map) {
+        ReusableBuffer buffer = base64Buffer.get();
+        buffer.reset();
+        try (OutputStream base64 = Base64.getEncoder().wrap(buffer)) {
+            objectMapper.writeValue(base64, map);
+        } catch (IOException e) {
+            LOGGER.error("Could not process Map into JSON String");
+            LOGGER.debug("Could not process Map {} into JSON String: {}", map, e.getMessage());
+            return "";
+        } finally {
+            if (buffer.capacity() > MAX_REUSED_BUFFER_SIZE) {
+                base64Buffer.remove();
+            }
+        }
+        return buffer.toAsciiString();
+    }
+
     /**
      * Builds a QueryString from a Map of Name-Value pairs.
      * 
@@ -176,6 +229,23 @@ public class Utils {
         }
     }
 
+    /**
+     * A ByteArrayOutputStream which can turn its ASCII contents into a String without copying them first.
+     */
+    private static final class ReusableBuffer extends ByteArrayOutputStream {
+        ReusableBuffer() {
+            super(1024);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+
+        String toAsciiString() {
+            return new String(buf, 0, count, StandardCharsets.ISO_8859_1);
+        }
+    }
+
     /**
      * Count the number of bytes a string will occupy when UTF-8 encoded
      *
@@ -12,8 +12,10 @@
  */
 package com.snowplowanalytics.snowplow.tracker.configuration;
 
+import com.snowplowanalytics.snowplow.tracker.emitter.DrainSink;
 import com.snowplowanalytics.snowplow.tracker.emitter.EmitterCallback;
 import com.snowplowanalytics.snowplow.tracker.emitter.EventStore;
+import com.snowplowanalytics.snowplow.tracker.emitter.OverflowPolicy;
 
 import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
@@ -22,11 +24,25 @@ public class EmitterConfiguration {
 
     private int batchSize; // Optional
     private int bufferCapacity; // Optional
+    private long bufferCapacityBytes; // Optional
     private EventStore eventStore;  // Optional
+    private OverflowPolicy overflowPolicy; // Optional
     private Map<Integer, Boolean> customRetryForStatusCodes;  // Optional
     private int threadCount; // Optional
     private ScheduledExecutorService requestExecutorService; // Optional
     private EmitterCallback callback; // Optional
+    private boolean coalescingDispatcher; // Optional
+    private long lingerMs; // Optional
+    private long byteLimitPost; // Optional
+    private boolean adaptiveConcurrency; // Optional
+    private int maxConcurrentRequests; // Optional
+    private boolean virtualThreads; // Optional
+    private int circuitBreakerFailureThreshold; // Optional
+    private long circuitBreakerOpenMs; // Optional
+    private boolean scheduledRetries; // Optional
+    private long drainTimeoutMs; // Optional
+    private DrainSink drainSink; // Optional
+    private long eventTtlMs; // Optional
 
     // Getters and Setters
 
@@ -46,6 +62,15 @@ public class EmitterConfiguration {
         return bufferCapacity;
     }
 
+    /**
+     * Returns the maximum total estimated byte size of the events to buffer in memory,
+     * or 0 if the buffer is only limited by its number of events.
+     * @return maximum buffer size in bytes
+     */
+    public long getBufferCapacityBytes() {
+        return bufferCapacityBytes;
+    }
+
     /**
      * Returns the EventStore used to buffer events.
      * @return EventStore instance
@@ -54,6 +79,14 @@ public class EmitterConfiguration {
         return eventStore;
     }
 
+    /**
+     * Returns the policy choosing which event is dropped when the default event buffer is full.
+     * @return the OverflowPolicy
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
     /**
      * Returns the custom configuration for HTTP status codes. "True" means the
      * @return map of integers (status codes) to booleans (true for retry and false for not retry)
@@ -88,6 +121,118 @@ public class EmitterConfiguration {
         return callback;
     }
 
+    /**
+     * Returns whether event sending is driven by a single coalescing dispatcher,
+     * rather than by scheduling a request for each added event.
+     *
+     * @return true if the coalescing dispatcher is used
+     */
+    public boolean isCoalescingDispatcher() {
+        return coalescingDispatcher;
+    }
+
+    /**
+     * Returns the maximum time in milliseconds that buffered events wait for a full batch
+     * before being sent as a partial batch. Zero means events wait for a full batch.
+     *
+     * @return the linger time in milliseconds
+     */
+    public long getLingerMs() {
+        return lingerMs;
+    }
+
+    /**
+     * Returns the maximum byte size of a POST request body. Zero means there is no limit.
+     *
+     * @return the maximum request body size in bytes
+     */
+    public long getByteLimitPost() {
+        return byteLimitPost;
+    }
+
+    /**
+     * Returns whether the number of concurrent requests adapts to the collector's latency and errors.
+     *
+     * @return true if adaptive concurrency is used
+     */
+    public boolean isAdaptiveConcurrency() {
+        return adaptiveConcurrency;
+    }
+
+    /**
+     * Returns the maximum number of concurrent requests, which also limits the batches waiting for a
+     * scheduled retry. Zero means the thread count is used.
+     *
+     * @return the maximum number of concurrent requests
+     */
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    /**
+     * Returns whether requests are sent on virtual threads, where supported.
+     *
+     * @return true if virtual threads are requested
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Returns the number of consecutive failed requests which opens the circuit breaker.
+     * Zero means the circuit breaker is disabled.
+     *
+     * @return the failure threshold
+     */
+    public int getCircuitBreakerFailureThreshold() {
+        return circuitBreakerFailureThreshold;
+    }
+
+    /**
+     * Returns how long in milliseconds the circuit breaker stays open before a probe request is sent.
+     *
+     * @return the open duration in milliseconds
+     */
+    public long getCircuitBreakerOpenMs() {
+        return circuitBreakerOpenMs;
+    }
+
+    /**
+     * Returns whether each failed batch is retried on its own schedule.
+     *
+     * @return true if scheduled retries are used
+     */
+    public boolean isScheduledRetries() {
+        return scheduledRetries;
+    }
+
+    /**
+     * Returns how long in milliseconds close() keeps sending events. Zero means
+     * close() makes a single attempt to send the buffered events.
+     *
+     * @return the drain timeout in milliseconds
+     */
+    public long getDrainTimeoutMs() {
+        return drainTimeoutMs;
+    }
+
+    /**
+     * Returns the DrainSink which receives the events left unsent by close().
+     *
+     * @return DrainSink object
+     */
+    public DrainSink getDrainSink() {
+        return drainSink;
+    }
+
+    /**
+     * Returns how long after their device created timestamp unsent events expire, or 0 if they never expire.
+     * @return the event time-to-live in milliseconds
+     */
+    public long getEventTtlMs() {
+        return eventTtlMs;
+    }
+
     // Constructor
 
     /**
@@ -101,11 +246,25 @@ public class EmitterConfiguration {
     public EmitterConfiguration() {
         batchSize = 50;
         bufferCapacity = 10000;
+        bufferCapacityBytes = 0;
         eventStore = null;
+        overflowPolicy = OverflowPolicy.DROP_NEWEST;
         customRetryForStatusCodes = null;
         threadCount = 50;
         requestExecutorService = null;
         callback = null;
+        coalescingDispatcher = false;
+        lingerMs = 0;
+        byteLimitPost = 0;
+        adaptiveConcurrency = false;
+        maxConcurrentRequests = 0;
+        virtualThreads = false;
+        circuitBreakerFailureThreshold = 0;
+        circuitBreakerOpenMs = 30000;
+        scheduledRetries = false;
+        drainTimeoutMs = 0;
+        drainSink = null;
+        eventTtlMs = 0;
     }
 
     // Builder methods
@@ -133,6 +292,20 @@ public class EmitterConfiguration {
         return this;
     }
 
+    /**
+     * Limits the default InMemoryEventStore event buffer by the total size of its events, as well as by
+     * their number (default is 0: no byte limit). The size of an event is estimated as it is built,
+     * from the length of its keys and values, so this does not serialize events as they are added.
+     * When the buffer is full, the overflow policy chooses which events are lost.
+     *
+     * @param bufferCapacityBytes The maximum total estimated byte size of the buffered events
+     * @return itself
+     */
+    public EmitterConfiguration bufferCapacityBytes(long bufferCapacityBytes) {
+        this.bufferCapacityBytes = bufferCapacityBytes;
+        return this;
+    }
+
     /**
      * The default EventStore is InMemoryEventStore.
      *
@@ -144,6 +317,22 @@ public class EmitterConfiguration {
         return this;
     }
 
+    /**
+     * Sets which event is dropped when the default InMemoryEventStore buffer is full.
+     * The default is {@link OverflowPolicy#DROP_NEWEST}: new events are lost, and newer events are
+     * deleted to make space for events to retry. Dropped events are reported to the EmitterCallback
+     * as TRACKER_STORAGE_FULL failures.
+     * <p>
+     * This is not used with a custom `eventStore`: pass the policy to its constructor instead.
+     *
+     * @param overflowPolicy the OverflowPolicy to use
+     * @return itself
+     */
+    public EmitterConfiguration overflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
     /**
      * Set custom retry rules for HTTP status codes received in emit responses from the Collector.
      * By default, retry will not occur for status codes 400, 401, 403, 410 or 422. This can be overridden here.
@@ -191,4 +380,201 @@ public class EmitterConfiguration {
         this.callback = callback;
         return this;
     }
+
+    /**
+     * Use a single coalescing dispatcher for sending events (default is false).
+     * <p>
+     * By default, every event added to a full-enough buffer schedules its own request task.
+     * At high event rates most of these tasks find no batch to send. With the coalescing dispatcher,
+     * adding an event only wakes up a single drain loop, which cuts as many full batches as are
+     * available and hands them to at most `maxConcurrentRequests` concurrent requests.
+     *
+     * @param coalescingDispatcher whether to use the coalescing dispatcher
+     * @return itself
+     */
+    public EmitterConfiguration coalescingDispatcher(boolean coalescingDispatcher) {
+        this.coalescingDispatcher = coalescingDispatcher;
+        return this;
+    }
+
+    /**
+     * Sets the maximum age of a partial batch (default is 0, no maximum).
+     * <p>
+     * Events are normally only sent once `batchSize` events are buffered. With a linger time,
+     * a partial batch is sent once the oldest buffered event has waited this long,
+     * capping delivery latency for low-traffic applications.
+     *
+     * @param lingerMs the maximum time in milliseconds to wait for a full batch
+     * @return itself
+     */
+    public EmitterConfiguration lingerMs(long lingerMs) {
+        this.lingerMs = lingerMs;
+        return this;
+    }
+
+    /**
+     * Sets the maximum byte size of a POST request body (default is 0, no limit).
+     * <p>
+     * Batches are then cut by size as well as by count: fewer than `batchSize` events are sent in a request
+     * if they would otherwise exceed this limit. Event sizes are estimated as events are built,
+     * so payloads are not serialized to check their size. A single event larger than the limit
+     * is sent on its own.
+     *
+     * @param byteLimitPost the maximum request body size in bytes
+     * @return itself
+     */
+    public EmitterConfiguration byteLimitPost(long byteLimitPost) {
+        this.byteLimitPost = byteLimitPost;
+        return this;
+    }
+
+    /**
+     * Adapt the number of concurrent requests to the collector's health (default is false).
+     * <p>
+     * Instead of always allowing `maxConcurrentRequests` requests in flight, the limit starts lower and grows by one
+     * while request latency stays close to its average. It is reduced by 10% when a request fails
+     * or its latency spikes. The limit stays between 1 and `maxConcurrentRequests`.
+     * The limit is enforced by the coalescing dispatcher, which is always used with this option.
+     *
+     * @param adaptiveConcurrency whether to adapt the number of concurrent requests
+     * @return itself
+     */
+    public EmitterConfiguration adaptiveConcurrency(boolean adaptiveConcurrency) {
+        this.adaptiveConcurrency = adaptiveConcurrency;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of concurrent requests (default is 0, meaning the same as `threadCount`).
+     * <p>
+     * With the coalescing dispatcher, this is the number of requests in flight, or the upper bound of the
+     * adaptive limit. Requests are sent with
+     * {@link com.snowplowanalytics.snowplow.tracker.http.HttpClientAdapter#postAsync}, so with an asynchronous
+     * HttpClientAdapter a request in flight doesn't hold a thread, and this can be much higher than `threadCount`.
+     * With `scheduledRetries`, it also limits the batches waiting for their retry at once.
+     * <p>
+     * When no HttpClientAdapter is given, the OkHttp Dispatcher of the OkHttpClientAdapter created by the emitter
+     * allows this many concurrent requests. If a given OkHttpClientAdapter's Dispatcher allows fewer,
+     * requests are sent blocking instead of with postAsync, so that they don't wait in the Dispatcher queue.
+     *
+     * @param maxConcurrentRequests the maximum number of concurrent requests
+     * @return itself
+     */
+    public EmitterConfiguration maxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        return this;
+    }
+
+    /**
+     * Send requests on virtual threads (default is false).
+     * <p>
+     * Requires Java 21 or later; on older JVMs a warning is logged and platform threads are used.
+     * Each request runs on its own virtual thread, so blocking HTTP requests don't hold an OS thread each,
+     * and a single platform thread runs the emitter's timers. `threadCount` then no longer limits
+     * the requests in flight; with the coalescing dispatcher, `maxConcurrentRequests` does.
+     * Virtual threads are daemon threads: call `close()` on the Emitter before the application exits,
+     * to send the remaining events.
+     * Not used if a `requestExecutorService` is provided.
+     *
+     * @param virtualThreads whether to use virtual threads
+     * @return itself
+     */
+    public EmitterConfiguration virtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+
+    /**
+     * Enable the circuit breaker, which opens after this many consecutive failed requests
+     * (default is 0, disabled).
+     * <p>
+     * During a collector outage, every request attempt takes a batch from the EventStore only to return it.
+     * While the circuit breaker is open, no batches are taken and no requests are sent. After
+     * `circuitBreakerOpenMs`, a single probe request is sent: if it succeeds, sending resumes,
+     * otherwise the circuit breaker opens again. State changes are reported to
+     * {@link com.snowplowanalytics.snowplow.tracker.emitter.EmitterCallback#onCircuitBreakerStateChange}.
+     *
+     * @param circuitBreakerFailureThreshold the number of consecutive failures which opens the circuit breaker
+     * @return itself
+     */
+    public EmitterConfiguration circuitBreakerFailureThreshold(int circuitBreakerFailureThreshold) {
+        this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+        return this;
+    }
+
+    /**
+     * The default time the circuit breaker stays open before sending a probe request is 30 seconds.
+     *
+     * @param circuitBreakerOpenMs the open duration in milliseconds
+     * @return itself
+     */
+    public EmitterConfiguration circuitBreakerOpenMs(long circuitBreakerOpenMs) {
+        this.circuitBreakerOpenMs = circuitBreakerOpenMs;
+        return this;
+    }
+
+    /**
+     * Retry each failed batch on its own schedule (default is false).
+     * <p>
+     * By default, the events of a failed request are returned to the buffer, and are only sent again
+     * once new events trigger another request, after a backoff time shared by all requests.
+     * With scheduled retries, a failed batch is kept aside and sent again by a timer,
+     * even if no new events are tracked. Each batch has its own attempt count and exponential backoff,
+     * so a failing batch doesn't delay the sending of newer events.
+     * At most `maxConcurrentRequests` batches wait for retry at once; the events of further
+     * failed requests are returned to the buffer as usual.
+     *
+     * @param scheduledRetries whether to retry failed batches on their own schedule
+     * @return itself
+     */
+    public EmitterConfiguration scheduledRetries(boolean scheduledRetries) {
+        this.scheduledRetries = scheduledRetries;
+        return this;
+    }
+
+    /**
+     * Sets how long close() keeps sending events (default is 0, a single attempt).
+     * <p>
+     * By default, close() sends the buffered events in one request and waits up to 5 seconds for it
+     * and for the requests already in flight.
+     * With a drain timeout, close() keeps sending batches in parallel until the buffer is empty
+     * or the timeout expires, backing off after failed requests. The remaining events are then
+     * handed to the `drainSink`, if there is one.
+     *
+     * @param drainTimeoutMs the drain timeout in milliseconds
+     * @return itself
+     */
+    public EmitterConfiguration drainTimeoutMs(long drainTimeoutMs) {
+        this.drainTimeoutMs = drainTimeoutMs;
+        return this;
+    }
+
+    /**
+     * Sets a DrainSink to receive the events left unsent when the Emitter is closed,
+     * for example to write them to a file (default is null: they stay in the EventStore).
+     *
+     * @param drainSink the DrainSink to use
+     * @return itself
+     */
+    public EmitterConfiguration drainSink(DrainSink drainSink) {
+        this.drainSink = drainSink;
+        return this;
+    }
+
+    /**
+     * Sets a time-to-live for buffered events, measured from their device created timestamp
+     * (default is 0: events never expire). Expired events are deleted from the EventStore instead of being sent,
+     * and reported to the EmitterCallback as EVENT_EXPIRED failures.
+     * The default InMemoryEventStore also skips expired events when taking a batch. A custom InMemoryEventStore
+     * with a time-to-live must be given the same one as this, otherwise the emitter rejects it.
+     * Every EventStore in this library implements {@link EventStore#removeExpiredEvents(long)}, and the decorators
+     * forward it to the store they wrap; other custom EventStores only expire events if they implement it.
+     *
+     * @param eventTtlMs the event time-to-live in milliseconds
+     * @return itself
+     */
+    public EmitterConfiguration eventTtlMs(long eventTtlMs) {
+        this.eventTtlMs = eventTtlMs;
+        return this;
+    }
 }
@@ -19,6 +19,7 @@ public class NetworkConfiguration {
 
     private HttpClientAdapter httpClientAdapter = null; // Optional
     private String collectorUrl = null; // Required if not specifying a httpClientAdapter
+    private long gzipThreshold = -1; // Optional
 
     // Getters and Setters
 
@@ -38,6 +39,15 @@ public class NetworkConfiguration {
         return collectorUrl;
     }
 
+    /**
+     * Returns the minimum size in bytes of the POST bodies to compress with gzip,
+     * or a negative value if they are not compressed.
+     * @return gzip threshold
+     */
+    public long getGzipThreshold() {
+        return gzipThreshold;
+    }
+
     // Constructors
 
     /**
@@ -84,4 +94,21 @@ public class NetworkConfiguration {
         this.collectorUrl = collectorUrl;
         return this;
     }
+
+    /**
+     * Compresses POST bodies of at least this many bytes with gzip (default is -1: no compression).
+     * Batches of events are highly repetitive JSON, so compression greatly reduces the bytes sent.
+     * The collector must accept requests with "Content-Encoding: gzip".
+     * This only applies to the default OkHttpClientAdapter, created from the collector URL. A custom
+     * HttpClientAdapter is not changed by the emitter: set the threshold on the adapter itself (see
+     * {@link com.snowplowanalytics.snowplow.tracker.http.AbstractHttpClientAdapter#setGzipThreshold(long)}).
+     * The emitter rejects a configuration with both a custom HttpClientAdapter and a gzip threshold.
+     *
+     * @param gzipThreshold the minimum body size to compress, or a negative value for no compression
+     * @return itself
+     */
+    public NetworkConfiguration gzipThreshold(long gzipThreshold) {
+        this.gzipThreshold = gzipThreshold;
+        return this;
+    }
 }
@@ -13,6 +13,7 @@
 package com.snowplowanalytics.snowplow.tracker.configuration;
 
 import com.snowplowanalytics.snowplow.tracker.DevicePlatform;
+import com.snowplowanalytics.snowplow.tracker.EventIdGenerator;
 
 
 public class TrackerConfiguration {
@@ -20,6 +21,7 @@ public class TrackerConfiguration {
     private final String appId; // Required
     private DevicePlatform platform; // Optional
     private boolean base64Encoded; // Optional
+    private EventIdGenerator eventIdGenerator; // Optional
 
     // Getters and Setters
 
@@ -55,6 +57,14 @@ public class TrackerConfiguration {
         return base64Encoded;
     }
 
+    /**
+     * Returns the EventIdGenerator which creates the event ID of each event.
+     * @return EventIdGenerator object
+     */
+    public EventIdGenerator getEventIdGenerator() {
+        return eventIdGenerator;
+    }
+
     // Constructor
 
     /**
@@ -69,6 +79,7 @@ public class TrackerConfiguration {
         this.appId = appId;
         this.platform = DevicePlatform.ServerSideApp;
         this.base64Encoded = true;
+        this.eventIdGenerator = EventIdGenerator.RANDOM_UUID;
     }
 
     // Builder methods
@@ -94,4 +105,17 @@ public class TrackerConfiguration {
         this.base64Encoded = base64Encoded;
         return this;
     }
+
+    /**
+     * How event IDs are generated (default is EventIdGenerator.RANDOM_UUID, from UUID.randomUUID()).
+     * EventIdGenerator.FAST_RANDOM_UUID avoids contention when many threads track events, and
+     * EventIdGenerator.TIME_ORDERED_UUID generates UUIDv7s, which sort by creation time.
+     *
+     * @param eventIdGenerator the EventIdGenerator to use
+     * @return itself
+     */
+    public TrackerConfiguration eventIdGenerator(EventIdGenerator eventIdGenerator) {
+        this.eventIdGenerator = eventIdGenerator;
+        return this;
+    }
 }
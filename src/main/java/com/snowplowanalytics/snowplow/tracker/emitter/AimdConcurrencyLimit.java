@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.emitter;
+
+/**
+ * An additive-increase/multiplicative-decrease (AIMD) limit on the number of concurrent requests.
+ *
+ * The limit grows by one for each successful request sent while at least half the limit is in use,
+ * as long as the request latency stays close to the long-term average latency.
+ * It is reduced multiplicatively when a request fails, or when its latency is much higher than average,
+ * which is the first sign of an overloaded collector.
+ */
+class AimdConcurrencyLimit {
+
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double LATENCY_SMOOTHING = 0.05;
+    // Ignore jitter on very fast requests
+    private static final long MIN_LATENCY_INCREASE_MILLIS = 10;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private int limit;
+    private double averageLatency = -1;
+
+    /**
+     * Creates an AimdConcurrencyLimit.
+     *
+     * @param initialLimit the starting limit
+     * @param minLimit the lowest the limit can be reduced to
+     * @param maxLimit the highest the limit can grow to
+     */
+    AimdConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit <= 0 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("limits must satisfy 0 < minLimit <= maxLimit");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(initialLimit, maxLimit));
+    }
+
+    /**
+     * Returns the current maximum number of concurrent requests.
+     *
+     * @return the limit
+     */
+    synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Records a successful request.
+     *
+     * @param latencyMillis how long the request took
+     * @param inFlight the number of requests in flight when this one was sent, including itself
+     */
+    synchronized void onSuccess(long latencyMillis, int inFlight) {
+        if (averageLatency < 0) {
+            averageLatency = latencyMillis;
+            return;
+        }
+
+        boolean latencySpike = latencyMillis > averageLatency * LATENCY_TOLERANCE
+                && latencyMillis - averageLatency > MIN_LATENCY_INCREASE_MILLIS;
+
+        // The average still follows spikes slowly, so that a lasting change in latency becomes the new normal
+        averageLatency += (latencyMillis - averageLatency) * LATENCY_SMOOTHING;
+
+        if (latencySpike) {
+            backOff();
+        } else if (inFlight * 2 >= limit) {
+            // Only grow if the current limit is actually being used
+            limit = Math.min(limit + 1, maxLimit);
+        }
+    }
+
+    /**
+     * Records a failed request, whether from a connection failure or a collector error.
+     */
+    synchronized void onFailure() {
+        backOff();
+    }
+
+    private void backOff() {
+        limit = Math.max(minLimit, (int) (limit * BACKOFF_RATIO));
+    }
+}
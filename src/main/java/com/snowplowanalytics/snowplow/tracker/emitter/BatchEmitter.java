@@ -14,19 +14,30 @@ package com.snowplowanalytics.snowplow.tracker.emitter;
 
 import java.io.Closeable;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
 
 import com.snowplowanalytics.snowplow.tracker.configuration.EmitterConfiguration;
 import com.snowplowanalytics.snowplow.tracker.configuration.NetworkConfiguration;
 import com.snowplowanalytics.snowplow.tracker.constants.Constants;
-import com.snowplowanalytics.snowplow.tracker.constants.Parameter;
 import com.snowplowanalytics.snowplow.tracker.http.HttpClientAdapter;
 import com.snowplowanalytics.snowplow.tracker.http.OkHttpClientAdapter;
-import com.snowplowanalytics.snowplow.tracker.payload.SelfDescribingJson;
+import com.snowplowanalytics.snowplow.tracker.payload.EncodedBatch;
 import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
 
 import org.slf4j.Logger;
@@ -44,22 +55,79 @@ import org.slf4j.LoggerFactory;
  * event sending attempts. This increases exponentially until a request succeeds, when it is reset to 0.
  * Retry will continue indefinitely.
  *
- * If the buffer becomes full due to network problems, newer events will be lost.
+ * If the buffer becomes full due to network problems, newer events will be lost. Alternatively, events can be added
+ * with {@link #addBlocking(TrackerPayload)}, {@link #add(TrackerPayload, long, TimeUnit)} or
+ * {@link #addAsync(TrackerPayload)}, which wait for space in the buffer instead. This throttles producers
+ * to the rate at which events can be sent.
+ *
+ * Optionally, a single coalescing dispatcher can be used instead of scheduling one request task per added event.
+ * Adding an event then only wakes the dispatcher, which cuts as many full batches as the buffer holds and
+ * hands them to a bounded number of concurrent requests. That bound can be fixed, or adapt to the
+ * collector's latency and errors (additive increase, multiplicative decrease).
+ *
+ * If a linger time is configured, a partial batch is sent once the oldest buffered event has waited
+ * that long for a full batch to build up.
  */
 public class BatchEmitter implements Emitter, Closeable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(BatchEmitter.class);
-    private boolean isClosing = false;
+    // The {"schema":"...","data":[]} wrapper around the events in a POST request
+    private static final int POST_WRAPPER_BYTES = Constants.SCHEMA_PAYLOAD_DATA.length() + 23;
+    // The separating comma and the "stm" timestamp added to each event when sending
+    private static final int POST_EVENT_OVERHEAD_BYTES = 23;
+    // Expired events are deleted at least this often, so that they do not take up space for long
+    private static final long MAX_EXPIRY_INTERVAL_MS = 60000;
+    private volatile boolean isClosing = false;
     private final AtomicInteger retryDelay;
     private final int maximumRetryDelay = 600000; // ms (10 min)
     private int batchSize;
 
     private final HttpClientAdapter httpClientAdapter;
     private final ScheduledExecutorService executor;
+    private final ExecutorService requestExecutor;
     private final EventStore eventStore;
     private final Map<Integer, Boolean> customRetryForStatusCodes;
     private final EmitterCallback callback;
 
+    private final boolean coalescingDispatcher;
+    private final int maxRequestsInFlight;
+    private final boolean asyncPosts;
+    private final AtomicBoolean dispatchScheduled = new AtomicBoolean(false);
+    private final AtomicInteger requestsInFlight = new AtomicInteger(0);
+    private final Map<Long, BatchPayload> requestsAwaitingResult = new ConcurrentHashMap<>();
+    private final AtomicInteger resultsBeingProcessed = new AtomicInteger(0);
+    // Notified each time a request result has been processed or a request slot freed, for close() to wait on
+    private final Object requestResults = new Object();
+    private volatile long requestResultCount = 0;
+    private final AimdConcurrencyLimit concurrencyLimit;
+
+    private final long lingerMs;
+    private final AtomicBoolean lingerScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean lingerExpired = new AtomicBoolean(false);
+
+    private final long byteLimitPost;
+
+    private final CircuitBreaker circuitBreaker;
+
+    private final boolean scheduledRetries;
+    // Failed batches waiting for their retry, which keep their events out of the EventStore buffer
+    private final ConcurrentHashMap<Long, RetryingBatch> retryingBatches = new ConcurrentHashMap<>();
+    // Attempts so far for each batch being retried, including the retry currently being sent
+    private final ConcurrentHashMap<Long, Integer> batchRetryAttempts = new ConcurrentHashMap<>();
+
+    private final long drainTimeoutMs;
+    private final DrainSink drainSink;
+    // Lifetime counts, used to report what happened during close()
+    private final AtomicLong sentEventCount = new AtomicLong(0);
+    private final AtomicLong droppedEventCount = new AtomicLong(0);
+    private final AtomicLong failedRequestCount = new AtomicLong(0);
+
+    private final long eventTtlMs;
+    private final ScheduledFuture<?> expiryTask;
+
+    // Events waiting for space in the buffer, in the order they were added
+    private final ConcurrentLinkedQueue<PendingAdd> pendingAdds = new ConcurrentLinkedQueue<>();
+
     /**
      * Creates a BatchEmitter object from configuration objects.
      *
@@ -77,14 +145,61 @@ public class BatchEmitter implements Emitter, Closeable {
         if (emitterConfig.getBufferCapacity() <= 0) {
             throw new IllegalArgumentException("bufferCapacity must be greater than 0");
         }
+        if (emitterConfig.getBufferCapacityBytes() < 0) {
+            throw new IllegalArgumentException("bufferCapacityBytes cannot be negative");
+        }
+        if (emitterConfig.getLingerMs() < 0) {
+            throw new IllegalArgumentException("lingerMs cannot be negative");
+        }
+        if (emitterConfig.getByteLimitPost() < 0) {
+            throw new IllegalArgumentException("byteLimitPost cannot be negative");
+        }
+        if (emitterConfig.getMaxConcurrentRequests() < 0) {
+            throw new IllegalArgumentException("maxConcurrentRequests cannot be negative");
+        }
+        if (emitterConfig.getCircuitBreakerFailureThreshold() < 0) {
+            throw new IllegalArgumentException("circuitBreakerFailureThreshold cannot be negative");
+        }
+        if (emitterConfig.getCircuitBreakerOpenMs() < 0) {
+            throw new IllegalArgumentException("circuitBreakerOpenMs cannot be negative");
+        }
+        if (emitterConfig.getDrainTimeoutMs() < 0) {
+            throw new IllegalArgumentException("drainTimeoutMs cannot be negative");
+        }
+        if (emitterConfig.getEventTtlMs() < 0) {
+            throw new IllegalArgumentException("eventTtlMs cannot be negative");
+        }
+        // The emitter collects the events the store expires, so they must expire after the same time
+        if (emitterConfig.getEventStore() instanceof InMemoryEventStore) {
+            long storeEventTtlMs = ((InMemoryEventStore) emitterConfig.getEventStore()).getEventTtlMs();
+            if (storeEventTtlMs > 0 && storeEventTtlMs != emitterConfig.getEventTtlMs()) {
+                throw new IllegalArgumentException("eventTtlMs must match the eventTtlMs of the InMemoryEventStore");
+            }
+        }
+
+        coalescingDispatcher = emitterConfig.isCoalescingDispatcher() || emitterConfig.isAdaptiveConcurrency();
+        maxRequestsInFlight = emitterConfig.getMaxConcurrentRequests() > 0
+                ? emitterConfig.getMaxConcurrentRequests()
+                : emitterConfig.getThreadCount();
 
         if (networkConfig.getHttpClientAdapter() != null) {
+            // The adapter may be shared, so the emitter doesn't change its settings
+            if (networkConfig.getGzipThreshold() >= 0) {
+                throw new IllegalArgumentException("gzipThreshold must be set on the httpClientAdapter instead");
+            }
             httpClientAdapter = networkConfig.getHttpClientAdapter();
         } else {
             Objects.requireNonNull(networkConfig.getCollectorUrl(), "Collector url must be specified if not using a httpClientAdapter");
 
-            httpClientAdapter = new OkHttpClientAdapter(networkConfig.getCollectorUrl());
+            // Sized so that no request waits in the OkHttp Dispatcher queue
+            OkHttpClientAdapter okHttpClientAdapter = new OkHttpClientAdapter(networkConfig.getCollectorUrl(), maxRequestsInFlight);
+            okHttpClientAdapter.setGzipThreshold(networkConfig.getGzipThreshold());
+            httpClientAdapter = okHttpClientAdapter;
         }
+        // Requests queued by the OkHttp Dispatcher would count their waiting time as latency,
+        // so a Dispatcher smaller than the request limit gets blocking requests instead
+        asyncPosts = !(httpClientAdapter instanceof OkHttpClientAdapter)
+                || ((OkHttpClientAdapter) httpClientAdapter).getMaxConcurrentAsyncRequests() >= maxRequestsInFlight;
 
         retryDelay = new AtomicInteger(0);
         batchSize = emitterConfig.getBatchSize();
@@ -103,7 +218,11 @@ public class BatchEmitter implements Emitter, Closeable {
         if (emitterConfig.getEventStore() != null) {
             eventStore = emitterConfig.getEventStore();
         } else {
-            eventStore = new InMemoryEventStore(emitterConfig.getBufferCapacity());
+            eventStore = new InMemoryEventStore(
+                    emitterConfig.getBufferCapacity(),
+                    emitterConfig.getBufferCapacityBytes() > 0 ? emitterConfig.getBufferCapacityBytes() : Long.MAX_VALUE,
+                    emitterConfig.getOverflowPolicy(),
+                    emitterConfig.getEventTtlMs());
         }
 
         if (emitterConfig.getCustomRetryForStatusCodes() != null) {
@@ -112,11 +231,45 @@ public class BatchEmitter implements Emitter, Closeable {
             customRetryForStatusCodes = new HashMap<>();
         }
 
+        ExecutorService virtualThreadExecutor = null;
         if (emitterConfig.getRequestExecutorService() != null) {
             executor = emitterConfig.getRequestExecutorService();
+        } else if (emitterConfig.isVirtualThreads()
+                && (virtualThreadExecutor = EmitterThreadFactory.createVirtualThreadPerTaskExecutor()) != null) {
+            // Pooling virtual threads would cap the requests at the thread count,
+            // so each request gets its own, and a platform thread runs the timers
+            executor = Executors.newScheduledThreadPool(1, new EmitterThreadFactory());
         } else {
             executor = Executors.newScheduledThreadPool(emitterConfig.getThreadCount(), new EmitterThreadFactory());
         }
+        requestExecutor = virtualThreadExecutor != null ? virtualThreadExecutor : executor;
+
+        if (emitterConfig.isAdaptiveConcurrency()) {
+            concurrencyLimit = new AimdConcurrencyLimit(maxRequestsInFlight / 10, 1, maxRequestsInFlight);
+        } else {
+            concurrencyLimit = null;
+        }
+        lingerMs = emitterConfig.getLingerMs();
+        byteLimitPost = emitterConfig.getByteLimitPost();
+        if (emitterConfig.getCircuitBreakerFailureThreshold() > 0) {
+            circuitBreaker = new CircuitBreaker(
+                    emitterConfig.getCircuitBreakerFailureThreshold(),
+                    emitterConfig.getCircuitBreakerOpenMs(),
+                    this::onCircuitBreakerStateChange);
+        } else {
+            circuitBreaker = null;
+        }
+        scheduledRetries = emitterConfig.isScheduledRetries();
+        drainTimeoutMs = emitterConfig.getDrainTimeoutMs();
+        drainSink = emitterConfig.getDrainSink();
+        eventTtlMs = emitterConfig.getEventTtlMs();
+        if (eventTtlMs > 0) {
+            long expiryIntervalMs = Math.min(eventTtlMs, MAX_EXPIRY_INTERVAL_MS);
+            expiryTask = executor.scheduleWithFixedDelay(
+                    this::removeExpiredEvents, expiryIntervalMs, expiryIntervalMs, TimeUnit.MILLISECONDS);
+        } else {
+            expiryTask = null;
+        }
     }
 
     /**
@@ -130,24 +283,19 @@ public class BatchEmitter implements Emitter, Closeable {
 
     /**
      * Adds a TrackerPayload to the EventStore buffer.
-     * If the buffer is full, the payload will be lost.
+     * If the buffer is full, the payload will be lost, unless the overflow policy deletes a buffered payload instead.
      *
      * <p>
-     * <b>Implementation note: </b><em>As a side effect it triggers an Emitter thread to emit a batch of events.</em>
+     * <b>Implementation note: </b><em>As a side effect it triggers an Emitter thread to emit a batch of events.
+     * When using the coalescing dispatcher, it only wakes the dispatcher if it is not already scheduled.</em>
      *
      * @param payload a TrackerPayload
      * @return whether the payload has been successfully added to the buffer.
      */
     @Override
     public boolean add(final TrackerPayload payload) {
-        boolean result = eventStore.addEvent(payload);
+        boolean result = addToBuffer(payload, true);
 
-        if (!isClosing) {
-            if (eventStore.size() >= batchSize) {
-                executor.schedule(getPostRequestRunnable(batchSize), retryDelay.get(), TimeUnit.MILLISECONDS);
-            }
-        }
-        
         if (!result) {
             LOGGER.error("Unable to add payload to emitter, emitter buffer is full");
             callback.onFailure(FailureType.TRACKER_STORAGE_FULL, false, Collections.singletonList(payload));
@@ -156,12 +304,219 @@ public class BatchEmitter implements Emitter, Closeable {
         return result;
     }
 
+    /**
+     * Adds a TrackerPayload to the EventStore buffer, waiting for space if the buffer is full.
+     * Payloads waiting for space are added in order, as events are taken from the buffer for sending.
+     *
+     * @param payload a TrackerPayload
+     * @return whether the payload has been added to the buffer, false if the emitter was closed while waiting
+     * @throws InterruptedException if interrupted while waiting; the payload is not added
+     */
+    @Override
+    public boolean addBlocking(final TrackerPayload payload) throws InterruptedException {
+        CompletableFuture<Boolean> future = addAsync(payload);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            cancelPendingAdd(future);
+            throw e;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Adds a TrackerPayload to the EventStore buffer, waiting up to the given time for space if the buffer is full.
+     * If there is still no space, the payload is lost, as with {@link #add(TrackerPayload)}.
+     *
+     * @param payload a TrackerPayload
+     * @param timeout how long to wait for space
+     * @param unit the unit of the timeout
+     * @return whether the payload has been added to the buffer
+     * @throws InterruptedException if interrupted while waiting; the payload is not added
+     */
+    @Override
+    public boolean add(final TrackerPayload payload, long timeout, TimeUnit unit) throws InterruptedException {
+        CompletableFuture<Boolean> future = addAsync(payload);
+        try {
+            return future.get(timeout, unit);
+        } catch (InterruptedException e) {
+            cancelPendingAdd(future);
+            throw e;
+        } catch (TimeoutException e) {
+            boolean result = cancelPendingAdd(future);
+            if (!result) {
+                LOGGER.error("Unable to add payload to emitter, emitter buffer is still full after {} {}", timeout, unit);
+                callback.onFailure(FailureType.TRACKER_STORAGE_FULL, false, Collections.singletonList(payload));
+            }
+            return result;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Adds a TrackerPayload to the EventStore buffer as soon as there is space.
+     * The returned future completes with true once the payload is in the buffer,
+     * or with false if the emitter is closed first.
+     *
+     * @param payload a TrackerPayload
+     * @return a future completed with whether the payload has been added to the buffer
+     */
+    @Override
+    public CompletableFuture<Boolean> addAsync(final TrackerPayload payload) {
+        PendingAdd pendingAdd = new PendingAdd(payload);
+
+        // Payloads already waiting go first
+        if (pendingAdds.isEmpty() && addToBuffer(payload, false)) {
+            pendingAdd.future.complete(true);
+            return pendingAdd.future;
+        }
+        if (isClosing) {
+            LOGGER.error("Unable to add payload to emitter, emitter buffer is full and the emitter is closing");
+            callback.onFailure(FailureType.TRACKER_STORAGE_FULL, false, Collections.singletonList(payload));
+            pendingAdd.future.complete(false);
+            return pendingAdd.future;
+        }
+
+        pendingAdds.add(pendingAdd);
+        if (isClosing) {
+            // close() may have already given up on the waiting payloads, without this one
+            boolean givenUp;
+            synchronized (pendingAdds) {
+                givenUp = pendingAdds.remove(pendingAdd);
+            }
+            if (givenUp) {
+                pendingAdd.future.complete(false);
+                callback.onFailure(FailureType.TRACKER_STORAGE_FULL, false, Collections.singletonList(payload));
+            }
+            return pendingAdd.future;
+        }
+        // Space may have become available in the meantime
+        addPendingPayloads();
+        if (!pendingAdd.future.isDone() && eventStore.size() < batchSize) {
+            // The buffer is full but holds less than a batch, so nothing else will send it
+            flushBuffer();
+        }
+        return pendingAdd.future;
+    }
+
+    /**
+     * Adds the payloads waiting for space to the buffer, in order, until the buffer is full again.
+     */
+    private void addPendingPayloads() {
+        List<PendingAdd> addedPayloads = new ArrayList<>();
+        boolean attempted = false;
+        synchronized (pendingAdds) {
+            PendingAdd pendingAdd;
+            while ((pendingAdd = pendingAdds.peek()) != null) {
+                if (!pendingAdd.future.isDone()) {
+                    attempted = true;
+                    if (!eventStore.addEvent(pendingAdd.payload)) {
+                        break;
+                    }
+                    addedPayloads.add(pendingAdd);
+                }
+                pendingAdds.poll();
+            }
+        }
+
+        // Scheduling and completing a future run the EmitterCallback and the caller's dependent actions,
+        // which must not hold the lock
+        if (attempted) {
+            scheduleSending(addedPayloads.isEmpty() ? null : addedPayloads.get(0).payload);
+        }
+        for (PendingAdd pendingAdd : addedPayloads) {
+            pendingAdd.future.complete(true);
+        }
+    }
+
+    /**
+     * Adds the payloads waiting for space, after space was made in the buffer.
+     */
+    private void wakePendingAdds() {
+        if (!pendingAdds.isEmpty()) {
+            addPendingPayloads();
+        }
+    }
+
+    /**
+     * Stops waiting for space for a payload, unless it has already been added to the buffer.
+     *
+     * @return whether the payload was added to the buffer
+     */
+    private boolean cancelPendingAdd(CompletableFuture<Boolean> future) {
+        // Synchronized with addPendingPayloads, so the payload can't be added once it is removed
+        boolean removed;
+        synchronized (pendingAdds) {
+            removed = pendingAdds.removeIf(pendingAdd -> pendingAdd.future == future);
+        }
+        if (removed) {
+            future.complete(false);
+            return false;
+        }
+        // Already added, or given up by close(): the future is completed as soon as the lock is released
+        return future.join();
+    }
+
+    /**
+     * Adds a TrackerPayload to the EventStore buffer, and triggers sending if needed.
+     * Adds which wait for space don't apply the overflow policy, so they never delete buffered events.
+     *
+     * @param payload a TrackerPayload
+     * @param applyOverflowPolicy whether the overflow policy may delete buffered events to make space
+     * @return whether the payload has been added to the buffer
+     */
+    private boolean addToBuffer(final TrackerPayload payload, boolean applyOverflowPolicy) {
+        List<TrackerPayload> droppedEvents;
+        if (applyOverflowPolicy) {
+            droppedEvents = eventStore.addEventOrDrop(payload);
+        } else {
+            droppedEvents = eventStore.addEvent(payload) ? Collections.emptyList() : Collections.singletonList(payload);
+        }
+        boolean result = !droppedEvents.contains(payload);
+
+        if (result && !droppedEvents.isEmpty()) {
+            // The overflow policy deleted buffered events to make space
+            droppedEventCount.addAndGet(droppedEvents.size());
+            callback.onFailure(FailureType.TRACKER_STORAGE_FULL, false, droppedEvents);
+        }
+        if (droppedEvents.size() > 1) {
+            // The overflow policy deleted more events than it added
+            wakePendingAdds();
+        }
+
+        scheduleSending(result ? payload : null);
+        return result;
+    }
+
+    /**
+     * Triggers sending if the buffer holds a full batch, and starts the linger time of a newly buffered payload.
+     *
+     * @param bufferedPayload the payload just added to the buffer, or null if none was added
+     */
+    private void scheduleSending(TrackerPayload bufferedPayload) {
+        if (isClosing) {
+            return;
+        }
+        if (eventStore.size() >= batchSize) {
+            if (coalescingDispatcher) {
+                scheduleDispatch();
+            } else {
+                scheduleRequest(getPostRequestRunnable(batchSize), retryDelay.get());
+            }
+        }
+        if (bufferedPayload != null) {
+            scheduleLinger(bufferedPayload.getDeviceCreatedTimestamp());
+        }
+    }
+
     /**
      * Forces all the payloads currently in the buffer to be sent immediately, as a single request.
      */
     @Override
     public void flushBuffer() {
-        executor.schedule(getPostRequestRunnable(eventStore.size()), 0, TimeUnit.MILLISECONDS);
+        scheduleRequest(getPostRequestRunnable(eventStore.size()), 0);
     }
 
     /**
@@ -227,6 +582,186 @@ public class BatchEmitter implements Emitter, Closeable {
         return !dontRetryStatusCodes.contains(code);
     }
 
+    /**
+     * Schedules the dispatcher, unless it is already scheduled or running.
+     * Only used with the coalescing dispatcher.
+     */
+    private void scheduleDispatch() {
+        if (dispatchScheduled.compareAndSet(false, true)) {
+            executor.schedule(this::dispatch, retryDelay.get(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * The coalescing dispatcher drain loop. Cuts as many full batches as the buffer holds,
+     * as long as fewer requests than the limit are in flight, and hands each batch
+     * to its own request task. Requests are sent asynchronously, so a request in flight
+     * only holds a thread if the HttpClientAdapter is synchronous.
+     */
+    private void dispatch() {
+        // Events left over when a batch is cut short by the byte limit are sent in the next request
+        int remainder = 0;
+        try {
+            while (requestsInFlight.get() < getRequestLimit()) {
+                int numberToGet = remainder > 0 ? remainder : batchSize;
+                BatchPayload batchedEvents = getEventsBatch(numberToGet);
+                if (batchedEvents == null && lingerExpired.getAndSet(false)) {
+                    // The oldest buffered event has waited long enough: send a partial batch
+                    numberToGet = Math.min(eventStore.size(), batchSize);
+                    if (numberToGet > 0) {
+                        batchedEvents = getEventsBatch(numberToGet);
+                    }
+                }
+                if (batchedEvents == null || batchedEvents.size() == 0) {
+                    break;
+                }
+                remainder = numberToGet - batchedEvents.size();
+
+                requestsInFlight.incrementAndGet();
+                try {
+                    final BatchPayload batch = batchedEvents;
+                    // The slot stays taken until the response is processed, not just until the request is sent
+                    requestExecutor.execute(() -> sendBatchAsync(batch).whenComplete((result, throwable) -> releaseRequestSlot()));
+                } catch (RejectedExecutionException e) {
+                    // The executor is shutting down: return the batch to the buffer
+                    requestsInFlight.decrementAndGet();
+                    eventStore.cleanupAfterSendingAttempt(true, batchedEvents.getBatchId());
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.error("BatchEmitter dispatcher error: {}", e.getMessage());
+        } finally {
+            dispatchScheduled.set(false);
+        }
+
+        // Events added while the dispatcher was running did not schedule it again
+        onRequestCompleted();
+    }
+
+    /**
+     * Returns the maximum number of requests the dispatcher can have in flight.
+     *
+     * @return the fixed or adaptive limit
+     */
+    int getRequestLimit() {
+        return concurrencyLimit != null ? concurrencyLimit.getLimit() : maxRequestsInFlight;
+    }
+
+    /**
+     * Frees the slot of a request sent by the dispatcher, once its result has been processed.
+     */
+    private void releaseRequestSlot() {
+        requestsInFlight.decrementAndGet();
+        notifyRequestResult();
+        onRequestCompleted();
+    }
+
+    /**
+     * Wakes the dispatcher if a full batch (or an expired partial batch) is waiting
+     * and there is room for another request.
+     */
+    private void onRequestCompleted() {
+        if (isClosing || requestsInFlight.get() >= getRequestLimit()) {
+            return;
+        }
+        // The probe request wakes the dispatcher again once the circuit breaker has decided
+        if (circuitBreaker != null && circuitBreaker.getState() != CircuitBreakerState.CLOSED) {
+            return;
+        }
+        int bufferedEvents = eventStore.size();
+        if (bufferedEvents >= batchSize || (lingerExpired.get() && bufferedEvents > 0)) {
+            scheduleDispatch();
+        }
+    }
+
+    /**
+     * Schedules sending a partial batch once the given event has been waiting for `lingerMs`,
+     * unless this is already scheduled. Does nothing if no linger time is configured.
+     *
+     * @param eventTimestamp the time the waiting event was created
+     */
+    private void scheduleLinger(long eventTimestamp) {
+        if (lingerMs <= 0 || isClosing) {
+            return;
+        }
+        if (lingerScheduled.compareAndSet(false, true)) {
+            long delay = Math.max(0, eventTimestamp + lingerMs - System.currentTimeMillis());
+            scheduleRequest(this::sendLingeringEvents, Math.max(delay, retryDelay.get()));
+        }
+    }
+
+    /**
+     * Sends the events that have been waiting for `lingerMs`, even if they don't fill a batch.
+     */
+    private void sendLingeringEvents() {
+        lingerScheduled.set(false);
+        sendPartialBatch();
+    }
+
+    /**
+     * Sends up to a batch of buffered events, even if they don't fill a batch.
+     */
+    private void sendPartialBatch() {
+        if (isClosing) {
+            return;
+        }
+
+        if (coalescingDispatcher) {
+            lingerExpired.set(true);
+            scheduleDispatch();
+        } else {
+            int bufferedEvents = eventStore.size();
+            if (bufferedEvents > 0) {
+                getPostRequestRunnable(Math.min(bufferedEvents, batchSize)).run();
+            }
+        }
+    }
+
+    /**
+     * Takes a batch of events from the EventStore, within the POST request byte limit if there is one.
+     *
+     * @param numberOfEvents the number of events to get
+     * @return the batch, or null
+     */
+    private BatchPayload getEventsBatch(int numberOfEvents) {
+        // While the circuit breaker is open, events stay in the EventStore
+        long permit = circuitBreaker != null ? circuitBreaker.tryAcquire() : CircuitBreaker.CLOSED_PERMIT;
+        if (permit == CircuitBreaker.NOT_ALLOWED) {
+            return null;
+        }
+
+        BatchPayload batchedEvents;
+        try {
+            if (byteLimitPost <= 0) {
+                batchedEvents = eventStore.getEventsBatch(numberOfEvents);
+            } else {
+                long maxBytes = byteLimitPost - POST_WRAPPER_BYTES - (long) numberOfEvents * POST_EVENT_OVERHEAD_BYTES;
+                batchedEvents = eventStore.getEventsBatch(numberOfEvents, Math.max(maxBytes, 1));
+            }
+        } catch (RuntimeException e) {
+            if (circuitBreaker != null) {
+                circuitBreaker.release(permit);
+            }
+            throw e;
+        }
+
+        if (circuitBreaker != null) {
+            if (batchedEvents == null || batchedEvents.size() == 0) {
+                // No request will be sent
+                circuitBreaker.release(permit);
+            } else {
+                circuitBreaker.onRequestSent(permit, batchedEvents.getBatchId());
+            }
+        }
+
+        // Taking the batch made space in the buffer
+        if (batchedEvents != null) {
+            wakePendingAdds();
+        }
+        return batchedEvents;
+    }
+
     /**
      * Returns a Runnable POST Request operation
      *
@@ -235,84 +770,427 @@ public class BatchEmitter implements Emitter, Closeable {
      */
     private Runnable getPostRequestRunnable(int numberOfEvents) {
         return () -> {
-            BatchPayload batchedEvents = null;
-
-            // If the InMemoryEventStore queue is full when events are returned for retry,
-            // newer events are removed to make space
-            List<TrackerPayload> eventsDeletedFromStorage = new ArrayList<>();
-
-            try {
-                batchedEvents = eventStore.getEventsBatch(numberOfEvents);
+            // If the batch is cut short by the byte limit, the rest is sent in further requests
+            int remainingEvents = numberOfEvents;
+            while (remainingEvents > 0) {
+                BatchPayload batchedEvents;
+                try {
+                    batchedEvents = getEventsBatch(remainingEvents);
+                } catch (Exception e) {
+                    LOGGER.error("BatchEmitter event sending error: {}", e.getMessage());
+                    return;
+                }
 
                 if (batchedEvents == null || batchedEvents.size() == 0) {
                     return;
                 }
+                remainingEvents -= batchedEvents.size();
+                sendBatch(batchedEvents);
+            }
+        };
+    }
 
-                List<TrackerPayload> eventsInRequest = new ArrayList<>(batchedEvents.getPayloads());
-                final SelfDescribingJson post = getFinalPost(eventsInRequest);
-                final int code = httpClientAdapter.post(post);
-
-                // Process results
-                if (isSuccessfulSend(code)) {
-                    LOGGER.debug("BatchEmitter successfully sent {} events: code: {}", eventsInRequest.size(), code);
-                    retryDelay.set(0);
-                    eventStore.cleanupAfterSendingAttempt(false, batchedEvents.getBatchId());
-                    callback.onSuccess(eventsInRequest);
-
-                } else if (!shouldRetry(code)) {
-                    LOGGER.debug("BatchEmitter failed to send {} events. No retry for code {}: events dropped", eventsInRequest.size(), code);
-                    eventStore.cleanupAfterSendingAttempt(false, batchedEvents.getBatchId());
-                    callback.onFailure(FailureType.REJECTED_BY_COLLECTOR, false, eventsInRequest);
-
-                } else {
-                    LOGGER.error("BatchEmitter failed to send {} events: code: {}", eventsInRequest.size(), code);
-                    eventsDeletedFromStorage = eventStore.cleanupAfterSendingAttempt(true, batchedEvents.getBatchId());
-
-                    if (code == -1) {
-                        callback.onFailure(FailureType.HTTP_CONNECTION_FAILURE, true, eventsInRequest);
-                    } else {
-                        callback.onFailure(FailureType.REJECTED_BY_COLLECTOR, true, eventsInRequest);
-                    }
+    /**
+     * Sends a batch of events taken from the EventStore, and processes the result.
+     *
+     * @param batchedEvents the batch of events to send
+     */
+    private void sendBatch(BatchPayload batchedEvents) {
+        requestsAwaitingResult.put(batchedEvents.getBatchId(), batchedEvents);
+        List<TrackerPayload> eventsInRequest = new ArrayList<>(batchedEvents.getPayloads());
+        final int inFlight = requestsInFlight.get();
+        final long requestStart = System.currentTimeMillis();
 
-                    if (!eventsDeletedFromStorage.isEmpty()) {
-                        callback.onFailure(FailureType.TRACKER_STORAGE_FULL, false, eventsDeletedFromStorage);
-                    }
+        int code;
+        try {
+            code = httpClientAdapter.post(new EncodedBatch(eventsInRequest, requestStart));
+        } catch (Exception e) {
+            processResult(batchedEvents, () -> processRequestFailure(batchedEvents, e));
+            return;
+        }
 
-                    // exponentially increase retry backoff time after the first failure, up to the maximum wait time
-                    if (!retryDelay.compareAndSet(0, 100)) {
-                        retryDelay.updateAndGet(this::calculateRetryDelay);
-                    }
-                }
+        final long latencyMillis = System.currentTimeMillis() - requestStart;
+        processResult(batchedEvents, () -> {
+            try {
+                processResponse(batchedEvents, eventsInRequest, code, latencyMillis, inFlight);
             } catch (Exception e) {
-                LOGGER.error("BatchEmitter event sending error: {}", e.getMessage());
-                if (batchedEvents != null) {
-                    eventsDeletedFromStorage = eventStore.cleanupAfterSendingAttempt(true, batchedEvents.getBatchId());
-                    callback.onFailure(FailureType.EMITTER_REQUEST_FAILURE, true, new ArrayList<>(batchedEvents.getPayloads()));
+                processRequestFailure(batchedEvents, e);
+            }
+        });
+    }
 
-                    if (!eventsDeletedFromStorage.isEmpty()) {
-                        callback.onFailure(FailureType.TRACKER_STORAGE_FULL, false, eventsDeletedFromStorage);
-                    }
+    /**
+     * Sends a batch of events taken from the EventStore without waiting for the response.
+     * The result is processed on the executor once the request completes, so that the
+     * HttpClientAdapter's own threads never run the callbacks.
+     * If the OkHttp Dispatcher allows fewer requests than the request limit,
+     * the request is sent blocking instead, so that its latency is not inflated by the queue.
+     *
+     * @param batchedEvents the batch of events to send
+     * @return a future which completes once the result has been processed
+     */
+    private CompletableFuture<Void> sendBatchAsync(BatchPayload batchedEvents) {
+        List<TrackerPayload> eventsInRequest = new ArrayList<>(batchedEvents.getPayloads());
+        final int inFlight = requestsInFlight.get();
+        final long requestStart = System.currentTimeMillis();
+
+        requestsAwaitingResult.put(batchedEvents.getBatchId(), batchedEvents);
+        CompletableFuture<Integer> response;
+        try {
+            EncodedBatch encodedBatch = new EncodedBatch(eventsInRequest, requestStart);
+            response = asyncPosts
+                    ? httpClientAdapter.postAsync(encodedBatch)
+                    : CompletableFuture.completedFuture(httpClientAdapter.post(encodedBatch));
+        } catch (Exception e) {
+            response = new CompletableFuture<>();
+            response.completeExceptionally(e);
+        }
+
+        BiFunction<Integer, Throwable, Void> handler = (code, throwable) -> {
+            final long latencyMillis = System.currentTimeMillis() - requestStart;
+            processResult(batchedEvents, () -> {
+                if (throwable != null) {
+                    processRequestFailure(batchedEvents, throwable);
+                    return;
                 }
-            }
+                try {
+                    processResponse(batchedEvents, eventsInRequest, code, latencyMillis, inFlight);
+                } catch (Exception e) {
+                    processRequestFailure(batchedEvents, e);
+                }
+            });
+            return null;
         };
+
+        if (response.isDone()) {
+            return response.handle(handler);
+        }
+        return response.handleAsync(handler, this::executeOrRun);
+    }
+
+    /**
+     * Runs a task on the executor, or on the calling thread if the executor is shutting down,
+     * so that the results of requests in flight are still processed.
+     *
+     * @param task the task to run
+     */
+    private void executeOrRun(Runnable task) {
+        try {
+            requestExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * Schedules a task which may send requests. With virtual threads, the timer only
+     * hands the task over to a new virtual thread, so that it never blocks the timer thread.
+     *
+     * @param task the task to run
+     * @param delayMillis the delay in milliseconds
+     * @return the scheduled timer
+     */
+    private ScheduledFuture<?> scheduleRequest(Runnable task, long delayMillis) {
+        if (requestExecutor == executor) {
+            return executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        }
+        return executor.schedule(() -> requestExecutor.execute(task), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Processes the result of a request, unless close() has already given up on the request.
+     * Once given up, its events have been handed to the DrainSink or counted as remaining,
+     * so a late result must not change the EventStore or the counts.
+     *
+     * @param batchedEvents the batch of events sent
+     * @param processing the processing of the result
+     */
+    private void processResult(BatchPayload batchedEvents, Runnable processing) {
+        // Counted before the batch is claimed, so that close() waits for the processing to end
+        resultsBeingProcessed.incrementAndGet();
+        try {
+            if (requestsAwaitingResult.remove(batchedEvents.getBatchId()) == null) {
+                LOGGER.debug("BatchEmitter ignored the late result of batch {}, given up on close", batchedEvents.getBatchId());
+                return;
+            }
+            processing.run();
+        } finally {
+            resultsBeingProcessed.decrementAndGet();
+            notifyRequestResult();
+        }
+    }
+
+    /**
+     * Wakes close() if it is waiting for requests.
+     */
+    private void notifyRequestResult() {
+        synchronized (requestResults) {
+            requestResultCount++;
+            requestResults.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the condition holds or the deadline passes. The condition is checked again
+     * each time a request result has been processed or a request slot freed.
+     *
+     * @param condition the condition to wait for
+     * @param deadline the time in milliseconds until which to wait
+     * @return whether the condition holds
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private boolean awaitRequestResults(BooleanSupplier condition, long deadline) throws InterruptedException {
+        synchronized (requestResults) {
+            long timeoutMillis;
+            while (!condition.getAsBoolean() && (timeoutMillis = deadline - System.currentTimeMillis()) > 0) {
+                requestResults.wait(timeoutMillis);
+            }
+            return condition.getAsBoolean();
+        }
+    }
+
+    /**
+     * Processes the response of a request: removes sent or rejected events from the EventStore,
+     * or returns them for retry, and calls the EmitterCallback.
+     *
+     * @param batchedEvents the batch of events sent
+     * @param eventsInRequest the events sent
+     * @param code the response status code, or -1 if the request failed
+     * @param latencyMillis how long the request took
+     * @param inFlight the number of requests in flight when the request was sent
+     */
+    private void processResponse(BatchPayload batchedEvents, List<TrackerPayload> eventsInRequest, int code, long latencyMillis, int inFlight) {
+        if (concurrencyLimit != null) {
+            if (isSuccessfulSend(code)) {
+                concurrencyLimit.onSuccess(latencyMillis, inFlight);
+            } else if (shouldRetry(code)) {
+                concurrencyLimit.onFailure();
+            }
+        }
+
+        // Process results
+        if (isSuccessfulSend(code)) {
+            LOGGER.debug("BatchEmitter successfully sent {} events: code: {}", eventsInRequest.size(), code);
+            if (circuitBreaker != null) {
+                circuitBreaker.onSuccess(batchedEvents.getBatchId());
+            }
+            retryDelay.set(0);
+            batchRetryAttempts.remove(batchedEvents.getBatchId());
+            eventStore.cleanupAfterSendingAttempt(false, batchedEvents.getBatchId());
+            sentEventCount.addAndGet(eventsInRequest.size());
+            callback.onSuccess(eventsInRequest);
+
+        } else if (!shouldRetry(code)) {
+            LOGGER.debug("BatchEmitter failed to send {} events. No retry for code {}: events dropped", eventsInRequest.size(), code);
+            // The collector is reachable, so this doesn't count towards the circuit breaker
+            if (circuitBreaker != null) {
+                circuitBreaker.onSuccess(batchedEvents.getBatchId());
+            }
+            batchRetryAttempts.remove(batchedEvents.getBatchId());
+            eventStore.cleanupAfterSendingAttempt(false, batchedEvents.getBatchId());
+            droppedEventCount.addAndGet(eventsInRequest.size());
+            callback.onFailure(FailureType.REJECTED_BY_COLLECTOR, false, eventsInRequest);
+
+        } else {
+            LOGGER.error("BatchEmitter failed to send {} events: code: {}", eventsInRequest.size(), code);
+            FailureType failureType = code == -1 ? FailureType.HTTP_CONNECTION_FAILURE : FailureType.REJECTED_BY_COLLECTOR;
+            retryFailedBatch(batchedEvents, eventsInRequest, failureType, true);
+        }
+    }
+
+    /**
+     * Returns the events of a request which could not be sent to the EventStore for retry,
+     * and calls the EmitterCallback.
+     *
+     * @param batchedEvents the batch of events
+     * @param error the cause of the failure
+     */
+    private void processRequestFailure(BatchPayload batchedEvents, Throwable error) {
+        LOGGER.error("BatchEmitter event sending error: {}", error.getMessage());
+        if (concurrencyLimit != null) {
+            concurrencyLimit.onFailure();
+        }
+        retryFailedBatch(batchedEvents, new ArrayList<>(batchedEvents.getPayloads()), FailureType.EMITTER_REQUEST_FAILURE, false);
+    }
+
+    /**
+     * Schedules a retry for a failed batch if scheduled retries are enabled and there is room,
+     * otherwise returns its events to the EventStore, and calls the EmitterCallback.
+     *
+     * @param batchedEvents the failed batch
+     * @param eventsInRequest the events in the failed request
+     * @param failureType the cause of the failure
+     * @param increaseRetryDelay whether to increase the global backoff time if the events are returned
+     */
+    private void retryFailedBatch(BatchPayload batchedEvents, List<TrackerPayload> eventsInRequest,
+                                  FailureType failureType, boolean increaseRetryDelay) {
+        failedRequestCount.incrementAndGet();
+        boolean retryScheduled = scheduleBatchRetry(batchedEvents);
+
+        // If the InMemoryEventStore queue is full when events are returned for retry,
+        // newer events are removed to make space
+        List<TrackerPayload> eventsDeletedFromStorage = retryScheduled
+                ? Collections.emptyList()
+                : returnToEventStore(batchedEvents);
+
+        callback.onFailure(failureType, true, eventsInRequest);
+
+        if (!eventsDeletedFromStorage.isEmpty()) {
+            droppedEventCount.addAndGet(eventsDeletedFromStorage.size());
+            callback.onFailure(FailureType.TRACKER_STORAGE_FULL, false, eventsDeletedFromStorage);
+        }
+
+        if (!retryScheduled) {
+            // exponentially increase retry backoff time after the first failure, up to the maximum wait time
+            if (increaseRetryDelay && !retryDelay.compareAndSet(0, 100)) {
+                retryDelay.updateAndGet(this::calculateRetryDelay);
+            }
+
+            // the returned events have already waited, so they don't wait for a full batch again
+            scheduleLinger(0);
+        }
+
+        if (circuitBreaker != null) {
+            circuitBreaker.onFailure(batchedEvents.getBatchId());
+        }
+    }
+
+    /**
+     * Schedules the retry of a failed batch after its own backoff time, which grows with
+     * each attempt. The batch keeps its events out of the EventStore buffer until then.
+     * At most as many batches as the request limit wait for retry at once.
+     *
+     * @param batchedEvents the failed batch
+     * @return whether the retry was scheduled
+     */
+    private boolean scheduleBatchRetry(BatchPayload batchedEvents) {
+        if (!scheduledRetries || isClosing || retryingBatches.size() >= maxRequestsInFlight) {
+            batchRetryAttempts.remove(batchedEvents.getBatchId());
+            return false;
+        }
+
+        Long batchId = batchedEvents.getBatchId();
+        int attempt = batchRetryAttempts.merge(batchId, 1, Integer::sum);
+        int delay = 100;
+        for (int i = 1; i < attempt && delay < maximumRetryDelay; i++) {
+            delay = calculateRetryDelay(delay);
+        }
+
+        RetryingBatch retryingBatch = new RetryingBatch(batchedEvents);
+        retryingBatches.put(batchId, retryingBatch);
+        try {
+            retryingBatch.timer = scheduleRequest(() -> resendBatch(batchId), delay);
+        } catch (RejectedExecutionException e) {
+            retryingBatches.remove(batchId);
+            batchRetryAttempts.remove(batchId);
+            return false;
+        }
+        LOGGER.debug("BatchEmitter will retry batch {} in {} ms (attempt {})", batchId, delay, attempt);
+        return true;
+    }
+
+    /**
+     * Sends a batch again once its retry time has come.
+     *
+     * @param batchId the id of the batch to resend
+     */
+    private void resendBatch(Long batchId) {
+        RetryingBatch retryingBatch = retryingBatches.remove(batchId);
+        if (retryingBatch == null) {
+            // Already returned to the EventStore by close()
+            return;
+        }
+
+        // While the circuit breaker is open, the probe request decides when to resume sending
+        if (circuitBreaker != null) {
+            long permit = circuitBreaker.tryAcquire();
+            if (permit == CircuitBreaker.NOT_ALLOWED) {
+                returnBatchToEventStore(retryingBatch.batch);
+                return;
+            }
+            circuitBreaker.onRequestSent(permit, batchId);
+        }
+
+        if (coalescingDispatcher) {
+            requestsInFlight.incrementAndGet();
+            sendBatchAsync(retryingBatch.batch).whenComplete((result, throwable) -> releaseRequestSlot());
+        } else {
+            sendBatch(retryingBatch.batch);
+        }
+    }
+
+    /**
+     * Returns the events of a batch waiting for retry to the EventStore buffer.
+     *
+     * @param batchedEvents the batch
+     */
+    private void returnBatchToEventStore(BatchPayload batchedEvents) {
+        batchRetryAttempts.remove(batchedEvents.getBatchId());
+        List<TrackerPayload> eventsDeletedFromStorage = returnToEventStore(batchedEvents);
+        if (!eventsDeletedFromStorage.isEmpty()) {
+            droppedEventCount.addAndGet(eventsDeletedFromStorage.size());
+            callback.onFailure(FailureType.TRACKER_STORAGE_FULL, false, eventsDeletedFromStorage);
+        }
+    }
+
+    /**
+     * Returns the events of a sent batch to the EventStore to be sent again. Their encoded JSON is released
+     * first: it would stay in memory while they wait, outside the EventStore's limits.
+     *
+     * @param batchedEvents the batch
+     * @return the events deleted from the EventStore to make space
+     */
+    private List<TrackerPayload> returnToEventStore(BatchPayload batchedEvents) {
+        for (TrackerPayload payload : batchedEvents.getPayloads()) {
+            payload.releaseEncodedJson();
+        }
+        return eventStore.cleanupAfterSendingAttempt(true, batchedEvents.getBatchId());
+    }
+
+    /**
+     * Deletes the buffered events older than the event time-to-live, and reports them as expired
+     * together with any events the EventStore expired while batches were taken.
+     */
+    private void removeExpiredEvents() {
+        try {
+            List<TrackerPayload> expiredEvents = eventStore.removeExpiredEvents(System.currentTimeMillis() - eventTtlMs);
+            if (!expiredEvents.isEmpty()) {
+                LOGGER.warn("{} events expired before they could be sent", expiredEvents.size());
+                droppedEventCount.addAndGet(expiredEvents.size());
+                callback.onFailure(FailureType.EVENT_EXPIRED, false, expiredEvents);
+                wakePendingAdds();
+            }
+        } catch (RuntimeException e) {
+            // An exception would stop the scheduled task from running again
+            LOGGER.error("Failed to remove expired events", e);
+        }
     }
 
     /**
-     * Constructs the SelfDescribingJson to be sent to the endpoint
+     * Reports circuit breaker state changes, and schedules the probe request when it opens.
      *
-     * @param events the event buffer
-     * @return the constructed POST payload
+     * @param state the new state
      */
-    private SelfDescribingJson getFinalPost(final List<TrackerPayload> events) {
-        final List<Map<String, String>> toSendPayloads = new ArrayList<>();
-        final String sentTimestamp = Long.toString(System.currentTimeMillis());
+    private void onCircuitBreakerStateChange(CircuitBreakerState state) {
+        LOGGER.info("BatchEmitter circuit breaker is now {}", state);
+        callback.onCircuitBreakerStateChange(state);
 
-        for (TrackerPayload payload : events) {
-            payload.add(Parameter.DEVICE_SENT_TIMESTAMP, sentTimestamp);
-            toSendPayloads.add(payload.getMap());
+        if (state == CircuitBreakerState.OPEN && !isClosing) {
+            try {
+                scheduleRequest(this::sendPartialBatch, circuitBreaker.getOpenDurationMillis());
+            } catch (RejectedExecutionException e) {
+                LOGGER.debug("BatchEmitter is shutting down: no circuit breaker probe request scheduled");
+            }
         }
+    }
 
-        return new SelfDescribingJson(Constants.SCHEMA_PAYLOAD_DATA, toSendPayloads);
+    /**
+     * Returns the circuit breaker state, or null if the circuit breaker is disabled.
+     *
+     * @return the circuit breaker state
+     */
+    CircuitBreakerState getCircuitBreakerState() {
+        return circuitBreaker != null ? circuitBreaker.getState() : null;
     }
 
     private int calculateRetryDelay(int currentDelay) {
@@ -335,6 +1213,13 @@ public class BatchEmitter implements Emitter, Closeable {
 
     /**
      * Attempt to send all remaining events, then shut down the ExecutorService.
+     * <p>
+     * By default, the buffered events are sent in one request, and close() waits up to 5 seconds
+     * for the requests in flight to complete.
+     * With a `drainTimeoutMs`, batches keep being sent until the buffer is empty or the deadline passes.
+     * Requests still in flight are then given up: their late results are ignored. Their events and
+     * the buffered events are handed to the DrainSink, if there is one. The numbers of sent,
+     * remaining and dropped events are reported to the EmitterCallback.
      *
      * <p>
      *  <b>Implementation note: </b><em>Be aware that calling `close()`
@@ -343,26 +1228,267 @@ public class BatchEmitter implements Emitter, Closeable {
     @Override
     public void close() {
         final long closeTimeout = 5;
+        final long sentBeforeClose = sentEventCount.get();
+        final long droppedBeforeClose = droppedEventCount.get();
+        final long deadline = System.currentTimeMillis() + drainTimeoutMs;
         isClosing = true;
+        if (expiryTask != null) {
+            expiryTask.cancel(false);
+        }
 
-        flushBuffer(); // Attempt to send all remaining events
+        // Batches waiting for retry are sent now with the rest of the buffer
+        for (Long batchId : retryingBatches.keySet()) {
+            RetryingBatch retryingBatch = retryingBatches.remove(batchId);
+            if (retryingBatch != null) {
+                if (retryingBatch.timer != null) {
+                    retryingBatch.timer.cancel(false);
+                }
+                returnBatchToEventStore(retryingBatch.batch);
+            }
+        }
+
+        if (drainTimeoutMs > 0) {
+            try {
+                drainUntil(deadline);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            flushBuffer(); // Attempt to send all remaining events
+        }
+
+        // Payloads still waiting for space won't be sent
+        List<PendingAdd> givenUpPayloads = new ArrayList<>();
+        synchronized (pendingAdds) {
+            PendingAdd pendingAdd;
+            while ((pendingAdd = pendingAdds.poll()) != null) {
+                givenUpPayloads.add(pendingAdd);
+            }
+        }
+        for (PendingAdd pendingAdd : givenUpPayloads) {
+            if (pendingAdd.future.complete(false)) {
+                droppedEventCount.incrementAndGet();
+                callback.onFailure(FailureType.TRACKER_STORAGE_FULL, false, Collections.singletonList(pendingAdd.payload));
+            }
+        }
+
+        // Events that expired while the buffer was being sent have not been reported yet
+        if (eventTtlMs > 0) {
+            removeExpiredEvents();
+        }
 
         //Shutdown executor threadpool
+        long shutdownDeadline = drainTimeoutMs > 0
+                ? deadline
+                : System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(closeTimeout);
         if (executor != null) {
-            executor.shutdown();
-            try {
-                if (!executor.awaitTermination(closeTimeout, TimeUnit.SECONDS)) {
-                    executor.shutdownNow();
-                    if (!executor.awaitTermination(closeTimeout, TimeUnit.SECONDS))
-                        LOGGER.warn("Emitter executor did not terminate");
+            shutdownExecutor(executor, shutdownDeadline, closeTimeout);
+            if (requestExecutor != executor) {
+                // The timers hand their tasks to the request executor until they have all run
+                shutdownExecutor(requestExecutor, shutdownDeadline, closeTimeout);
+            }
+        }
+
+        List<BatchPayload> unsentBatches = new ArrayList<>();
+        try {
+            if (drainTimeoutMs > 0) {
+                // The late results of these requests are ignored, so the counts can't change afterwards
+                for (Long batchId : requestsAwaitingResult.keySet()) {
+                    BatchPayload batch = requestsAwaitingResult.remove(batchId);
+                    if (batch != null) {
+                        unsentBatches.add(batch);
+                    }
+                }
+                // The results already being processed put their events back in the EventStore or count them
+                awaitRequestResults(() -> resultsBeingProcessed.get() == 0,
+                        System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(closeTimeout));
+            } else {
+                // Asynchronous requests are not executor tasks: wait for them too, up to the same timeout
+                awaitRequestResults(() -> requestsAwaitingResult.isEmpty() && resultsBeingProcessed.get() == 0,
+                        shutdownDeadline);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        reportDrainResult(sentBeforeClose, droppedBeforeClose, unsentBatches);
+    }
+
+    /**
+     * Shuts down an executor, waiting until the deadline for its tasks to complete,
+     * then interrupting them.
+     *
+     * @param executorService the executor to shut down
+     * @param deadline the time in milliseconds until which tasks may complete
+     * @param closeTimeout how long to wait in seconds once the tasks are interrupted
+     */
+    private static void shutdownExecutor(ExecutorService executorService, long deadline, long closeTimeout) {
+        executorService.shutdown();
+        try {
+            long timeoutMillis = Math.max(deadline - System.currentTimeMillis(), 0);
+            if (!executorService.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                executorService.shutdownNow();
+                if (!executorService.awaitTermination(closeTimeout, TimeUnit.SECONDS))
+                    LOGGER.warn("Emitter executor did not terminate");
+            }
+        } catch (final InterruptedException ie) {
+            executorService.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Keeps sending batches from the EventStore, up to the request limit in parallel,
+     * until it is empty or the deadline passes. Backs off after failed requests.
+     *
+     * @param deadline the time in milliseconds after which no more requests are sent
+     * @throws InterruptedException if interrupted while waiting for requests
+     */
+    private void drainUntil(long deadline) throws InterruptedException {
+        Map<BatchPayload, CompletableFuture<Void>> drainRequests = new HashMap<>();
+        long failures = failedRequestCount.get();
+        long backoff = 0;
+
+        while (true) {
+            drainRequests.values().removeIf(CompletableFuture::isDone);
+            long now = System.currentTimeMillis();
+            if (now >= deadline) {
+                break;
+            }
+
+            long currentFailures = failedRequestCount.get();
+            if (currentFailures != failures) {
+                // The failed events are back in the buffer: don't resend them straight away
+                failures = currentFailures;
+                backoff = backoff == 0 ? 100 : Math.min(backoff * 2, maximumRetryDelay);
+                Thread.sleep(Math.min(backoff, deadline - now));
+                continue;
+            }
+
+            // Read before taking a batch, so that a result processed in the meantime is not missed
+            final long resultCount = requestResultCount;
+            BatchPayload batchedEvents = null;
+            int numberToGet = Math.min(eventStore.size(), batchSize);
+            if (numberToGet > 0 && drainRequests.size() + requestsInFlight.get() < getRequestLimit()) {
+                batchedEvents = getEventsBatch(numberToGet);
+            }
+            if (batchedEvents != null && batchedEvents.size() > 0) {
+                final BatchPayload batch = batchedEvents;
+                try {
+                    drainRequests.put(batch, CompletableFuture
+                            .supplyAsync(() -> sendBatchAsync(batch), requestExecutor)
+                            .thenCompose(request -> request));
+                } catch (RejectedExecutionException e) {
+                    eventStore.cleanupAfterSendingAttempt(true, batch.getBatchId());
+                    break;
+                }
+                continue;
+            }
+
+            if (drainRequests.isEmpty()) {
+                long wakeUp = deadline;
+                if (requestsInFlight.get() == 0 && requestsAwaitingResult.isEmpty()) {
+                    // No request result will wake the drain: only the circuit breaker can still hold back events
+                    if (eventStore.size() == 0 || circuitBreaker == null
+                            || circuitBreaker.getState() == CircuitBreakerState.CLOSED) {
+                        break;
+                    }
+                    wakeUp = Math.min(deadline, now + circuitBreaker.getMillisUntilProbe());
+                }
+                // Requests sent before close() may still return events to the buffer
+                awaitRequestResults(() -> requestResultCount != resultCount, wakeUp);
+            } else {
+                try {
+                    CompletableFuture.anyOf(drainRequests.values().toArray(new CompletableFuture<?>[0]))
+                            .get(deadline - now, TimeUnit.MILLISECONDS);
+                } catch (ExecutionException | TimeoutException e) {
+                    // Failures are processed by the request itself; timeouts end the loop
                 }
-            } catch (final InterruptedException ie) {
-                executor.shutdownNow();
-                Thread.currentThread().interrupt();
             }
         }
     }
 
+    /**
+     * Hands the events of the given up requests and the buffered events to the DrainSink, if there is one,
+     * otherwise returns the given up requests to the EventStore. Then reports the numbers of events sent,
+     * remaining and dropped during close() to the EmitterCallback.
+     *
+     * @param sentBeforeClose the number of events sent before close()
+     * @param droppedBeforeClose the number of events dropped before close()
+     * @param unsentBatches the batches of the requests given up at the drain deadline
+     */
+    private void reportDrainResult(long sentBeforeClose, long droppedBeforeClose, List<BatchPayload> unsentBatches) {
+        boolean sunk = false;
+        long sunkCount = 0;
+        if (drainSink != null) {
+            int bufferedEvents = eventStore.size();
+            BatchPayload buffered = bufferedEvents > 0 ? eventStore.getEventsBatch(bufferedEvents) : null;
+            if (buffered != null) {
+                unsentBatches.add(buffered);
+            }
+
+            List<TrackerPayload> unsentEvents = new ArrayList<>();
+            for (BatchPayload batch : unsentBatches) {
+                unsentEvents.addAll(batch.getPayloads());
+            }
+            if (!unsentEvents.isEmpty()) {
+                try {
+                    drainSink.accept(unsentEvents);
+                    sunk = true;
+                    sunkCount = unsentEvents.size();
+                } catch (Exception e) {
+                    LOGGER.error("DrainSink failed to accept {} events: {}", unsentEvents.size(), e.getMessage());
+                    droppedEventCount.addAndGet(unsentEvents.size());
+                }
+            }
+        }
+
+        // Events not handed to the DrainSink stay in the EventStore
+        for (BatchPayload batch : unsentBatches) {
+            List<TrackerPayload> eventsDeletedFromStorage = sunk
+                    ? eventStore.cleanupAfterSendingAttempt(false, batch.getBatchId())
+                    : returnToEventStore(batch);
+            if (drainSink == null && !eventsDeletedFromStorage.isEmpty()) {
+                droppedEventCount.addAndGet(eventsDeletedFromStorage.size());
+                callback.onFailure(FailureType.TRACKER_STORAGE_FULL, false, eventsDeletedFromStorage);
+            }
+        }
+
+        long remainingCount = drainSink == null ? eventStore.size() : sunkCount;
+        // Without a drain timeout, requests still in flight are not given up: their events are not sent yet
+        for (BatchPayload batch : requestsAwaitingResult.values()) {
+            remainingCount += batch.size();
+        }
+
+        DrainResult drainResult = new DrainResult(
+                sentEventCount.get() - sentBeforeClose,
+                remainingCount,
+                droppedEventCount.get() - droppedBeforeClose);
+        LOGGER.info("BatchEmitter closed: {}", drainResult);
+        callback.onDrainComplete(drainResult);
+    }
+
+    private static class RetryingBatch {
+        private final BatchPayload batch;
+        private volatile ScheduledFuture<?> timer;
+
+        RetryingBatch(BatchPayload batch) {
+            this.batch = batch;
+        }
+    }
+
+    /**
+     * A payload waiting for space in the buffer.
+     */
+    private static class PendingAdd {
+        private final TrackerPayload payload;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        PendingAdd(TrackerPayload payload) {
+            this.payload = payload;
+        }
+    }
+
     /**
      * Copied from `Executors.defaultThreadFactory()`.
      * The only change is the generated name prefix.
@@ -372,14 +1498,40 @@ public class BatchEmitter implements Emitter, Closeable {
         private final ThreadGroup group;
         private final AtomicInteger threadNumber = new AtomicInteger(1);
         private final String namePrefix;
+        private final ThreadFactory virtualThreadFactory;
 
         EmitterThreadFactory() {
+            this(false);
+        }
+
+        /**
+         * Creates a thread factory, which creates virtual threads if requested
+         * and supported by the JVM (Java 21+). Otherwise platform threads are created.
+         *
+         * @param virtualThreads whether to create virtual threads
+         */
+        EmitterThreadFactory(boolean virtualThreads) {
             SecurityManager securityManager = System.getSecurityManager();
             group = securityManager != null ? securityManager.getThreadGroup() : Thread.currentThread().getThreadGroup();
             namePrefix = "snowplow-emitter-pool-" + poolNumber.getAndIncrement() + "-request-thread-";
+            virtualThreadFactory = virtualThreads ? createVirtualThreadFactory(namePrefix) : null;
+        }
+
+        /**
+         * Returns whether this factory creates virtual threads.
+         *
+         * @return true if threads are virtual
+         */
+        boolean isVirtual() {
+            return virtualThreadFactory != null;
         }
 
         public Thread newThread(Runnable runnable) {
+            if (virtualThreadFactory != null) {
+                // Virtual threads are always daemon threads with normal priority
+                return virtualThreadFactory.newThread(runnable);
+            }
+
             Thread thread = new Thread(group, runnable, namePrefix + threadNumber.getAndIncrement(), 0L);
             if (thread.isDaemon()) {
                 thread.setDaemon(false);
@@ -391,5 +1543,40 @@ public class BatchEmitter implements Emitter, Closeable {
 
             return thread;
         }
+
+        /**
+         * Creates an executor which runs each task on a new virtual thread,
+         * or returns null if virtual threads are not supported by the JVM (Java 21+).
+         *
+         * @return the executor, or null
+         */
+        static ExecutorService createVirtualThreadPerTaskExecutor() {
+            EmitterThreadFactory threadFactory = new EmitterThreadFactory(true);
+            if (!threadFactory.isVirtual()) {
+                return null;
+            }
+            try {
+                // Same as Executors.newVirtualThreadPerTaskExecutor(), with named threads
+                return (ExecutorService) Executors.class
+                        .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                        .invoke(null, threadFactory);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOGGER.warn("Virtual threads are not supported by this JVM (Java 21+ required): using platform threads");
+                return null;
+            }
+        }
+
+        // The library targets Java 8, so the Java 21 Thread.Builder API is called reflectively
+        private static ThreadFactory createVirtualThreadFactory(String namePrefix) {
+            try {
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 1L);
+                return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOGGER.warn("Virtual threads are not supported by this JVM (Java 21+ required): using platform threads");
+                return null;
+            }
+        }
     }
 }
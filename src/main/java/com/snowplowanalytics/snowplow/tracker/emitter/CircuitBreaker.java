@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.emitter;
+
+import java.util.function.Consumer;
+
+/**
+ * A circuit breaker which stops requests to the collector during an outage.
+ *
+ * It opens after a number of consecutive failed requests. While open, no requests are allowed,
+ * so events are not repeatedly taken from and returned to the EventStore.
+ * Once the open duration has passed, a single probe request is allowed,
+ * which either closes the circuit breaker or opens it again.
+ */
+class CircuitBreaker {
+
+    /**
+     * Returned by {@link #tryAcquire()} when no request can be sent.
+     */
+    static final long NOT_ALLOWED = -1;
+
+    /**
+     * Returned by {@link #tryAcquire()} while closed.
+     */
+    static final long CLOSED_PERMIT = 0;
+
+    private static final long NO_REQUEST = Long.MIN_VALUE;
+
+    private final int failureThreshold;
+    private final long openDurationMillis;
+    private final Consumer<CircuitBreakerState> listener;
+
+    private CircuitBreakerState state = CircuitBreakerState.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt = 0;
+    private boolean probeInFlight = false;
+    private long probePermit = CLOSED_PERMIT;
+    private long probeRequestId = NO_REQUEST;
+
+    /**
+     * Creates a CircuitBreaker.
+     *
+     * @param failureThreshold the number of consecutive failures which opens the circuit breaker
+     * @param openDurationMillis how long the circuit breaker stays open before sending a probe request
+     * @param listener called after each state change, outside the circuit breaker's lock
+     */
+    CircuitBreaker(int failureThreshold, long openDurationMillis, Consumer<CircuitBreakerState> listener) {
+        if (failureThreshold <= 0) {
+            throw new IllegalArgumentException("failureThreshold must be greater than 0");
+        }
+        if (openDurationMillis < 0) {
+            throw new IllegalArgumentException("openDurationMillis cannot be negative");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openDurationMillis = openDurationMillis;
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the current state.
+     *
+     * @return the state
+     */
+    synchronized CircuitBreakerState getState() {
+        return state;
+    }
+
+    /**
+     * Returns how long the circuit breaker stays open before sending a probe request.
+     *
+     * @return the open duration in milliseconds
+     */
+    long getOpenDurationMillis() {
+        return openDurationMillis;
+    }
+
+    /**
+     * Returns how long until a probe request is allowed, or 0 if the circuit breaker is not open.
+     *
+     * @return the delay in milliseconds
+     */
+    synchronized long getMillisUntilProbe() {
+        if (state != CircuitBreakerState.OPEN) {
+            return 0;
+        }
+        return Math.max(openedAt + openDurationMillis - System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * Asks to send a request. Always allowed while closed. When open, the first call
+     * after the open duration has passed is allowed as the probe request.
+     * Once the request is taken, the permit is passed to {@link #onRequestSent(long, long)};
+     * if no request is sent after all, it must be given back with {@link #release(long)}.
+     *
+     * @return the permit, or {@link #NOT_ALLOWED} if no request can be sent
+     */
+    long tryAcquire() {
+        CircuitBreakerState newState;
+        long permit;
+        synchronized (this) {
+            if (state == CircuitBreakerState.CLOSED) {
+                return CLOSED_PERMIT;
+            }
+            if (probeInFlight) {
+                return NOT_ALLOWED;
+            }
+            if (state == CircuitBreakerState.OPEN && System.currentTimeMillis() - openedAt < openDurationMillis) {
+                return NOT_ALLOWED;
+            }
+            probeInFlight = true;
+            probeRequestId = NO_REQUEST;
+            permit = ++probePermit;
+            newState = transitionTo(CircuitBreakerState.HALF_OPEN);
+        }
+        notifyListener(newState);
+        return permit;
+    }
+
+    /**
+     * Records which request is sent with a permit from {@link #tryAcquire()}.
+     * While half-open, only the result of the probe request changes the state.
+     *
+     * @param permit the permit
+     * @param requestId the id of the request
+     */
+    synchronized void onRequestSent(long permit, long requestId) {
+        if (isProbe(permit)) {
+            probeRequestId = requestId;
+        }
+    }
+
+    /**
+     * Gives back a permit from {@link #tryAcquire()} which was not used to send a request.
+     *
+     * @param permit the permit
+     */
+    synchronized void release(long permit) {
+        if (isProbe(permit)) {
+            probeInFlight = false;
+            probeRequestId = NO_REQUEST;
+        }
+    }
+
+    /**
+     * Records a successful request. Closes the circuit breaker if it was the probe request.
+     * While half-open, the results of requests sent before the circuit breaker opened are ignored.
+     *
+     * @param requestId the id of the request
+     */
+    void onSuccess(long requestId) {
+        CircuitBreakerState newState;
+        synchronized (this) {
+            if (state == CircuitBreakerState.HALF_OPEN && !isProbeRequest(requestId)) {
+                return;
+            }
+            consecutiveFailures = 0;
+            if (state != CircuitBreakerState.HALF_OPEN) {
+                return;
+            }
+            probeInFlight = false;
+            probeRequestId = NO_REQUEST;
+            newState = transitionTo(CircuitBreakerState.CLOSED);
+        }
+        notifyListener(newState);
+    }
+
+    /**
+     * Records a failed request. Opens the circuit breaker if the probe request failed,
+     * or if the failure threshold has been reached.
+     * While half-open, the results of requests sent before the circuit breaker opened are ignored.
+     *
+     * @param requestId the id of the request
+     */
+    void onFailure(long requestId) {
+        CircuitBreakerState newState;
+        synchronized (this) {
+            if (state == CircuitBreakerState.HALF_OPEN && !isProbeRequest(requestId)) {
+                return;
+            }
+            consecutiveFailures++;
+            if (state == CircuitBreakerState.OPEN
+                    || (state == CircuitBreakerState.CLOSED && consecutiveFailures < failureThreshold)) {
+                return;
+            }
+            probeInFlight = false;
+            probeRequestId = NO_REQUEST;
+            openedAt = System.currentTimeMillis();
+            newState = transitionTo(CircuitBreakerState.OPEN);
+        }
+        notifyListener(newState);
+    }
+
+    private boolean isProbe(long permit) {
+        return probeInFlight && permit == probePermit;
+    }
+
+    private boolean isProbeRequest(long requestId) {
+        return probeInFlight && probeRequestId != NO_REQUEST && requestId == probeRequestId;
+    }
+
+    private CircuitBreakerState transitionTo(CircuitBreakerState newState) {
+        if (state == newState) {
+            return null;
+        }
+        state = newState;
+        return newState;
+    }
+
+    private void notifyListener(CircuitBreakerState newState) {
+        if (newState != null && listener != null) {
+            listener.accept(newState);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.emitter;
+
+/**
+ * The states of the BatchEmitter circuit breaker, reported to EmitterCallback.
+ */
+public enum CircuitBreakerState {
+    /**
+     * Events are being sent normally.
+     */
+    CLOSED,
+
+    /**
+     * Too many consecutive requests have failed. Events stay in the buffer
+     * until the open duration has passed.
+     */
+    OPEN,
+
+    /**
+     * The open duration has passed. A single probe request is sent:
+     * the circuit breaker closes if it succeeds, and opens again if it fails.
+     */
+    HALF_OPEN
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.emitter;
+
+/**
+ * The outcome of draining the BatchEmitter on close(), reported to EmitterCallback.
+ */
+public class DrainResult {
+
+    private final long sentCount;
+    private final long remainingCount;
+    private final long droppedCount;
+
+    public DrainResult(long sentCount, long remainingCount, long droppedCount) {
+        this.sentCount = sentCount;
+        this.remainingCount = remainingCount;
+        this.droppedCount = droppedCount;
+    }
+
+    /**
+     * Returns the number of events successfully sent while closing.
+     *
+     * @return the sent event count
+     */
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    /**
+     * Returns the number of events left unsent when the drain deadline expired.
+     * These are handed to the DrainSink if there is one, otherwise they stay in the EventStore.
+     *
+     * @return the remaining event count
+     */
+    public long getRemainingCount() {
+        return remainingCount;
+    }
+
+    /**
+     * Returns the number of events lost while closing: rejected by the collector without retry,
+     * removed from a full buffer, or not accepted by the DrainSink.
+     *
+     * @return the dropped event count
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "DrainResult{sent=" + sentCount + ", remaining=" + remainingCount + ", dropped=" + droppedCount + "}";
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.emitter;
+
+import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
+
+import java.util.List;
+
+/**
+ * Receives the events which could not be sent before the drain deadline when the
+ * BatchEmitter is closed, for example to write them to a file to be sent later.
+ */
+public interface DrainSink {
+
+    /**
+     * Called once, at the end of BatchEmitter.close(), with all the events left unsent.
+     * Events whose request was still in flight at the deadline are included,
+     * so they may also have reached the collector. The emitter ignores the late
+     * responses of these requests, so the events are neither retried nor counted as sent.
+     *
+     * @param remainingEvents the unsent events
+     * @throws Exception if the events could not be stored; they are then counted as dropped
+     */
+    void accept(List<TrackerPayload> remainingEvents) throws Exception;
+}
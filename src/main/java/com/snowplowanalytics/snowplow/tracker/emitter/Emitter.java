@@ -13,6 +13,8 @@
 package com.snowplowanalytics.snowplow.tracker.emitter;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
 
@@ -30,6 +32,43 @@ public interface Emitter {
      */
     boolean add(TrackerPayload payload);
 
+    /**
+     * Adds a payload to the buffer, waiting for space to become available if the buffer is full.
+     * The default implementation does not wait.
+     *
+     * @param payload a payload to be emitted
+     * @return if the payload was added to the buffer
+     * @throws InterruptedException if interrupted while waiting
+     */
+    default boolean addBlocking(TrackerPayload payload) throws InterruptedException {
+        return add(payload);
+    }
+
+    /**
+     * Adds a payload to the buffer, waiting up to the given time for space to become available
+     * if the buffer is full. The default implementation does not wait.
+     *
+     * @param payload a payload to be emitted
+     * @param timeout how long to wait before giving up
+     * @param unit the unit of the timeout
+     * @return if the payload was added to the buffer
+     * @throws InterruptedException if interrupted while waiting
+     */
+    default boolean add(TrackerPayload payload, long timeout, TimeUnit unit) throws InterruptedException {
+        return add(payload);
+    }
+
+    /**
+     * Adds a payload to the buffer once space is available. The default implementation
+     * adds the payload immediately, without waiting for space.
+     *
+     * @param payload a payload to be emitted
+     * @return a future completed with whether the payload was added to the buffer
+     */
+    default CompletableFuture<Boolean> addAsync(TrackerPayload payload) {
+        return CompletableFuture.completedFuture(add(payload));
+    }
+
     /**
      * Customize the emitter batch size to any valid integer
      * greater than zero.
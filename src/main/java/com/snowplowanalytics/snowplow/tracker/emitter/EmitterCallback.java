@@ -25,4 +25,20 @@ public interface EmitterCallback {
     void onSuccess(List<TrackerPayload> payloads);
 
     void onFailure(FailureType failureType, boolean willRetry, List<TrackerPayload> payloads);
+
+    /**
+     * Called when the BatchEmitter circuit breaker changes state.
+     * Only called if the circuit breaker is enabled in the EmitterConfiguration.
+     *
+     * @param state the new state
+     */
+    default void onCircuitBreakerStateChange(CircuitBreakerState state) {}
+
+    /**
+     * Called at the end of BatchEmitter.close(), with the numbers of events
+     * sent, left unsent, and dropped while closing.
+     *
+     * @param drainResult the event counts
+     */
+    default void onDrainComplete(DrainResult drainResult) {}
 }
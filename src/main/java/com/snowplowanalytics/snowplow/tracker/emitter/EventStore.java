@@ -12,6 +12,7 @@
  */
 package com.snowplowanalytics.snowplow.tracker.emitter;
 
+import java.util.Collections;
 import java.util.List;
 
 import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
@@ -29,6 +30,19 @@ public interface EventStore {
      */
     boolean addEvent(TrackerPayload trackerPayload);
 
+    /**
+     * Add TrackerPayload to buffer, dropping an event if the buffer is full.
+     * Stores with an {@link OverflowPolicy} may delete a buffered event to make space for this one.
+     * <p>
+     * The default implementation drops the given payload if {@link #addEvent(TrackerPayload)} fails.
+     *
+     * @param trackerPayload the payload to add
+     * @return the dropped events, including the given payload if it was not added
+     */
+    default List<TrackerPayload> addEventOrDrop(TrackerPayload trackerPayload) {
+        return addEvent(trackerPayload) ? Collections.emptyList() : Collections.singletonList(trackerPayload);
+    }
+
     /**
      * Remove some TrackerPayloads from the buffer.
      *
@@ -37,6 +51,21 @@ public interface EventStore {
      */
     BatchPayload getEventsBatch(int numberToGet);
 
+    /**
+     * Remove some TrackerPayloads from the buffer, limiting the batch by byte size as well as count.
+     * The size of each payload is its {@link TrackerPayload#getEstimatedByteSize()}.
+     * A batch always contains at least one payload, even if it is larger than maxBytes.
+     * <p>
+     * The default implementation ignores the byte limit.
+     *
+     * @param numberToGet how many payloads to get
+     * @param maxBytes the maximum total byte size of the payloads
+     * @return a BatchPayload wrapper
+     */
+    default BatchPayload getEventsBatch(int numberToGet, long maxBytes) {
+        return getEventsBatch(numberToGet);
+    }
+
     /**
      * Get a copy of all the TrackerPayloads in the buffer.
      *
@@ -53,6 +82,20 @@ public interface EventStore {
      */
     List<TrackerPayload> cleanupAfterSendingAttempt(boolean needRetry, long batchId);
 
+    /**
+     * Remove the buffered events created before the given time, based on their device created timestamp.
+     * Stores with a time-to-live may also delete expired events while taking batches; those events are
+     * returned by the next call as well. This does not include any events currently being sent.
+     * <p>
+     * The default implementation removes nothing.
+     *
+     * @param createdBefore the device created timestamp, in milliseconds, before which events are expired
+     * @return the removed events
+     */
+    default List<TrackerPayload> removeExpiredEvents(long createdBefore) {
+        return Collections.emptyList();
+    }
+
     /**
      * Get the current size of the buffer.
      *
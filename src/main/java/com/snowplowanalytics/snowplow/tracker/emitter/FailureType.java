@@ -40,5 +40,11 @@ public enum FailureType {
     /**
      * An exception during POST request in BatchEmitter.
      */
-    EMITTER_REQUEST_FAILURE
+    EMITTER_REQUEST_FAILURE,
+
+    /**
+     * Buffered events are older than the configured time-to-live, based on their device created timestamp,
+     * and have been deleted without being sent.
+     */
+    EVENT_EXPIRED
 }
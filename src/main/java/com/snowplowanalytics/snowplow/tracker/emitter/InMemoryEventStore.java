@@ -18,6 +18,7 @@ import org.slf4j.LoggerFactory;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -31,6 +32,18 @@ import java.util.concurrent.atomic.AtomicLong;
  *
  * If the POST request is successful, the payloads are deleted from the map.
  * If not, they are removed from the map and reinserted into the queue to be sent again.
+ *
+ * When the queue is full, the {@link OverflowPolicy} chooses which event is dropped by {@link #addEventOrDrop}
+ * and by reinserting events to retry. By default, new events are rejected, and newer events are deleted
+ * to make space for events to retry. {@link #addEvent} always rejects new events when the queue is full.
+ *
+ * The queue can also be limited by the total size of its events, to make its memory use predictable.
+ * The size of an event is its {@link TrackerPayload#getEstimatedByteSize()}, which is kept up to date as the
+ * payload is built, so adding an event does not serialize it.
+ *
+ * Events can be given a time-to-live, measured from their device created timestamp. Expired events at the head
+ * of the queue are deleted while taking batches, and {@link #removeExpiredEvents(long)} deletes any others and
+ * returns all the expired events.
  */
 public class InMemoryEventStore implements EventStore {
     private static final Logger LOGGER = LoggerFactory.getLogger(InMemoryEventStore.class);
@@ -39,13 +52,61 @@ public class InMemoryEventStore implements EventStore {
 
     private final LinkedBlockingDeque<TrackerPayload> eventBuffer;
     private final ConcurrentHashMap<Long, List<TrackerPayload>> eventsBeingSent = new ConcurrentHashMap<>();
+    private final OverflowPolicy overflowPolicy;
+    private final AtomicLong overflowDropCount = new AtomicLong(0);
+    private final long maxBytes;
+    private final AtomicLong bufferedBytes = new AtomicLong(0);
+    private final long eventTtlMs;
+    private final ConcurrentLinkedQueue<TrackerPayload> expiredEvents = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Create a InMemoryEventStore object limited by the number and the total estimated byte size of its events,
+     * deleting events that have not been sent within the time-to-live.
+     * The deleted events are kept until {@link #removeExpiredEvents(long)} collects them, so the time-to-live must
+     * also be set as the emitter's `eventTtlMs`: the BatchEmitter rejects a store with a different time-to-live.
+     * @param bufferCapacity the maximum number of events to buffer at once
+     * @param maxBytes the maximum total estimated byte size of the events to buffer at once
+     * @param overflowPolicy chooses which event is dropped when the buffer is full
+     * @param eventTtlMs how long after their device created timestamp events expire, or 0 for no limit
+     */
+    public InMemoryEventStore(int bufferCapacity, long maxBytes, OverflowPolicy overflowPolicy, long eventTtlMs) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be greater than 0");
+        }
+        if (eventTtlMs < 0) {
+            throw new IllegalArgumentException("eventTtlMs must not be negative");
+        }
+        eventBuffer = new LinkedBlockingDeque<>(bufferCapacity);
+        this.maxBytes = maxBytes;
+        this.overflowPolicy = Objects.requireNonNull(overflowPolicy);
+        this.eventTtlMs = eventTtlMs;
+    }
+
+    /**
+     * Create a InMemoryEventStore object limited by the number and the total estimated byte size of its events.
+     * @param bufferCapacity the maximum number of events to buffer at once
+     * @param maxBytes the maximum total estimated byte size of the events to buffer at once
+     * @param overflowPolicy chooses which event is dropped when the buffer is full
+     */
+    public InMemoryEventStore(int bufferCapacity, long maxBytes, OverflowPolicy overflowPolicy) {
+        this(bufferCapacity, maxBytes, overflowPolicy, 0);
+    }
+
+    /**
+     * Create a InMemoryEventStore object with custom queue capacity and overflow policy.
+     * @param bufferCapacity the maximum number of events to buffer at once
+     * @param overflowPolicy chooses which event is dropped when the buffer is full
+     */
+    public InMemoryEventStore(int bufferCapacity, OverflowPolicy overflowPolicy) {
+        this(bufferCapacity, Long.MAX_VALUE, overflowPolicy);
+    }
 
     /**
      * Create a InMemoryEventStore object with custom queue capacity. The default is 10 000 events.
      * @param bufferCapacity the maximum number of events to buffer at once
      */
     public InMemoryEventStore(int bufferCapacity) {
-        eventBuffer = new LinkedBlockingDeque<>(bufferCapacity);
+        this(bufferCapacity, OverflowPolicy.DROP_NEWEST);
     }
 
     /**
@@ -56,7 +117,7 @@ public class InMemoryEventStore implements EventStore {
     }
 
     /**
-     * Add TrackerPayload to buffer. Returns false if the buffer was full.
+     * Add TrackerPayload to buffer. Returns false if the buffer was full, by number of events or by size.
      * Note that the event is lost in this case.
      *
      * @param trackerPayload the payload to add
@@ -64,7 +125,26 @@ public class InMemoryEventStore implements EventStore {
      */
     @Override
     public boolean addEvent(TrackerPayload trackerPayload) {
-        return eventBuffer.offer(trackerPayload);
+        return insert(trackerPayload, false);
+    }
+
+    /**
+     * Add TrackerPayload to buffer. If the buffer is full, the overflow policy chooses whether to drop it
+     * or to delete buffered events to make space for it.
+     *
+     * @param trackerPayload the payload to add
+     * @return the dropped events, including the given payload if it was not added
+     */
+    @Override
+    public List<TrackerPayload> addEventOrDrop(TrackerPayload trackerPayload) {
+        if (addEvent(trackerPayload)) {
+            return Collections.emptyList();
+        }
+        List<TrackerPayload> droppedEvents = new ArrayList<>(1);
+        synchronized (eventBuffer) {
+            addOrDrop(trackerPayload, false, droppedEvents);
+        }
+        return droppedEvents;
     }
 
     /**
@@ -79,10 +159,12 @@ public class InMemoryEventStore implements EventStore {
         List<TrackerPayload> eventsToSend = new ArrayList<>();
 
         synchronized (eventBuffer) {
+            expireHead();
             if (eventBuffer.size() < numberToGet) {
                 return null;
             }
             eventBuffer.drainTo(eventsToSend, numberToGet);
+            releaseBytes(eventsToSend);
         }
 
         // The batch of events is wrapped as a BatchPayload
@@ -92,6 +174,46 @@ public class InMemoryEventStore implements EventStore {
         return batchedEvents;
     }
 
+    /**
+     * Remove some TrackerPayloads from the buffer, stopping early if adding the next payload would make
+     * the batch larger than maxBytes. The batch contains at least one payload.
+     * As with {@link #getEventsBatch(int)}, no batch is returned if fewer than numberToGet payloads are buffered.
+     *
+     * @param numberToGet how many payloads to get
+     * @param maxBytes the maximum total estimated byte size of the payloads
+     * @return a BatchPayload wrapper, or null
+     */
+    @Override
+    public BatchPayload getEventsBatch(int numberToGet, long maxBytes) {
+        List<TrackerPayload> eventsToSend = new ArrayList<>();
+        long batchBytes = 0;
+
+        synchronized (eventBuffer) {
+            expireHead();
+            if (eventBuffer.size() < numberToGet) {
+                return null;
+            }
+            while (eventsToSend.size() < numberToGet) {
+                TrackerPayload payload = eventBuffer.peekFirst();
+                if (payload == null) {
+                    break;
+                }
+                if (!eventsToSend.isEmpty() && batchBytes + payload.getEstimatedByteSize() > maxBytes) {
+                    break;
+                }
+                // Events returned for retry may have been inserted at the head since peeking
+                payload = eventBuffer.pollFirst();
+                eventsToSend.add(payload);
+                batchBytes += payload.getEstimatedByteSize();
+            }
+            releaseBytes(eventsToSend);
+        }
+
+        BatchPayload batchedEvents = new BatchPayload(batchId.getAndIncrement(), eventsToSend);
+        eventsBeingSent.put(batchedEvents.getBatchId(), batchedEvents.getPayloads());
+        return batchedEvents;
+    }
+
     /**
      * Finish processing events after a request has been made. If the request was successful,
      * the events are deleted from the InMemoryEventStore. If not, they are reinserted at the beginning
@@ -99,7 +221,8 @@ public class InMemoryEventStore implements EventStore {
      *
      * @param needRetry if true, move events back to the buffer instead of deleting
      * @param batchId the ID of the batch of events
-     * @return newer TrackerPayloads deleted from the queue to make space for older payloads
+     * @return TrackerPayloads dropped by the overflow policy: by default, newer payloads deleted
+     * from the queue to make space for older payloads
      */
     @Override
     public List<TrackerPayload> cleanupAfterSendingAttempt(boolean needRetry, long batchId) {
@@ -112,11 +235,11 @@ public class InMemoryEventStore implements EventStore {
         if (needRetry) {
             while (events.size() > 0) {
                 TrackerPayload payloadToReinsert = events.remove(0);
-                boolean result = eventBuffer.offerFirst(payloadToReinsert);
+                boolean result = insert(payloadToReinsert, true);
                 if (!result) {
-                    LOGGER.error("Event buffer is full. Dropping newer payload to reinsert older payload");
-                    removedEvents.add(eventBuffer.removeLast());
-                    eventBuffer.offerFirst(payloadToReinsert);
+                    synchronized (eventBuffer) {
+                        addOrDrop(payloadToReinsert, true, removedEvents);
+                    }
                 }
             }
         }
@@ -145,4 +268,150 @@ public class InMemoryEventStore implements EventStore {
     public int size() {
         return eventBuffer.size();
     }
+
+    /**
+     * Get how long after their device created timestamp events expire.
+     *
+     * @return the event time-to-live in milliseconds, or 0 if events never expire
+     */
+    public long getEventTtlMs() {
+        return eventTtlMs;
+    }
+
+    /**
+     * Get the current total estimated byte size of the buffer. This does not include any events
+     * currently being sent by the BatchEmitter.
+     *
+     * @return estimated byte size of the events currently in the buffer
+     */
+    public long getBufferedBytes() {
+        return bufferedBytes.get();
+    }
+
+    /**
+     * Remove the buffered events created before the given time, together with the events that expired
+     * while taking batches since the last call.
+     *
+     * @param createdBefore the device created timestamp, in milliseconds, before which events are expired
+     * @return the removed events
+     */
+    @Override
+    public List<TrackerPayload> removeExpiredEvents(long createdBefore) {
+        synchronized (eventBuffer) {
+            Iterator<TrackerPayload> iterator = eventBuffer.iterator();
+            while (iterator.hasNext()) {
+                TrackerPayload payload = iterator.next();
+                if (isCreatedBefore(payload, createdBefore)) {
+                    iterator.remove();
+                    bufferedBytes.addAndGet(-payload.getEstimatedByteSize());
+                    expiredEvents.add(payload);
+                }
+            }
+        }
+
+        List<TrackerPayload> removed = new ArrayList<>();
+        TrackerPayload payload;
+        while ((payload = expiredEvents.poll()) != null) {
+            removed.add(payload);
+        }
+        return removed;
+    }
+
+    /**
+     * Get the number of events dropped by the overflow policy because the buffer was full,
+     * whether they were rejected or deleted from the buffer.
+     *
+     * @return the number of dropped events
+     */
+    public long getOverflowDropCount() {
+        return overflowDropCount.get();
+    }
+
+    /**
+     * Adds a payload to the tail of the queue, or to the head if it is being retried,
+     * deleting the events chosen by the overflow policy until there is space, or dropping the payload itself.
+     * Must be called while synchronized on the eventBuffer, so that other events are not taken meanwhile.
+     */
+    private void addOrDrop(TrackerPayload payload, boolean retrying, List<TrackerPayload> droppedEvents) {
+        while (!(retrying ? insert(payload, true) : addEvent(payload))) {
+            // Deleting other events would not make space for an event larger than the whole buffer
+            TrackerPayload eventToDrop = payload.getEstimatedByteSize() > maxBytes
+                    ? payload
+                    : overflowPolicy.selectEventToDrop(eventBuffer, payload, retrying);
+            boolean removed = eventToDrop != null && eventToDrop != payload && (eventToDrop == eventBuffer.peekLast()
+                    ? eventBuffer.removeLastOccurrence(eventToDrop)
+                    : eventBuffer.removeFirstOccurrence(eventToDrop));
+            if (!removed) {
+                droppedEvents.add(payload);
+                overflowDropCount.incrementAndGet();
+                return;
+            }
+
+            LOGGER.error("Event buffer is full. Dropping a buffered payload to make space for another");
+            bufferedBytes.addAndGet(-eventToDrop.getEstimatedByteSize());
+            droppedEvents.add(eventToDrop);
+            overflowDropCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Deletes the expired events at the head of the queue, keeping them to be returned by removeExpiredEvents.
+     * The head holds the oldest events, so this avoids sending most expired events without scanning the queue.
+     * Must be called while synchronized on the eventBuffer.
+     */
+    private void expireHead() {
+        if (eventTtlMs == 0) {
+            return;
+        }
+        long createdBefore = System.currentTimeMillis() - eventTtlMs;
+        TrackerPayload payload;
+        while ((payload = eventBuffer.peekFirst()) != null && isCreatedBefore(payload, createdBefore)) {
+            eventBuffer.pollFirst();
+            bufferedBytes.addAndGet(-payload.getEstimatedByteSize());
+            expiredEvents.add(payload);
+        }
+    }
+
+    private static boolean isCreatedBefore(TrackerPayload payload, long createdBefore) {
+        Long deviceCreatedTimestamp = payload.getDeviceCreatedTimestamp();
+        return deviceCreatedTimestamp != null && deviceCreatedTimestamp < createdBefore;
+    }
+
+    /**
+     * Adds a payload to the tail of the queue, or to the head, if there is space for both its count and its size.
+     */
+    private boolean insert(TrackerPayload payload, boolean first) {
+        long payloadBytes = payload.getEstimatedByteSize();
+        if (!reserveBytes(payloadBytes)) {
+            return false;
+        }
+        if (first ? eventBuffer.offerFirst(payload) : eventBuffer.offerLast(payload)) {
+            return true;
+        }
+        bufferedBytes.addAndGet(-payloadBytes);
+        return false;
+    }
+
+    private boolean reserveBytes(long payloadBytes) {
+        if (maxBytes == Long.MAX_VALUE) {
+            bufferedBytes.addAndGet(payloadBytes);
+            return true;
+        }
+        long current;
+        do {
+            current = bufferedBytes.get();
+            if (current + payloadBytes > maxBytes) {
+                return false;
+            }
+        } while (!bufferedBytes.compareAndSet(current, current + payloadBytes));
+        return true;
+    }
+
+    private void releaseBytes(List<TrackerPayload> payloads) {
+        long payloadBytes = 0;
+        for (TrackerPayload payload : payloads) {
+            payloadBytes += payload.getEstimatedByteSize();
+        }
+        bufferedBytes.addAndGet(-payloadBytes);
+    }
 }
@@ -0,0 +1,453 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.emitter;
+
+import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Wraps another EventStore, such as an {@link InMemoryEventStore}, recording the batches of events being sent
+ * in a journal file, so that a batch is not lost if the process dies before the result of its request is known.
+ *
+ * When a batch is taken from the wrapped store, a lease record with its events is appended to the journal.
+ * When {@link #cleanupAfterSendingAttempt(boolean, long)} is called, a record resolving the lease is appended.
+ * Each record is a single append with a CRC32 checksum; the journal is not forced to disk for every record,
+ * so records survive the process being killed, but not a power failure. Once the journal is mostly resolved
+ * leases, it is compacted: the open leases are written to a new file, which replaces the journal.
+ *
+ * On startup, the events of leases left open are buffered again, and sent first, in their original batches.
+ * Their leases stay open until they are sent, so delivery is at-least-once. Events waiting in the wrapped
+ * store are only as durable as that store.
+ *
+ * Call {@link #close()} when the store is no longer used.
+ */
+public class JournaledEventStore implements EventStore, Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JournaledEventStore.class);
+    private static final long DEFAULT_COMPACTION_THRESHOLD_BYTES = 4L * 1024 * 1024;
+
+    // Each record starts with the length of its body and its checksum
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final byte LEASE = 1;
+    private static final byte RESOLVE = 2;
+
+    private final EventStore delegate;
+    private final Path journalFile;
+    private final long compactionThresholdBytes;
+    private final AtomicLong batchId = new AtomicLong(1);
+
+    // Guarded by this
+    private FileChannel journal;
+    private long journalBytes;
+    // The bytes of the open lease records, which compaction keeps
+    private long openLeaseBytes;
+    private final Map<Long, Lease> leases = new LinkedHashMap<>();
+    private final ArrayDeque<Lease> recoveredLeases = new ArrayDeque<>();
+    private int recoveredCount;
+
+    /**
+     * A batch of events being sent, or recovered from the journal to be sent again.
+     */
+    private static class Lease {
+        private final long batchId;
+        private final List<TrackerPayload> payloads;
+        private final int recordBytes;
+        // The ID of the batch in the wrapped store, or null if the lease was recovered
+        private final Long delegateBatchId;
+
+        Lease(long batchId, List<TrackerPayload> payloads, int recordBytes, Long delegateBatchId) {
+            this.batchId = batchId;
+            this.payloads = payloads;
+            this.recordBytes = recordBytes;
+            this.delegateBatchId = delegateBatchId;
+        }
+    }
+
+    /**
+     * Creates a JournaledEventStore, compacting the journal once it is larger than 4 MB.
+     *
+     * @param delegate the EventStore buffering the events
+     * @param journalFile the journal file, which is created if needed
+     * @throws UncheckedIOException if the journal can't be used
+     */
+    public JournaledEventStore(EventStore delegate, Path journalFile) {
+        this(delegate, journalFile, DEFAULT_COMPACTION_THRESHOLD_BYTES);
+    }
+
+    /**
+     * Creates a JournaledEventStore. Leases left open in an existing journal are recovered, to be sent first.
+     *
+     * @param delegate the EventStore buffering the events
+     * @param journalFile the journal file, which is created if needed
+     * @param compactionThresholdBytes the journal size above which it is compacted, once mostly resolved
+     * @throws UncheckedIOException if the journal can't be used
+     */
+    public JournaledEventStore(EventStore delegate, Path journalFile, long compactionThresholdBytes) {
+        this.delegate = Objects.requireNonNull(delegate);
+        this.journalFile = journalFile;
+        this.compactionThresholdBytes = compactionThresholdBytes;
+
+        try {
+            if (Files.exists(journalFile)) {
+                recover(ByteBuffer.wrap(Files.readAllBytes(journalFile)));
+            }
+            // Drops resolved leases and any torn record at the end
+            synchronized (this) {
+                compact();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open event journal " + journalFile, e);
+        }
+    }
+
+    /**
+     * Add TrackerPayload to the wrapped store.
+     *
+     * @param trackerPayload the payload to add
+     * @return success or not
+     */
+    @Override
+    public boolean addEvent(TrackerPayload trackerPayload) {
+        return delegate.addEvent(trackerPayload);
+    }
+
+    /**
+     * Add TrackerPayload to the wrapped store, which may drop events if it is full.
+     *
+     * @param trackerPayload the payload to add
+     * @return the dropped events, including the given payload if it was not added
+     */
+    @Override
+    public List<TrackerPayload> addEventOrDrop(TrackerPayload trackerPayload) {
+        return delegate.addEventOrDrop(trackerPayload);
+    }
+
+    /**
+     * Take a batch of TrackerPayloads to send, recording its lease in the journal.
+     * Recovered batches are returned first, whatever their size.
+     *
+     * @param numberToGet how many payloads to get
+     * @return a BatchPayload wrapper, or null
+     */
+    @Override
+    public BatchPayload getEventsBatch(int numberToGet) {
+        return getEventsBatch(numberToGet, Long.MAX_VALUE);
+    }
+
+    /**
+     * Take a batch of TrackerPayloads to send, limited by count and byte size, recording its lease
+     * in the journal. Recovered batches are returned first, whatever their size.
+     *
+     * @param numberToGet how many payloads to get
+     * @param maxBytes the maximum total estimated byte size of the payloads
+     * @return a BatchPayload wrapper, or null
+     */
+    @Override
+    public synchronized BatchPayload getEventsBatch(int numberToGet, long maxBytes) {
+        Lease recovered = recoveredLeases.pollFirst();
+        if (recovered != null) {
+            recoveredCount -= recovered.payloads.size();
+            leases.put(recovered.batchId, recovered);
+            return new BatchPayload(recovered.batchId, recovered.payloads);
+        }
+
+        BatchPayload delegateBatch = delegate.getEventsBatch(numberToGet, maxBytes);
+        if (delegateBatch == null) {
+            return null;
+        }
+        long id = batchId.getAndIncrement();
+        List<TrackerPayload> payloads = delegateBatch.getPayloads();
+        ByteBuffer record = encodeLease(id, payloads);
+        Lease lease = new Lease(id, payloads, record.remaining(), delegateBatch.getBatchId());
+        append(record);
+        openLeaseBytes += lease.recordBytes;
+        leases.put(id, lease);
+        return new BatchPayload(id, payloads);
+    }
+
+    /**
+     * Finish processing events after a request has been made, resolving the lease in the journal.
+     * Events from the wrapped store are returned to it for retry; a recovered batch to retry stays leased,
+     * and is returned again by the next call to {@link #getEventsBatch(int)}.
+     *
+     * @param needRetry if another attempt should be made to send the events
+     * @param batchId the ID of the batch of events
+     * @return events dropped by the wrapped store to make space for the events to retry
+     */
+    @Override
+    public synchronized List<TrackerPayload> cleanupAfterSendingAttempt(boolean needRetry, long batchId) {
+        Lease lease = leases.remove(batchId);
+        if (lease == null) {
+            return Collections.emptyList();
+        }
+        if (needRetry && lease.delegateBatchId == null) {
+            recoveredLeases.addFirst(lease);
+            recoveredCount += lease.payloads.size();
+            return Collections.emptyList();
+        }
+
+        append(encodeResolve(batchId));
+        openLeaseBytes -= lease.recordBytes;
+        if (journalBytes > compactionThresholdBytes && journalBytes > 2 * openLeaseBytes) {
+            try {
+                compact();
+            } catch (IOException e) {
+                LOGGER.error("Unable to compact event journal: {}", e.getMessage());
+            }
+        }
+        if (lease.delegateBatchId == null) {
+            return Collections.emptyList();
+        }
+        return delegate.cleanupAfterSendingAttempt(needRetry, lease.delegateBatchId);
+    }
+
+    /**
+     * Remove the events created before the given time from the recovered batches and from the wrapped store,
+     * based on their device created timestamp. The lease of a recovered batch whose events have all expired
+     * is resolved in the journal. This does not include any events currently being sent.
+     *
+     * @param createdBefore the device created timestamp, in milliseconds, before which events are expired
+     * @return the removed events, from recovered batches then from the wrapped store
+     */
+    @Override
+    public synchronized List<TrackerPayload> removeExpiredEvents(long createdBefore) {
+        List<TrackerPayload> expiredEvents = new ArrayList<>();
+        ArrayDeque<Lease> keptLeases = new ArrayDeque<>();
+        for (Lease lease : recoveredLeases) {
+            List<TrackerPayload> keptPayloads = new ArrayList<>();
+            for (TrackerPayload payload : lease.payloads) {
+                Long deviceCreatedTimestamp = payload.getDeviceCreatedTimestamp();
+                if (deviceCreatedTimestamp != null && deviceCreatedTimestamp < createdBefore) {
+                    expiredEvents.add(payload);
+                } else {
+                    keptPayloads.add(payload);
+                }
+            }
+
+            if (keptPayloads.size() == lease.payloads.size()) {
+                keptLeases.addLast(lease);
+            } else if (!keptPayloads.isEmpty()) {
+                keptLeases.addLast(new Lease(lease.batchId, keptPayloads, lease.recordBytes, null));
+            } else {
+                append(encodeResolve(lease.batchId));
+                openLeaseBytes -= lease.recordBytes;
+            }
+        }
+        if (!expiredEvents.isEmpty()) {
+            recoveredLeases.clear();
+            recoveredLeases.addAll(keptLeases);
+            recoveredCount -= expiredEvents.size();
+        }
+
+        expiredEvents.addAll(delegate.removeExpiredEvents(createdBefore));
+        return expiredEvents;
+    }
+
+    /**
+     * Get a copy of all the buffered TrackerPayloads: recovered batches, then the wrapped store's events.
+     *
+     * @return List of all the stored events
+     */
+    @Override
+    public synchronized List<TrackerPayload> getAllEvents() {
+        List<TrackerPayload> events = new ArrayList<>();
+        for (Lease lease : recoveredLeases) {
+            events.addAll(lease.payloads);
+        }
+        events.addAll(delegate.getAllEvents());
+        return events;
+    }
+
+    /**
+     * Get the current size of the buffer, including recovered batches waiting to be sent again.
+     *
+     * @return number of events currently in the buffer
+     */
+    @Override
+    public synchronized int size() {
+        return recoveredCount + delegate.size();
+    }
+
+    /**
+     * Get the current size of the journal file.
+     *
+     * @return the journal size in bytes
+     */
+    public synchronized long getJournalBytes() {
+        return journalBytes;
+    }
+
+    /**
+     * Forces the journal to disk and closes it. Open leases will be recovered by the next
+     * JournaledEventStore using the same journal file.
+     */
+    @Override
+    public synchronized void close() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.force(false);
+            journal.close();
+        } catch (IOException e) {
+            LOGGER.error("Unable to close event journal: {}", e.getMessage());
+        }
+        journal = null;
+    }
+
+    /**
+     * Reads the leases left open in the journal, stopping at the first torn or corrupt record.
+     */
+    private void recover(ByteBuffer buffer) {
+        Map<Long, Lease> openLeases = new LinkedHashMap<>();
+        long maxBatchId = 0;
+        CRC32 checksum = new CRC32();
+
+        while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+            int length = buffer.getInt();
+            int expectedChecksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                break;
+            }
+            checksum.reset();
+            checksum.update(buffer.array(), buffer.position(), length);
+            if ((int) checksum.getValue() != expectedChecksum) {
+                break;
+            }
+            ByteBuffer body = (ByteBuffer) buffer.slice().limit(length);
+            buffer.position(buffer.position() + length);
+
+            try {
+                byte type = body.get();
+                long id = body.getLong();
+                maxBatchId = Math.max(maxBatchId, id);
+                if (type == LEASE) {
+                    int count = body.getInt();
+                    List<TrackerPayload> payloads = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        payloads.add(PayloadCodec.decode(body));
+                    }
+                    openLeases.put(id, new Lease(id, payloads, RECORD_HEADER_BYTES + length, null));
+                } else if (type == RESOLVE) {
+                    openLeases.remove(id);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.error("Invalid event journal record: {}", e.getMessage());
+                break;
+            }
+        }
+
+        batchId.set(maxBatchId + 1);
+        for (Lease lease : openLeases.values()) {
+            recoveredLeases.addLast(lease);
+            recoveredCount += lease.payloads.size();
+            openLeaseBytes += lease.recordBytes;
+        }
+        if (!openLeases.isEmpty()) {
+            LOGGER.info("Recovered {} events being sent from the event journal", recoveredCount);
+        }
+    }
+
+    /**
+     * Replaces the journal with one holding only the open leases, recovered or being sent.
+     * Must be called while synchronized on this store.
+     */
+    private void compact() throws IOException {
+        Path compacted = journalFile.resolveSibling(journalFile.getFileName() + ".compact");
+        long bytes = 0;
+        try (FileChannel channel = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            List<Lease> openLeases = new ArrayList<>(recoveredLeases);
+            openLeases.addAll(leases.values());
+            for (Lease lease : openLeases) {
+                ByteBuffer record = encodeLease(lease.batchId, lease.payloads);
+                while (record.hasRemaining()) {
+                    bytes += channel.write(record);
+                }
+            }
+            channel.force(false);
+        }
+
+        if (journal != null) {
+            journal.close();
+        }
+        Files.move(compacted, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journal = FileChannel.open(journalFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        journalBytes = bytes;
+    }
+
+    /**
+     * Appends a record to the journal. A failed write is logged, as the events can still be sent.
+     * Must be called while synchronized on this store.
+     */
+    private void append(ByteBuffer record) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            while (record.hasRemaining()) {
+                journalBytes += journal.write(record);
+            }
+        } catch (IOException e) {
+            LOGGER.error("Unable to write to event journal: {}", e.getMessage());
+        }
+    }
+
+    private static ByteBuffer encodeLease(long id, List<TrackerPayload> payloads) {
+        List<byte[]> encodedPayloads = new ArrayList<>(payloads.size());
+        int length = 1 + 8 + 4;
+        for (TrackerPayload payload : payloads) {
+            byte[] encoded = PayloadCodec.encode(payload);
+            encodedPayloads.add(encoded);
+            length += encoded.length;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + length);
+        record.position(RECORD_HEADER_BYTES);
+        record.put(LEASE).putLong(id).putInt(payloads.size());
+        for (byte[] encoded : encodedPayloads) {
+            record.put(encoded);
+        }
+        return withHeader(record, length);
+    }
+
+    private static ByteBuffer encodeResolve(long id) {
+        int length = 1 + 8;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + length);
+        record.position(RECORD_HEADER_BYTES);
+        record.put(RESOLVE).putLong(id);
+        return withHeader(record, length);
+    }
+
+    private static ByteBuffer withHeader(ByteBuffer record, int length) {
+        CRC32 checksum = new CRC32();
+        checksum.update(record.array(), RECORD_HEADER_BYTES, length);
+        record.putInt(0, length);
+        record.putInt(4, (int) checksum.getValue());
+        record.position(0);
+        return record;
+    }
+}
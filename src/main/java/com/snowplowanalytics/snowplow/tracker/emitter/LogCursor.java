@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.emitter;
+
+import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Keeps track of which records of a log of serialized events are unread, being sent, or waiting to be
+ * read again, for the EventStores which keep events serialized: {@link OffHeapEventStore} and
+ * {@link SegmentLogEventStore}.
+ *
+ * Records are addressed by their position in the log, which only ever increases. Each record starts with
+ * its length, the estimated byte size of its payload and its device created timestamp, so that a batch stops
+ * at its byte limit and expired records are found without decoding the payloads. The stores may add their own
+ * fields to the header after these. Taking a batch records its range as a lease. Once its request is done,
+ * the lease is either acknowledged, or its range is queued to be read again ahead of the unread records.
+ *
+ * Not thread-safe: the stores call it while holding their own lock.
+ */
+final class LogCursor {
+    // Each record starts with its length, the estimated byte size of its payload, and its device created timestamp
+    static final int LENGTH_OFFSET = 0;
+    static final int ESTIMATED_SIZE_OFFSET = 4;
+    static final int CREATED_TIMESTAMP_OFFSET = 8;
+    static final int HEADER_BYTES = 16;
+    // Marks the unused end of a buffer when the next record didn't fit
+    static final int PADDING = -1;
+
+    /**
+     * Locates the records of a log in the store's buffers.
+     */
+    interface Records {
+
+        /**
+         * Moves a position at the unused end of a buffer to the start of the next buffer.
+         *
+         * @param position a position in the log
+         * @return the position of the next record
+         */
+        long skipPadding(long position);
+
+        /**
+         * Returns the buffer holding the record at a position.
+         *
+         * @param position the position of the record
+         * @return the buffer
+         */
+        ByteBuffer buffer(long position);
+
+        /**
+         * Returns the index in its buffer of the record at a position.
+         *
+         * @param position the position of the record
+         * @return the index
+         */
+        int index(long position);
+    }
+
+    /**
+     * A run of consecutive records in the log.
+     */
+    private static class Range {
+        private long start;
+        private int count;
+
+        Range(long start, int count) {
+            this.start = start;
+            this.count = count;
+        }
+    }
+
+    private final Records records;
+    private final int headerBytes;
+    private final ArrayDeque<Range> retryRanges = new ArrayDeque<>();
+    private final Map<Long, Range> leases = new HashMap<>();
+    private long batchId = 1;
+
+    private long writePosition;
+    private long readPosition;
+    private int unreadCount;
+    private int retryCount;
+
+    /**
+     * Creates a cursor at the start of an empty log.
+     *
+     * @param records locates the records
+     * @param headerBytes the size of the record header, at least {@link #HEADER_BYTES}
+     */
+    LogCursor(Records records, int headerBytes) {
+        this.records = records;
+        this.headerBytes = headerBytes;
+    }
+
+    /**
+     * Writes the header fields of a record, except its length. The length is written last by the store,
+     * once the record is complete.
+     *
+     * @param buffer the buffer to write to
+     * @param index the index of the record in the buffer
+     * @param payload the payload of the record
+     */
+    static void putHeader(ByteBuffer buffer, int index, TrackerPayload payload) {
+        buffer.putInt(index + ESTIMATED_SIZE_OFFSET, (int) Math.min(payload.getEstimatedByteSize(), Integer.MAX_VALUE));
+        // Events without a timestamp never expire
+        Long deviceCreatedTimestamp = payload.getDeviceCreatedTimestamp();
+        buffer.putLong(index + CREATED_TIMESTAMP_OFFSET,
+                deviceCreatedTimestamp != null ? deviceCreatedTimestamp : Long.MAX_VALUE);
+    }
+
+    /**
+     * Moves the cursor to an existing log, with all its records unread.
+     *
+     * @param readPosition the position of the first record
+     * @param writePosition the position after the last record
+     * @param unreadCount the number of records
+     */
+    void reset(long readPosition, long writePosition, int unreadCount) {
+        this.readPosition = readPosition;
+        this.writePosition = writePosition;
+        this.unreadCount = unreadCount;
+    }
+
+    long getWritePosition() {
+        return writePosition;
+    }
+
+    /**
+     * Records that a record was written, ending at the given position.
+     *
+     * @param endPosition the position after the new record
+     */
+    void appended(long endPosition) {
+        writePosition = endPosition;
+        unreadCount++;
+    }
+
+    /**
+     * Returns the number of records which are unread or waiting to be read again.
+     *
+     * @return the number of records
+     */
+    int size() {
+        return unreadCount + retryCount;
+    }
+
+    /**
+     * Reads a batch of records, the records to read again first, and leases them.
+     * The batch stops early if adding the next payload would make it larger than maxBytes,
+     * or at the end of a range to read again. It contains at least one payload.
+     *
+     * @param numberToGet how many payloads to get
+     * @param maxBytes the maximum total estimated byte size of the payloads
+     * @return the batch, or null if fewer than numberToGet records are buffered
+     */
+    BatchPayload takeBatch(int numberToGet, long maxBytes) {
+        if (size() < numberToGet || numberToGet <= 0) {
+            return null;
+        }
+
+        List<TrackerPayload> eventsToSend = new ArrayList<>();
+        Range retryRange = retryRanges.peekFirst();
+        long start = retryRange != null ? retryRange.start : readPosition;
+        int available = retryRange != null ? retryRange.count : unreadCount;
+
+        long position = read(start, Math.min(numberToGet, available), maxBytes, eventsToSend);
+        int taken = eventsToSend.size();
+
+        if (retryRange != null) {
+            retryRange.start = position;
+            retryRange.count -= taken;
+            retryCount -= taken;
+            if (retryRange.count == 0) {
+                retryRanges.pollFirst();
+            }
+        } else {
+            readPosition = position;
+            unreadCount -= taken;
+        }
+
+        BatchPayload batchedEvents = new BatchPayload(batchId++, eventsToSend);
+        leases.put(batchedEvents.getBatchId(), new Range(start, taken));
+        return batchedEvents;
+    }
+
+    /**
+     * Ends the lease of a batch: either its records are acknowledged, or they are queued
+     * to be read again, ahead of the unread records.
+     *
+     * @param batchId the ID of the batch
+     * @param needRetry whether to read the records again
+     * @return true if the records were acknowledged, so the store may reclaim their space
+     */
+    boolean endLease(long batchId, boolean needRetry) {
+        Range lease = leases.remove(batchId);
+        if (lease == null) {
+            return false;
+        }
+        if (needRetry) {
+            retryRanges.offerFirst(lease);
+            retryCount += lease.count;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads all the records which are unread or waiting to be read again, without leasing them.
+     *
+     * @return the payloads
+     */
+    List<TrackerPayload> readAll() {
+        List<TrackerPayload> events = new ArrayList<>();
+        for (Range range : retryRanges) {
+            read(range.start, range.count, Long.MAX_VALUE, events);
+        }
+        read(readPosition, unreadCount, Long.MAX_VALUE, events);
+        return events;
+    }
+
+    /**
+     * Removes the records created before the given time, wherever they are among the records which are unread
+     * or waiting to be read again. Only the expired records are decoded. The records around them are split
+     * into ranges, which keep their order; unread records before the last expired one are read as ranges.
+     *
+     * @param createdBefore the device created timestamp before which records are expired
+     * @return the payloads of the removed records
+     */
+    List<TrackerPayload> removeCreatedBefore(long createdBefore) {
+        List<TrackerPayload> expired = new ArrayList<>();
+        ArrayDeque<Range> keptRetryRanges = new ArrayDeque<>();
+        for (Range range : retryRanges) {
+            split(range.start, range.count, createdBefore, keptRetryRanges, expired);
+        }
+        int expiredRetryCount = expired.size();
+        if (expiredRetryCount > 0) {
+            retryRanges.clear();
+            retryRanges.addAll(keptRetryRanges);
+            retryCount -= expiredRetryCount;
+        }
+
+        ArrayDeque<Range> keptUnread = new ArrayDeque<>();
+        long lastExpiredEnd = split(readPosition, unreadCount, createdBefore, keptUnread, expired);
+        if (lastExpiredEnd >= 0) {
+            Range tail = keptUnread.peekLast();
+            if (tail != null && tail.start >= lastExpiredEnd) {
+                keptUnread.pollLast();
+                readPosition = tail.start;
+                unreadCount = tail.count;
+            } else {
+                readPosition = lastExpiredEnd;
+                unreadCount = 0;
+            }
+            for (Range range : keptUnread) {
+                retryRanges.addLast(range);
+                retryCount += range.count;
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Returns the position of the oldest record which has not been acknowledged.
+     * The space before it is no longer needed.
+     *
+     * @return the position
+     */
+    long oldestUnacknowledgedPosition() {
+        long position = unreadCount > 0 ? readPosition : writePosition;
+        for (Range range : retryRanges) {
+            position = Math.min(position, range.start);
+        }
+        for (Range range : leases.values()) {
+            position = Math.min(position, range.start);
+        }
+        return position;
+    }
+
+    /**
+     * Decodes consecutive records, stopping at the count or byte limit.
+     * The byte limit is checked against the header, before the payload is decoded.
+     *
+     * @return the position after the last record read
+     */
+    private long read(long position, int count, long maxBytes, List<TrackerPayload> events) {
+        long batchBytes = 0;
+        for (int read = 0; read < count; read++) {
+            position = records.skipPadding(position);
+            ByteBuffer buffer = records.buffer(position);
+            int index = records.index(position);
+            int length = buffer.getInt(index + LENGTH_OFFSET);
+            int estimatedSize = buffer.getInt(index + ESTIMATED_SIZE_OFFSET);
+            if (read > 0 && batchBytes + estimatedSize > maxBytes) {
+                break;
+            }
+
+            events.add(decode(buffer, index, length));
+            batchBytes += estimatedSize;
+            position += headerBytes + length;
+        }
+        return position;
+    }
+
+    /**
+     * Splits consecutive records into the ranges of records created at or after the given time,
+     * decoding the others.
+     *
+     * @return the position after the last expired record, or -1 if none expired
+     */
+    private long split(long position, int count, long createdBefore, Deque<Range> kept, List<TrackerPayload> expired) {
+        long lastExpiredEnd = -1;
+        Range current = null;
+        for (int i = 0; i < count; i++) {
+            position = records.skipPadding(position);
+            ByteBuffer buffer = records.buffer(position);
+            int index = records.index(position);
+            int length = buffer.getInt(index + LENGTH_OFFSET);
+            long end = position + headerBytes + length;
+
+            if (buffer.getLong(index + CREATED_TIMESTAMP_OFFSET) < createdBefore) {
+                expired.add(decode(buffer, index, length));
+                lastExpiredEnd = end;
+                current = null;
+            } else if (current == null) {
+                current = new Range(position, 1);
+                kept.addLast(current);
+            } else {
+                current.count++;
+            }
+            position = end;
+        }
+        return lastExpiredEnd;
+    }
+
+    private TrackerPayload decode(ByteBuffer buffer, int index, int length) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(index + headerBytes);
+        record.limit(index + headerBytes + length);
+        return PayloadCodec.decode(record);
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.emitter;
+
+import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Buffers events (as TrackerPayloads) in memory in a lock-free ring buffer, for sending via the BatchEmitter.
+ *
+ * Tracking threads add events without taking any lock: each claims a slot in the ring with a single
+ * compare-and-set, then publishes its payload into it. Taking batches is serialized by a lock that only the
+ * BatchEmitter's threads take, so it never blocks tracking threads. A batch is drained from the ring in one pass.
+ *
+ * Events to retry are not copied back into the ring: their batch is queued as a whole, in constant time,
+ * and taken again ahead of newer events. Unlike {@link InMemoryEventStore}, no newer events are deleted to
+ * make space for them, so while requests are failing the store can briefly hold more than its capacity.
+ *
+ * Removing expired events compacts the ring under the same lock: the events that are kept move towards the
+ * newest end, in order, and the slots freed at the oldest end are released to the tracking threads.
+ */
+public class MpscEventStore implements EventStore {
+    private static final int DEFAULT_BUFFER_SIZE = 10000;
+    private final AtomicLong batchId = new AtomicLong(1);
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<TrackerPayload> ring;
+    // The next slot to claim, and the next slot to drain. Slots are the index modulo the ring size
+    private final AtomicLong producerIndex = new AtomicLong(0);
+    private final AtomicLong consumerIndex = new AtomicLong(0);
+
+    private final Object consumerLock = new Object();
+    private final ArrayDeque<RetryBatch> retryBatches = new ArrayDeque<>();
+    private final AtomicInteger retryCount = new AtomicInteger(0);
+    private final ConcurrentHashMap<Long, List<TrackerPayload>> eventsBeingSent = new ConcurrentHashMap<>();
+
+    /**
+     * The events of a failed batch, which are taken again from the head.
+     */
+    private static class RetryBatch {
+        private final List<TrackerPayload> events;
+        private int next = 0;
+
+        RetryBatch(List<TrackerPayload> events) {
+            this.events = events;
+        }
+    }
+
+    /**
+     * Create a MpscEventStore object with custom capacity. The default is 10 000 events.
+     * @param bufferCapacity the maximum number of events to buffer at once
+     */
+    public MpscEventStore(int bufferCapacity) {
+        if (bufferCapacity <= 0 || bufferCapacity > (1 << 30)) {
+            throw new IllegalArgumentException("bufferCapacity must be between 1 and 2^30");
+        }
+        capacity = bufferCapacity;
+        int ringSize = Integer.highestOneBit(bufferCapacity);
+        if (ringSize < bufferCapacity) {
+            ringSize <<= 1;
+        }
+        mask = ringSize - 1;
+        ring = new AtomicReferenceArray<>(ringSize);
+    }
+
+    /**
+     * Create a MpscEventStore object with default buffer size (10 000 events).
+     */
+    public MpscEventStore() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Add TrackerPayload to buffer, without locking. Returns false if the buffer was full.
+     * Note that the event is lost in this case.
+     *
+     * @param trackerPayload the payload to add
+     * @return success or not
+     */
+    @Override
+    public boolean addEvent(TrackerPayload trackerPayload) {
+        Objects.requireNonNull(trackerPayload);
+        long index;
+        do {
+            index = producerIndex.get();
+            if (index - consumerIndex.get() >= capacity) {
+                return false;
+            }
+        } while (!producerIndex.compareAndSet(index, index + 1));
+
+        // Until this store, the consumer sees the claimed slot as empty and waits for it
+        ring.lazySet((int) (index & mask), trackerPayload);
+        return true;
+    }
+
+    /**
+     * Remove some TrackerPayloads from the buffer, events to retry first. They are wrapped as a BatchPayload to
+     * return, and also stored in a separate collection until the result of their POST request is known.
+     *
+     * @param numberToGet how many payloads to get
+     * @return a BatchPayload wrapper, or null
+     */
+    @Override
+    public BatchPayload getEventsBatch(int numberToGet) {
+        return getEventsBatch(numberToGet, Long.MAX_VALUE);
+    }
+
+    /**
+     * Remove some TrackerPayloads from the buffer, stopping early if adding the next payload would make
+     * the batch larger than maxBytes. The batch contains at least one payload.
+     * As with {@link #getEventsBatch(int)}, no batch is returned if fewer than numberToGet payloads are buffered.
+     *
+     * @param numberToGet how many payloads to get
+     * @param maxBytes the maximum total estimated byte size of the payloads
+     * @return a BatchPayload wrapper, or null
+     */
+    @Override
+    public BatchPayload getEventsBatch(int numberToGet, long maxBytes) {
+        List<TrackerPayload> eventsToSend = new ArrayList<>(Math.max(numberToGet, 0));
+        long batchBytes = 0;
+
+        synchronized (consumerLock) {
+            if (numberToGet <= 0 || size() < numberToGet) {
+                return null;
+            }
+
+            while (eventsToSend.size() < numberToGet) {
+                RetryBatch retryBatch = retryBatches.peekFirst();
+                TrackerPayload payload = retryBatch != null ? retryBatch.events.get(retryBatch.next) : peekRing();
+                if (payload == null) {
+                    // A tracking thread has claimed the slot but not yet published its payload
+                    break;
+                }
+                if (!eventsToSend.isEmpty() && batchBytes + payload.getEstimatedByteSize() > maxBytes) {
+                    break;
+                }
+
+                if (retryBatch != null) {
+                    if (++retryBatch.next == retryBatch.events.size()) {
+                        retryBatches.pollFirst();
+                    }
+                    retryCount.decrementAndGet();
+                } else {
+                    advanceRing();
+                }
+                eventsToSend.add(payload);
+                batchBytes += payload.getEstimatedByteSize();
+            }
+        }
+
+        if (eventsToSend.isEmpty()) {
+            return null;
+        }
+        BatchPayload batchedEvents = new BatchPayload(batchId.getAndIncrement(), eventsToSend);
+        eventsBeingSent.put(batchedEvents.getBatchId(), batchedEvents.getPayloads());
+        return batchedEvents;
+    }
+
+    /**
+     * Finish processing events after a request has been made. If the request was successful,
+     * the events are deleted. If not, the batch is queued to be taken again ahead of newer events.
+     *
+     * @param needRetry if true, queue the events to be taken again instead of deleting them
+     * @param batchId the ID of the batch of events
+     * @return an empty list, as no events are deleted to make space for events to retry
+     */
+    @Override
+    public List<TrackerPayload> cleanupAfterSendingAttempt(boolean needRetry, long batchId) {
+        List<TrackerPayload> events = eventsBeingSent.remove(batchId);
+        if (needRetry && events != null && !events.isEmpty()) {
+            synchronized (consumerLock) {
+                retryBatches.offerFirst(new RetryBatch(events));
+                retryCount.addAndGet(events.size());
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Remove the buffered events created before the given time, based on their device created timestamp.
+     * This does not include events not yet fully added, or any events after them in the ring.
+     *
+     * @param createdBefore the device created timestamp, in milliseconds, before which events are expired
+     * @return the removed events
+     */
+    @Override
+    public List<TrackerPayload> removeExpiredEvents(long createdBefore) {
+        List<TrackerPayload> expiredEvents = new ArrayList<>();
+        synchronized (consumerLock) {
+            // The events of a batch may also be in the BatchEmitter's hands, so kept events are copied
+            ArrayDeque<RetryBatch> keptRetryBatches = new ArrayDeque<>();
+            for (RetryBatch retryBatch : retryBatches) {
+                List<TrackerPayload> keptEvents = new ArrayList<>();
+                for (TrackerPayload payload : retryBatch.events.subList(retryBatch.next, retryBatch.events.size())) {
+                    if (isCreatedBefore(payload, createdBefore)) {
+                        expiredEvents.add(payload);
+                    } else {
+                        keptEvents.add(payload);
+                    }
+                }
+                if (!keptEvents.isEmpty()) {
+                    keptRetryBatches.addLast(new RetryBatch(keptEvents));
+                }
+            }
+            if (!expiredEvents.isEmpty()) {
+                retryBatches.clear();
+                retryBatches.addAll(keptRetryBatches);
+                retryCount.addAndGet(-expiredEvents.size());
+            }
+
+            // Only the consumer writes to the published slots, and no tracking thread can claim them again
+            // until the consumer index moves past them
+            long start = consumerIndex.get();
+            long end = start;
+            long producer = producerIndex.get();
+            while (end < producer && ring.get((int) (end & mask)) != null) {
+                end++;
+            }
+            // Compacted from the newest end, so that each event moves at most once
+            List<TrackerPayload> expiredInRing = new ArrayList<>();
+            long keep = end;
+            for (long index = end - 1; index >= start; index--) {
+                TrackerPayload payload = ring.get((int) (index & mask));
+                if (isCreatedBefore(payload, createdBefore)) {
+                    expiredInRing.add(payload);
+                } else if (--keep != index) {
+                    ring.lazySet((int) (keep & mask), payload);
+                }
+            }
+            Collections.reverse(expiredInRing);
+            expiredEvents.addAll(expiredInRing);
+            for (long index = start; index < keep; index++) {
+                ring.lazySet((int) (index & mask), null);
+            }
+            consumerIndex.lazySet(keep);
+        }
+        return expiredEvents;
+    }
+
+    /**
+     * Get a copy of all the TrackerPayloads in the buffer. This does not include any events
+     * currently being sent by the BatchEmitter, or events not yet fully added.
+     *
+     * @return List of all the stored events
+     */
+    @Override
+    public List<TrackerPayload> getAllEvents() {
+        List<TrackerPayload> events = new ArrayList<>();
+        synchronized (consumerLock) {
+            for (RetryBatch retryBatch : retryBatches) {
+                events.addAll(retryBatch.events.subList(retryBatch.next, retryBatch.events.size()));
+            }
+            long end = producerIndex.get();
+            for (long index = consumerIndex.get(); index < end; index++) {
+                TrackerPayload payload = ring.get((int) (index & mask));
+                if (payload != null) {
+                    events.add(payload);
+                }
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Get the current size of the buffer. This does not include any events
+     * currently being sent by the BatchEmitter.
+     *
+     * @return number of events currently in the buffer
+     */
+    @Override
+    public int size() {
+        long consumed = consumerIndex.get();
+        return (int) (producerIndex.get() - consumed) + retryCount.get();
+    }
+
+    private static boolean isCreatedBefore(TrackerPayload payload, long createdBefore) {
+        Long deviceCreatedTimestamp = payload.getDeviceCreatedTimestamp();
+        return deviceCreatedTimestamp != null && deviceCreatedTimestamp < createdBefore;
+    }
+
+    private TrackerPayload peekRing() {
+        long index = consumerIndex.get();
+        if (index >= producerIndex.get()) {
+            return null;
+        }
+        return ring.get((int) (index & mask));
+    }
+
+    private void advanceRing() {
+        long index = consumerIndex.get();
+        // The slot is cleared before it is released to the tracking threads
+        ring.lazySet((int) (index & mask), null);
+        consumerIndex.lazySet(index + 1);
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.emitter;
+
+import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Buffers events serialized in a ring buffer outside the Java heap, for sending via the BatchEmitter.
+ *
+ * Each TrackerPayload is serialized once when it is added, into a direct ByteBuffer. Only the positions
+ * of the oldest and newest events, and the ranges of batches being sent, are kept on the heap,
+ * so a large buffer adds almost nothing to garbage collection, even during a long collector outage.
+ * Payloads are deserialized again when they are taken to be sent.
+ *
+ * The capacity is set in bytes. Space is reclaimed in order: once the events of a batch have been sent,
+ * their space can be reused once every older event has also been sent. Events to retry stay where they are
+ * and are read again ahead of newer events, so no events are ever deleted to make space for them.
+ * Expired events are skipped in place, and their space is reclaimed in the same order.
+ */
+public class OffHeapEventStore implements EventStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(OffHeapEventStore.class);
+    private static final int DEFAULT_CAPACITY_BYTES = 32 * 1024 * 1024;
+    private static final int RECORD_HEADER_BYTES = LogCursor.HEADER_BYTES;
+
+    private final ByteBuffer ring;
+    private final int capacityBytes;
+    private final LogCursor cursor;
+
+    // Positions only ever increase: the index in the ring is the position modulo the capacity
+    private long reclaimedPosition;
+
+    /**
+     * Create an OffHeapEventStore with a custom capacity in bytes.
+     *
+     * @param capacityBytes the size of the ring buffer; the largest event that can be stored
+     */
+    public OffHeapEventStore(int capacityBytes) {
+        if (capacityBytes <= RECORD_HEADER_BYTES) {
+            throw new IllegalArgumentException("capacityBytes must be greater than " + RECORD_HEADER_BYTES);
+        }
+        this.capacityBytes = capacityBytes;
+        ring = ByteBuffer.allocateDirect(capacityBytes);
+        cursor = new LogCursor(new LogCursor.Records() {
+            @Override
+            public long skipPadding(long position) {
+                return OffHeapEventStore.this.skipPadding(position);
+            }
+
+            @Override
+            public ByteBuffer buffer(long position) {
+                return ring;
+            }
+
+            @Override
+            public int index(long position) {
+                return indexInRing(position);
+            }
+        }, RECORD_HEADER_BYTES);
+    }
+
+    /**
+     * Create an OffHeapEventStore with the default capacity of 32 MB.
+     */
+    public OffHeapEventStore() {
+        this(DEFAULT_CAPACITY_BYTES);
+    }
+
+    /**
+     * Serializes a TrackerPayload into the ring buffer. Returns false if there is not enough space.
+     * Note that the event is lost in this case.
+     *
+     * @param trackerPayload the payload to add
+     * @return success or not
+     */
+    @Override
+    public boolean addEvent(TrackerPayload trackerPayload) {
+        byte[] record = PayloadCodec.encode(trackerPayload);
+        int recordBytes = RECORD_HEADER_BYTES + record.length;
+        if (recordBytes > capacityBytes) {
+            LOGGER.error("Event of {} bytes is larger than the event buffer", record.length);
+            return false;
+        }
+
+        synchronized (this) {
+            long position = cursor.getWritePosition();
+            int index = indexInRing(position);
+            boolean wrap = index + recordBytes > capacityBytes;
+            if (wrap) {
+                position = nextWrap(position);
+            }
+            if (position + recordBytes - reclaimedPosition > capacityBytes) {
+                return false;
+            }
+
+            if (wrap && index + 4 <= capacityBytes) {
+                ring.putInt(index, LogCursor.PADDING);
+            }
+            index = indexInRing(position);
+            ByteBuffer target = ring.duplicate();
+            target.position(index + RECORD_HEADER_BYTES);
+            target.put(record);
+            LogCursor.putHeader(ring, index, trackerPayload);
+            ring.putInt(index + LogCursor.LENGTH_OFFSET, record.length);
+
+            cursor.appended(position + recordBytes);
+            return true;
+        }
+    }
+
+    /**
+     * Remove some TrackerPayloads from the buffer, deserializing them. Events to retry are taken first.
+     * The returned batch may contain fewer than numberToGet events if the events to retry are not all
+     * consecutive.
+     *
+     * @param numberToGet how many payloads to get
+     * @return a BatchPayload wrapper, or null
+     */
+    @Override
+    public BatchPayload getEventsBatch(int numberToGet) {
+        return getEventsBatch(numberToGet, Long.MAX_VALUE);
+    }
+
+    /**
+     * Remove some TrackerPayloads from the buffer, stopping early if adding the next payload would make
+     * the batch larger than maxBytes. The batch contains at least one payload.
+     * As with {@link #getEventsBatch(int)}, no batch is returned if fewer than numberToGet payloads are buffered.
+     *
+     * @param numberToGet how many payloads to get
+     * @param maxBytes the maximum total estimated byte size of the payloads
+     * @return a BatchPayload wrapper, or null
+     */
+    @Override
+    public synchronized BatchPayload getEventsBatch(int numberToGet, long maxBytes) {
+        return cursor.takeBatch(numberToGet, maxBytes);
+    }
+
+    /**
+     * Finish processing events after a request has been made. If the request was successful,
+     * the space of the events can be reused once all older events have been sent.
+     * If not, the events are queued to be taken again, ahead of newer events.
+     *
+     * @param needRetry if true, keep the events to be taken again
+     * @param batchId the ID of the batch of events
+     * @return an empty list, as no events are deleted to make space for events to retry
+     */
+    @Override
+    public synchronized List<TrackerPayload> cleanupAfterSendingAttempt(boolean needRetry, long batchId) {
+        if (cursor.endLease(batchId, needRetry)) {
+            reclaimedPosition = Math.max(reclaimedPosition, cursor.oldestUnacknowledgedPosition());
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Remove the buffered events created before the given time, based on the device created timestamp
+     * recorded with each event. Their space can be reused once every older event has been sent or removed.
+     *
+     * @param createdBefore the device created timestamp, in milliseconds, before which events are expired
+     * @return the removed events
+     */
+    @Override
+    public synchronized List<TrackerPayload> removeExpiredEvents(long createdBefore) {
+        List<TrackerPayload> expiredEvents = cursor.removeCreatedBefore(createdBefore);
+        if (!expiredEvents.isEmpty()) {
+            reclaimedPosition = Math.max(reclaimedPosition, cursor.oldestUnacknowledgedPosition());
+        }
+        return expiredEvents;
+    }
+
+    /**
+     * Get a copy of all the TrackerPayloads in the buffer. This does not include any events
+     * currently being sent by the BatchEmitter.
+     *
+     * @return List of all the stored events
+     */
+    @Override
+    public synchronized List<TrackerPayload> getAllEvents() {
+        return cursor.readAll();
+    }
+
+    /**
+     * Get the current size of the buffer. This does not include any events
+     * currently being sent by the BatchEmitter.
+     *
+     * @return number of events currently in the buffer
+     */
+    @Override
+    public synchronized int size() {
+        return cursor.size();
+    }
+
+    /**
+     * Returns the number of bytes of the ring buffer in use, including events being sent.
+     *
+     * @return the used bytes
+     */
+    public synchronized long getUsedBytes() {
+        return cursor.getWritePosition() - reclaimedPosition;
+    }
+
+    /**
+     * Moves a position at the unused end of the ring to the start of the ring.
+     */
+    private long skipPadding(long position) {
+        int index = indexInRing(position);
+        if (index + 4 > capacityBytes || ring.getInt(index) == LogCursor.PADDING) {
+            return nextWrap(position);
+        }
+        return position;
+    }
+
+    private long nextWrap(long position) {
+        return (position / capacityBytes + 1) * capacityBytes;
+    }
+
+    private int indexInRing(long position) {
+        return (int) (position % capacityBytes);
+    }
+}
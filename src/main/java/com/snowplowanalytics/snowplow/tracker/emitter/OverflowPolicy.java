@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.emitter;
+
+import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
+
+import java.util.Deque;
+import java.util.Map;
+
+/**
+ * Chooses which event is lost when an event must be added to a full buffer.
+ * This happens when the Tracker adds a new event, and when events that need to be retried
+ * are returned to the buffer after a failed request.
+ * <p>
+ * Event types are the values of the "e" parameter, for example "pv" for page views,
+ * "se" for structured events or "ue" for self-describing events.
+ */
+@FunctionalInterface
+public interface OverflowPolicy {
+
+    /**
+     * Drop the newest event: new events are rejected, and newer events are deleted to make space
+     * for older events to retry. This is the default.
+     */
+    OverflowPolicy DROP_NEWEST = (buffer, payload, retrying) -> retrying ? buffer.peekLast() : payload;
+
+    /**
+     * Drop the oldest event: the oldest buffered event is deleted to make space for a new event,
+     * and events to retry are dropped rather than deleting newer events.
+     */
+    OverflowPolicy DROP_OLDEST = (buffer, payload, retrying) -> retrying ? payload : buffer.peekFirst();
+
+    /**
+     * Chooses the event to drop.
+     * The buffer must not be modified. The payload is older than all the buffered events if it is being retried,
+     * and newer than all of them otherwise.
+     *
+     * @param buffer the buffered events, oldest first
+     * @param payload the event to add
+     * @param retrying whether the event is being returned to the buffer to retry
+     * @return the payload itself to drop it, or one of the buffered events to delete it instead
+     */
+    TrackerPayload selectEventToDrop(Deque<TrackerPayload> buffer, TrackerPayload payload, boolean retrying);
+
+    /**
+     * Keep events with a probability that depends on their type. When the buffer is full, an event is kept
+     * with the probability given for its type, deleting the oldest buffered event (or the newest, for an event
+     * being retried); otherwise the event is dropped.
+     *
+     * @param keepRates the probability, from 0 to 1, of keeping an event of each type
+     * @param defaultKeepRate the probability of keeping an event of any other type
+     * @return the overflow policy
+     */
+    static OverflowPolicy sampleByEventType(Map<String, Double> keepRates, double defaultKeepRate) {
+        return new SamplingOverflowPolicy(keepRates, defaultKeepRate);
+    }
+
+    /**
+     * Drop the lowest priority event. When the buffer is full, the lowest priority event is dropped,
+     * whether it is buffered or being added. Among events of the same priority, the newest is dropped.
+     * <p>
+     * Finding the lowest priority buffered event takes time proportional to the buffer size.
+     *
+     * @param priorities the priority of each event type, higher values are kept longer
+     * @param defaultPriority the priority of any other event type
+     * @return the overflow policy
+     */
+    static OverflowPolicy priorityByEventType(Map<String, Integer> priorities, int defaultPriority) {
+        return new PriorityOverflowPolicy(priorities, defaultPriority);
+    }
+}
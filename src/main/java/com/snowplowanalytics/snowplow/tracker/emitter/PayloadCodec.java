@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.emitter;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
+
+/**
+ * Encodes TrackerPayloads as compact binary records, for EventStores which keep events serialized.
+ *
+ * A record is the number of key-value pairs, followed by each key and value
+ * as a length-prefixed UTF-8 string.
+ */
+final class PayloadCodec {
+
+    private PayloadCodec() {}
+
+    /**
+     * Encodes a payload.
+     *
+     * @param payload the payload to encode
+     * @return the encoded record
+     */
+    static byte[] encode(TrackerPayload payload) {
+        Map<String, String> map = payload.getMap();
+        byte[][] strings = new byte[map.size() * 2][];
+        int size = 4;
+        int i = 0;
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            strings[i] = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            strings[i + 1] = entry.getValue().getBytes(StandardCharsets.UTF_8);
+            size += 8 + strings[i].length + strings[i + 1].length;
+            i += 2;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(map.size());
+        for (byte[] string : strings) {
+            buffer.putInt(string.length);
+            buffer.put(string);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Decodes a payload from the buffer's current position, advancing the position past the record.
+     *
+     * @param buffer the buffer to read from
+     * @return the decoded payload
+     * @throws IllegalArgumentException if the record is malformed
+     */
+    static TrackerPayload decode(ByteBuffer buffer) {
+        try {
+            int entries = buffer.getInt();
+            if (entries < 0) {
+                throw new IllegalArgumentException("Invalid payload record");
+            }
+            Map<String, String> map = new LinkedHashMap<>();
+            for (int i = 0; i < entries; i++) {
+                String key = readString(buffer);
+                map.put(key, readString(buffer));
+            }
+            return new TrackerPayload(map);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated payload record", e);
+        }
+    }
+
+    /**
+     * Decodes a payload record.
+     *
+     * @param record the encoded record
+     * @return the decoded payload
+     * @throws IllegalArgumentException if the record is malformed
+     */
+    static TrackerPayload decode(byte[] record) {
+        return decode(ByteBuffer.wrap(record));
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid payload record");
+        }
+        if (buffer.hasArray()) {
+            String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return string;
+        }
+        // Direct and memory-mapped buffers have to be copied out
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.emitter;
+
+import com.snowplowanalytics.snowplow.tracker.constants.Parameter;
+import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
+
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * An OverflowPolicy which drops the newest of the lowest priority events.
+ */
+class PriorityOverflowPolicy implements OverflowPolicy {
+
+    private final Map<String, Integer> priorities;
+    private final int defaultPriority;
+
+    PriorityOverflowPolicy(Map<String, Integer> priorities, int defaultPriority) {
+        this.priorities = new HashMap<>(priorities);
+        this.defaultPriority = defaultPriority;
+    }
+
+    @Override
+    public TrackerPayload selectEventToDrop(Deque<TrackerPayload> buffer, TrackerPayload payload, boolean retrying) {
+        int payloadPriority = priority(payload);
+
+        // Newest first, so that the newest of equally low priority events is found
+        TrackerPayload lowest = null;
+        int lowestPriority = Integer.MAX_VALUE;
+        Iterator<TrackerPayload> iterator = buffer.descendingIterator();
+        while (iterator.hasNext()) {
+            TrackerPayload buffered = iterator.next();
+            int priority = priority(buffered);
+            if (priority < lowestPriority) {
+                lowest = buffered;
+                lowestPriority = priority;
+            }
+        }
+
+        if (lowest == null || payloadPriority < lowestPriority) {
+            return payload;
+        }
+        // On a tie, a new event is the newest; an event being retried is the oldest
+        if (payloadPriority == lowestPriority && !retrying) {
+            return payload;
+        }
+        return lowest;
+    }
+
+    private int priority(TrackerPayload payload) {
+        return priorities.getOrDefault(payload.getMap().get(Parameter.EVENT), defaultPriority);
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.emitter;
+
+import com.snowplowanalytics.snowplow.tracker.constants.Parameter;
+import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
+
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An OverflowPolicy which keeps a random sample of the events of each type.
+ */
+class SamplingOverflowPolicy implements OverflowPolicy {
+
+    private final Map<String, Double> keepRates;
+    private final double defaultKeepRate;
+
+    SamplingOverflowPolicy(Map<String, Double> keepRates, double defaultKeepRate) {
+        for (double rate : keepRates.values()) {
+            checkRate(rate);
+        }
+        checkRate(defaultKeepRate);
+        this.keepRates = new HashMap<>(keepRates);
+        this.defaultKeepRate = defaultKeepRate;
+    }
+
+    @Override
+    public TrackerPayload selectEventToDrop(Deque<TrackerPayload> buffer, TrackerPayload payload, boolean retrying) {
+        double keepRate = keepRates.getOrDefault(payload.getMap().get(Parameter.EVENT), defaultKeepRate);
+        if (ThreadLocalRandom.current().nextDouble() >= keepRate) {
+            return payload;
+        }
+        return retrying ? buffer.peekLast() : buffer.peekFirst();
+    }
+
+    private static void checkRate(double rate) {
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("keep rates must be between 0 and 1");
+        }
+    }
+}
@@ -0,0 +1,629 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.emitter;
+
+import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Buffers events (as TrackerPayloads) in append-only, memory-mapped segment files, so that buffered events
+ * and events being sent survive the JVM being killed.
+ *
+ * Each event is written once, as a record with its length, its estimated size, its device created timestamp
+ * and a CRC32 checksum.
+ * The store keeps three positions in the log: the write position, the read position (the next event to send), and the acknowledged
+ * position, before which every event has been sent. {@link #getEventsBatch(int)} moves the read position
+ * forward and records the range of the batch as a lease. {@link #cleanupAfterSendingAttempt(boolean, long)}
+ * either releases the lease, moving the acknowledged position forward once no earlier lease is outstanding,
+ * or queues its range to be read again. Segment files wholly before the acknowledged position are deleted.
+ * Expired events are skipped in place. Until the acknowledged position passes them, they are read again
+ * after a restart, and expire again.
+ *
+ * Writes go to the operating system's page cache through the memory mapping, so they survive the JVM being
+ * killed immediately. They are forced to disk (along with the acknowledged position) by a group commit every
+ * `syncIntervalMs`, rather than for every event, so a power failure loses at most that interval of events.
+ * On startup, every event after the last committed acknowledged position is buffered again: events being
+ * sent when the process died are re-sent, so delivery is at-least-once. A torn record at the end of the log
+ * fails its checksum and is discarded.
+ *
+ * Segment files are unmapped before they are deleted. Java has no public API to unmap a file, so the JDK's
+ * internal cleaner is called reflectively. Where that is not possible, a segment stays mapped until its buffer
+ * is garbage collected: until then, its disk space stays in use on Linux, and on Windows its file can't be
+ * deleted. A file left behind is deleted when the store is next opened.
+ *
+ * Call {@link #close()} when the store is no longer used, to commit, stop the group commit thread and unmap
+ * the segments.
+ */
+public class SegmentLogEventStore implements EventStore, Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SegmentLogEventStore.class);
+    private static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+    private static final long DEFAULT_CAPACITY_BYTES = 256L * 1024 * 1024;
+    private static final long DEFAULT_SYNC_INTERVAL_MS = 100;
+
+    // Each record starts with its length, its estimated size and its checksum
+    private static final int CHECKSUM_OFFSET = LogCursor.HEADER_BYTES;
+    private static final int RECORD_HEADER_BYTES = LogCursor.HEADER_BYTES + 4;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static volatile boolean unmapSupported = true;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long maxSegments;
+    private final FileChannel checkpointChannel;
+    private final ScheduledExecutorService syncExecutor;
+
+    // Segment number -> mapping. A segment covers log positions [number * segmentBytes, (number + 1) * segmentBytes)
+    private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+    private final Set<Long> dirtySegments = new HashSet<>();
+    private final LogCursor cursor;
+    // Held while forcing or unmapping segments, so that a segment is never unmapped while being forced
+    private final Object forceLock = new Object();
+
+    private long acknowledgedPosition;
+    private long committedPosition = -1;
+    private boolean closed;
+
+    /**
+     * Creates or reopens a SegmentLogEventStore in a directory, with 16 MB segments,
+     * a capacity of 256 MB and a group commit every 100 ms.
+     *
+     * @param directory the directory for the segment files
+     * @throws UncheckedIOException if the directory can't be used
+     */
+    public SegmentLogEventStore(Path directory) {
+        this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_CAPACITY_BYTES, DEFAULT_SYNC_INTERVAL_MS);
+    }
+
+    /**
+     * Creates or reopens a SegmentLogEventStore in a directory.
+     * Events buffered by a previous instance, including unacknowledged events being sent, are buffered again.
+     *
+     * @param directory the directory for the segment files
+     * @param segmentBytes the size of each segment file; the largest event that can be stored
+     * @param capacityBytes the maximum total size of the segment files
+     * @param syncIntervalMs how often writes are forced to disk; zero leaves this to the operating system
+     * @throws UncheckedIOException if the directory can't be used
+     */
+    public SegmentLogEventStore(Path directory, int segmentBytes, long capacityBytes, long syncIntervalMs) {
+        if (segmentBytes <= RECORD_HEADER_BYTES) {
+            throw new IllegalArgumentException("segmentBytes must be greater than " + RECORD_HEADER_BYTES);
+        }
+        if (capacityBytes < segmentBytes) {
+            throw new IllegalArgumentException("capacityBytes must be at least segmentBytes");
+        }
+        if (syncIntervalMs < 0) {
+            throw new IllegalArgumentException("syncIntervalMs cannot be negative");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = capacityBytes / segmentBytes;
+        cursor = new LogCursor(new LogCursor.Records() {
+            @Override
+            public long skipPadding(long position) {
+                return SegmentLogEventStore.this.skipPadding(position);
+            }
+
+            @Override
+            public ByteBuffer buffer(long position) {
+                return segments.get(segmentNumber(position));
+            }
+
+            @Override
+            public int index(long position) {
+                return offsetInSegment(position);
+            }
+        }, RECORD_HEADER_BYTES);
+
+        try {
+            Files.createDirectories(directory);
+            checkpointChannel = FileChannel.open(directory.resolve(CHECKPOINT_FILE),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            recover();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open event log in " + directory, e);
+        }
+
+        if (syncIntervalMs > 0) {
+            syncExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "snowplow-event-log-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncExecutor.scheduleWithFixedDelay(this::syncQuietly, syncIntervalMs, syncIntervalMs, TimeUnit.MILLISECONDS);
+        } else {
+            syncExecutor = null;
+        }
+    }
+
+    /**
+     * Appends a TrackerPayload to the log. Returns false if the log has reached its capacity,
+     * or if the event is larger than a segment. Note that the event is lost in this case.
+     *
+     * @param trackerPayload the payload to add
+     * @return success or not
+     */
+    @Override
+    public boolean addEvent(TrackerPayload trackerPayload) {
+        byte[] record = PayloadCodec.encode(trackerPayload);
+        int recordBytes = RECORD_HEADER_BYTES + record.length;
+        if (recordBytes > segmentBytes) {
+            LOGGER.error("Event of {} bytes is larger than the event log segment size", record.length);
+            return false;
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(record);
+
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            long writePosition = cursor.getWritePosition();
+            long position = writePosition;
+            int offset = offsetInSegment(position);
+            boolean rollover = offset + recordBytes > segmentBytes;
+            if (rollover) {
+                position = (segmentNumber(position) + 1) * segmentBytes;
+            }
+            if (segmentNumber(position) - segmentNumber(acknowledgedPosition) >= maxSegments) {
+                return false;
+            }
+
+            try {
+                if (rollover && offset + 4 <= segmentBytes) {
+                    getSegment(segmentNumber(writePosition)).putInt(offset, LogCursor.PADDING);
+                }
+                MappedByteBuffer segment = getSegment(segmentNumber(position));
+                offset = offsetInSegment(position);
+
+                // The length is written last, so that a partly written record ends the log
+                ByteBuffer target = segment.duplicate();
+                target.position(offset + RECORD_HEADER_BYTES);
+                target.put(record);
+                LogCursor.putHeader(segment, offset, trackerPayload);
+                segment.putInt(offset + CHECKSUM_OFFSET, (int) checksum.getValue());
+                segment.putInt(offset + LogCursor.LENGTH_OFFSET, record.length);
+            } catch (IOException e) {
+                LOGGER.error("Unable to write to event log: {}", e.getMessage());
+                return false;
+            }
+
+            dirtySegments.add(segmentNumber(position));
+            cursor.appended(position + recordBytes);
+            return true;
+        }
+    }
+
+    /**
+     * Reads some TrackerPayloads from the log, moving the read position past them.
+     * Events to retry are read first. The returned batch may contain fewer than numberToGet events
+     * if the events to retry are not all consecutive.
+     *
+     * @param numberToGet how many payloads to get
+     * @return a BatchPayload wrapper, or null
+     */
+    @Override
+    public BatchPayload getEventsBatch(int numberToGet) {
+        return getEventsBatch(numberToGet, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads some TrackerPayloads from the log, stopping early if adding the next payload would make
+     * the batch larger than maxBytes. The batch contains at least one payload.
+     * As with {@link #getEventsBatch(int)}, no batch is returned if fewer than numberToGet payloads are buffered.
+     *
+     * @param numberToGet how many payloads to get
+     * @param maxBytes the maximum total estimated byte size of the payloads
+     * @return a BatchPayload wrapper, or null
+     */
+    @Override
+    public synchronized BatchPayload getEventsBatch(int numberToGet, long maxBytes) {
+        if (closed) {
+            return null;
+        }
+        return cursor.takeBatch(numberToGet, maxBytes);
+    }
+
+    /**
+     * Finish processing events after a request has been made. If the request was successful,
+     * the events' lease is released, and the acknowledged position moves forward if no earlier events
+     * are still waiting. If not, the events are queued to be read again, ahead of newer events.
+     * No events are ever deleted to make space for events to retry, as they are still in the log.
+     *
+     * @param needRetry if true, read the events again instead of acknowledging them
+     * @param batchId the ID of the batch of events
+     * @return an empty list
+     */
+    @Override
+    public List<TrackerPayload> cleanupAfterSendingAttempt(boolean needRetry, long batchId) {
+        Map<Long, MappedByteBuffer> unneededSegments;
+        synchronized (this) {
+            if (!cursor.endLease(batchId, needRetry)) {
+                return Collections.emptyList();
+            }
+            unneededSegments = advanceAcknowledgedPosition();
+        }
+        deleteSegments(unneededSegments);
+        return Collections.emptyList();
+    }
+
+    /**
+     * Remove the buffered events created before the given time, based on the device created timestamp
+     * recorded with each event. Segments holding only removed or acknowledged events are deleted.
+     *
+     * @param createdBefore the device created timestamp, in milliseconds, before which events are expired
+     * @return the removed events
+     */
+    @Override
+    public List<TrackerPayload> removeExpiredEvents(long createdBefore) {
+        List<TrackerPayload> expiredEvents;
+        Map<Long, MappedByteBuffer> unneededSegments;
+        synchronized (this) {
+            if (closed) {
+                return Collections.emptyList();
+            }
+            expiredEvents = cursor.removeCreatedBefore(createdBefore);
+            if (expiredEvents.isEmpty()) {
+                return expiredEvents;
+            }
+            unneededSegments = advanceAcknowledgedPosition();
+        }
+        deleteSegments(unneededSegments);
+        return expiredEvents;
+    }
+
+    /**
+     * Get a copy of all the TrackerPayloads in the buffer. This does not include any events
+     * currently being sent by the BatchEmitter. Once the store is closed, the list is empty.
+     *
+     * @return List of all the stored events
+     */
+    @Override
+    public synchronized List<TrackerPayload> getAllEvents() {
+        if (closed) {
+            return Collections.emptyList();
+        }
+        return cursor.readAll();
+    }
+
+    /**
+     * Get the current size of the buffer. This does not include any events
+     * currently being sent by the BatchEmitter.
+     *
+     * @return number of events currently in the buffer
+     */
+    @Override
+    public synchronized int size() {
+        return cursor.size();
+    }
+
+    /**
+     * Forces all written events and the acknowledged position to disk.
+     *
+     * @throws UncheckedIOException if the checkpoint can't be written
+     */
+    public void sync() {
+        synchronized (forceLock) {
+            List<MappedByteBuffer> toForce = new ArrayList<>();
+            long position;
+            synchronized (this) {
+                for (Long number : dirtySegments) {
+                    MappedByteBuffer segment = segments.get(number);
+                    if (segment != null) {
+                        toForce.add(segment);
+                    }
+                }
+                dirtySegments.clear();
+                position = acknowledgedPosition;
+            }
+
+            // Events are forced before the acknowledged position, which never points past them
+            for (MappedByteBuffer segment : toForce) {
+                segment.force();
+            }
+            if (position != committedPosition) {
+                try {
+                    writeCheckpoint(position);
+                    committedPosition = position;
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Unable to write event log checkpoint", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Commits all written events, stops the group commit thread and unmaps the segments. Events still
+     * buffered will be read again by the next SegmentLogEventStore opened in the same directory.
+     */
+    @Override
+    public void close() {
+        if (syncExecutor != null) {
+            syncExecutor.shutdown();
+            try {
+                syncExecutor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            sync();
+            checkpointChannel.close();
+        } catch (IOException | UncheckedIOException e) {
+            LOGGER.error("Unable to close event log: {}", e.getMessage());
+        }
+
+        // A closed store no longer reads or writes its segments
+        List<MappedByteBuffer> mappedSegments;
+        synchronized (this) {
+            mappedSegments = new ArrayList<>(segments.values());
+            segments.clear();
+            dirtySegments.clear();
+        }
+        synchronized (forceLock) {
+            for (MappedByteBuffer segment : mappedSegments) {
+                unmap(segment);
+            }
+        }
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (RuntimeException e) {
+            LOGGER.error("Event log group commit failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Moves a position at the unused end of a segment to the start of the next segment.
+     */
+    private long skipPadding(long position) {
+        int offset = offsetInSegment(position);
+        if (offset + 4 > segmentBytes) {
+            return (segmentNumber(position) + 1) * segmentBytes;
+        }
+        MappedByteBuffer segment = segments.get(segmentNumber(position));
+        if (segment != null && segment.getInt(offset) == LogCursor.PADDING) {
+            return (segmentNumber(position) + 1) * segmentBytes;
+        }
+        return position;
+    }
+
+    /**
+     * Moves the acknowledged position to the earliest event which has not been sent,
+     * and removes the segments before it. They are no longer read or written.
+     *
+     * @return the removed segments, to be deleted by {@link #deleteSegments(Map)} without holding the lock
+     */
+    private Map<Long, MappedByteBuffer> advanceAcknowledgedPosition() {
+        long position = cursor.oldestUnacknowledgedPosition();
+        if (position <= acknowledgedPosition) {
+            return Collections.emptyMap();
+        }
+        acknowledgedPosition = position;
+
+        SortedMap<Long, MappedByteBuffer> unneededSegments = segments.headMap(segmentNumber(acknowledgedPosition));
+        Map<Long, MappedByteBuffer> removed = new TreeMap<>(unneededSegments);
+        unneededSegments.clear();
+        dirtySegments.removeAll(removed.keySet());
+        return removed;
+    }
+
+    /**
+     * Unmaps segments which are no longer needed and deletes their files.
+     * Waits for sync() to finish forcing them first.
+     *
+     * @param unneededSegments the segment numbers and mappings
+     */
+    private void deleteSegments(Map<Long, MappedByteBuffer> unneededSegments) {
+        if (unneededSegments.isEmpty()) {
+            return;
+        }
+        synchronized (forceLock) {
+            for (Map.Entry<Long, MappedByteBuffer> segment : unneededSegments.entrySet()) {
+                unmap(segment.getValue());
+                try {
+                    Files.deleteIfExists(segmentPath(segment.getKey()));
+                } catch (IOException e) {
+                    LOGGER.warn("Unable to delete event log segment {}: {}", segment.getKey(), e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the committed acknowledged position and scans the log after it,
+     * stopping at the end of the written records or at the first invalid record.
+     */
+    private void recover() throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    numbers.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    LOGGER.warn("Ignoring unexpected file in event log directory: {}", name);
+                }
+            }
+        }
+        Collections.sort(numbers);
+
+        long checkpoint = readCheckpoint();
+        long firstSegment = numbers.isEmpty() ? segmentNumber(Math.max(checkpoint, 0)) : numbers.get(0);
+        long position = Math.max(checkpoint, firstSegment * segmentBytes);
+        committedPosition = checkpoint;
+        acknowledgedPosition = position;
+        long readPosition = position;
+
+        for (long number : numbers) {
+            if (number < segmentNumber(position)) {
+                Files.deleteIfExists(segmentPath(number));
+            } else {
+                segments.put(number, mapSegment(number));
+            }
+        }
+
+        int count = 0;
+        CRC32 checksum = new CRC32();
+        while (true) {
+            position = skipPadding(position);
+            MappedByteBuffer segment = segments.get(segmentNumber(position));
+            if (segment == null) {
+                break;
+            }
+            int offset = offsetInSegment(position);
+            int length = segment.getInt(offset + LogCursor.LENGTH_OFFSET);
+            if (length <= 0 || offset + RECORD_HEADER_BYTES + length > segmentBytes) {
+                break;
+            }
+            byte[] record = new byte[length];
+            ByteBuffer source = segment.duplicate();
+            source.position(offset + RECORD_HEADER_BYTES);
+            source.get(record);
+            checksum.reset();
+            checksum.update(record);
+            if ((int) checksum.getValue() != segment.getInt(offset + CHECKSUM_OFFSET)) {
+                LOGGER.warn("Discarding invalid record at the end of the event log");
+                break;
+            }
+            position += RECORD_HEADER_BYTES + length;
+            count++;
+        }
+        cursor.reset(readPosition, position, count);
+
+        // Anything after a torn record can't be trusted
+        for (Long number : new ArrayList<>(segments.tailMap(segmentNumber(position), false).keySet())) {
+            unmap(segments.remove(number));
+            Files.deleteIfExists(segmentPath(number));
+        }
+        if (count > 0) {
+            LOGGER.info("Recovered {} events from the event log", count);
+        }
+    }
+
+    private long readCheckpoint() throws IOException {
+        ByteBuffer checkpoint = ByteBuffer.allocate(16);
+        while (checkpoint.hasRemaining() && checkpointChannel.read(checkpoint, checkpoint.position()) > 0) {
+            // keep reading
+        }
+        if (checkpoint.position() < 16) {
+            return -1;
+        }
+        long position = checkpoint.getLong(0);
+        // The position is stored twice, inverted, to detect a torn write
+        return position >= 0 && checkpoint.getLong(8) == ~position ? position : -1;
+    }
+
+    private void writeCheckpoint(long position) throws IOException {
+        ByteBuffer checkpoint = ByteBuffer.allocate(16);
+        checkpoint.putLong(position).putLong(~position).flip();
+        while (checkpoint.hasRemaining()) {
+            checkpointChannel.write(checkpoint, checkpoint.position());
+        }
+        checkpointChannel.force(false);
+    }
+
+    private MappedByteBuffer getSegment(long number) throws IOException {
+        MappedByteBuffer segment = segments.get(number);
+        if (segment == null) {
+            segment = mapSegment(number);
+            segments.put(number, segment);
+        }
+        return segment;
+    }
+
+    private MappedByteBuffer mapSegment(long number) throws IOException {
+        // A new segment file is zero-filled, so the log ends at its first record
+        try (RandomAccessFile file = new RandomAccessFile(segmentPath(number).toFile(), "rw")) {
+            file.setLength(segmentBytes);
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+    }
+
+    /**
+     * Releases the mapping of a segment straight away, rather than when its buffer is garbage collected.
+     * The buffer must no longer be used.
+     *
+     * @param segment the mapped segment
+     * @return whether the segment was unmapped
+     */
+    static boolean unmap(MappedByteBuffer segment) {
+        if (!unmapSupported) {
+            return false;
+        }
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                // Java 8 exposes the cleaner on the buffer itself
+                Method cleanerMethod = segment.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(segment);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+                return true;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), segment);
+            return true;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            unmapSupported = false;
+            LOGGER.warn("Unable to unmap event log segments, they are released when garbage collected: {}", e.toString());
+            return false;
+        }
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve(String.format("%020d%s", number, SEGMENT_SUFFIX));
+    }
+
+    private long segmentNumber(long position) {
+        return position / segmentBytes;
+    }
+
+    private int offsetInSegment(long position) {
+        return (int) (position % segmentBytes);
+    }
+}
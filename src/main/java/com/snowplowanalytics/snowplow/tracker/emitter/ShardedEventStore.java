@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.emitter;
+
+import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Buffers events (as TrackerPayloads) in memory for sending via the BatchEmitter, split across several
+ * independently locked shards so that tracking threads on many cores do not all contend for one queue.
+ *
+ * Each thread adds its events to its own home shard, picked from its thread ID. If that shard is busy
+ * or full, the other shards are tried in turn. The BatchEmitter drains batches round-robin across the shards.
+ * Events are kept in order within a shard, but not across shards.
+ *
+ * The buffer capacity is split evenly between the shards. Each shard keeps its own count of events,
+ * and {@link #size()} adds them up without locking.
+ *
+ * Events to retry are returned to the head of the shard they were taken from, or to any other shard with space.
+ * When all the shards are full, the {@link OverflowPolicy} chooses which event is dropped, within the shard the
+ * event is added or returned to. It also applies to {@link #addEventOrDrop} when all the shards are full.
+ * {@link #addEvent} always rejects new events when the shards are full.
+ */
+public class ShardedEventStore implements EventStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardedEventStore.class);
+    private static final int DEFAULT_BUFFER_SIZE = 10000;
+    private final AtomicLong batchId = new AtomicLong(1);
+
+    private final Shard[] shards;
+    private final AtomicInteger nextShardToDrain = new AtomicInteger(0);
+    private final ConcurrentHashMap<Long, Lease> eventsBeingSent = new ConcurrentHashMap<>();
+    private final OverflowPolicy overflowPolicy;
+
+    private static class Shard {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ArrayDeque<TrackerPayload> events = new ArrayDeque<>();
+        private final AtomicInteger count = new AtomicInteger(0);
+        private final int capacity;
+
+        Shard(int capacity) {
+            this.capacity = capacity;
+        }
+
+        // Must hold the lock
+        boolean offer(TrackerPayload payload) {
+            if (events.size() >= capacity) {
+                return false;
+            }
+            events.addLast(payload);
+            count.incrementAndGet();
+            return true;
+        }
+
+        // Must hold the lock
+        boolean offerFirst(TrackerPayload payload) {
+            if (events.size() >= capacity) {
+                return false;
+            }
+            events.addFirst(payload);
+            count.incrementAndGet();
+            return true;
+        }
+
+        // Must hold the lock
+        TrackerPayload poll() {
+            TrackerPayload payload = events.pollFirst();
+            if (payload != null) {
+                count.decrementAndGet();
+            }
+            return payload;
+        }
+
+        /**
+         * Adds a payload to the tail of the shard, or to the head if it is being retried,
+         * deleting the events chosen by the overflow policy until there is space, or dropping the payload itself.
+         * Must hold the lock.
+         */
+        void addOrDrop(TrackerPayload payload, boolean retrying, OverflowPolicy overflowPolicy,
+                       List<TrackerPayload> droppedEvents) {
+            while (!(retrying ? offerFirst(payload) : offer(payload))) {
+                TrackerPayload eventToDrop = overflowPolicy.selectEventToDrop(events, payload, retrying);
+                boolean removed = eventToDrop != null && eventToDrop != payload && (eventToDrop == events.peekLast()
+                        ? events.removeLastOccurrence(eventToDrop)
+                        : events.removeFirstOccurrence(eventToDrop));
+                if (!removed) {
+                    droppedEvents.add(payload);
+                    return;
+                }
+
+                LOGGER.error("Event buffer is full. Dropping a buffered payload to make space for another");
+                count.decrementAndGet();
+                droppedEvents.add(eventToDrop);
+            }
+        }
+    }
+
+    /**
+     * The events of a batch being sent, with the index of the shard each one was taken from.
+     */
+    private static class Lease {
+        private final List<TrackerPayload> events;
+        private final int[] sourceShards;
+
+        Lease(List<TrackerPayload> events, int[] sourceShards) {
+            this.events = events;
+            this.sourceShards = sourceShards;
+        }
+    }
+
+    /**
+     * Create a ShardedEventStore object with a custom number of shards, total capacity and overflow policy.
+     * The capacity is split evenly between the shards, rounding up.
+     *
+     * @param shardCount the number of independently locked shards
+     * @param bufferCapacity the maximum number of events to buffer at once
+     * @param overflowPolicy chooses which event is dropped when the shards are full
+     */
+    public ShardedEventStore(int shardCount, int bufferCapacity, OverflowPolicy overflowPolicy) {
+        if (shardCount <= 0 || bufferCapacity <= 0) {
+            throw new IllegalArgumentException("shardCount and bufferCapacity must be greater than 0");
+        }
+        this.overflowPolicy = Objects.requireNonNull(overflowPolicy);
+        int shardCapacity = (bufferCapacity + shardCount - 1) / shardCount;
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(shardCapacity);
+        }
+    }
+
+    /**
+     * Create a ShardedEventStore object with a custom number of shards and total capacity.
+     * The capacity is split evenly between the shards, rounding up.
+     *
+     * @param shardCount the number of independently locked shards
+     * @param bufferCapacity the maximum number of events to buffer at once
+     */
+    public ShardedEventStore(int shardCount, int bufferCapacity) {
+        this(shardCount, bufferCapacity, OverflowPolicy.DROP_NEWEST);
+    }
+
+    /**
+     * Create a ShardedEventStore object with one shard per available processor,
+     * and a total capacity of 10 000 events.
+     */
+    public ShardedEventStore() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Add TrackerPayload to the calling thread's home shard, or to another shard if it is busy or full.
+     * Returns false if all the shards were full. Note that the event is lost in this case.
+     *
+     * @param trackerPayload the payload to add
+     * @return success or not
+     */
+    @Override
+    public boolean addEvent(TrackerPayload trackerPayload) {
+        int home = homeShard();
+
+        // First look for a shard that no other thread is using
+        for (int i = 0; i < shards.length; i++) {
+            Shard shard = shards[(home + i) % shards.length];
+            if (shard.lock.tryLock()) {
+                try {
+                    if (shard.offer(trackerPayload)) {
+                        return true;
+                    }
+                } finally {
+                    shard.lock.unlock();
+                }
+            }
+        }
+
+        // Then wait for any shard with space
+        for (int i = 0; i < shards.length; i++) {
+            Shard shard = shards[(home + i) % shards.length];
+            shard.lock.lock();
+            try {
+                if (shard.offer(trackerPayload)) {
+                    return true;
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add TrackerPayload to the shards. If they are all full, the overflow policy chooses whether to drop it
+     * or to delete an event buffered in the calling thread's home shard to make space for it.
+     *
+     * @param trackerPayload the payload to add
+     * @return the dropped events, including the given payload if it was not added
+     */
+    @Override
+    public List<TrackerPayload> addEventOrDrop(TrackerPayload trackerPayload) {
+        if (addEvent(trackerPayload)) {
+            return Collections.emptyList();
+        }
+        List<TrackerPayload> droppedEvents = new ArrayList<>(1);
+        Shard shard = shards[homeShard()];
+        shard.lock.lock();
+        try {
+            shard.addOrDrop(trackerPayload, false, overflowPolicy, droppedEvents);
+        } finally {
+            shard.lock.unlock();
+        }
+        return droppedEvents;
+    }
+
+    /**
+     * Remove some TrackerPayloads from the shards. They are wrapped as a BatchPayload to return,
+     * and also stored in a separate collection until the result of their POST request is known.
+     *
+     * @param numberToGet how many payloads to get
+     * @return a BatchPayload wrapper, or null
+     */
+    @Override
+    public BatchPayload getEventsBatch(int numberToGet) {
+        return getEventsBatch(numberToGet, Long.MAX_VALUE);
+    }
+
+    /**
+     * Remove some TrackerPayloads from the shards, stopping early if adding the next payload would make
+     * the batch larger than maxBytes. The batch contains at least one payload.
+     * Each batch starts draining from the shard after the one the previous batch started from.
+     * As with {@link #getEventsBatch(int)}, no batch is returned if fewer than numberToGet payloads are buffered.
+     *
+     * @param numberToGet how many payloads to get
+     * @param maxBytes the maximum total estimated byte size of the payloads
+     * @return a BatchPayload wrapper, or null
+     */
+    @Override
+    public BatchPayload getEventsBatch(int numberToGet, long maxBytes) {
+        if (numberToGet <= 0 || size() < numberToGet) {
+            return null;
+        }
+
+        List<TrackerPayload> eventsToSend = new ArrayList<>(numberToGet);
+        int[] sourceShards = new int[numberToGet];
+        long batchBytes = 0;
+        int start = Math.floorMod(nextShardToDrain.getAndIncrement(), shards.length);
+
+        drain:
+        for (int i = 0; i < shards.length && eventsToSend.size() < numberToGet; i++) {
+            int shardIndex = (start + i) % shards.length;
+            Shard shard = shards[shardIndex];
+            if (shard.count.get() == 0) {
+                continue;
+            }
+            shard.lock.lock();
+            try {
+                while (eventsToSend.size() < numberToGet) {
+                    TrackerPayload payload = shard.events.peekFirst();
+                    if (payload == null) {
+                        break;
+                    }
+                    if (!eventsToSend.isEmpty() && batchBytes + payload.getEstimatedByteSize() > maxBytes) {
+                        break drain;
+                    }
+                    sourceShards[eventsToSend.size()] = shardIndex;
+                    eventsToSend.add(shard.poll());
+                    batchBytes += payload.getEstimatedByteSize();
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+
+        // Another thread may have taken the events counted by size()
+        if (eventsToSend.isEmpty()) {
+            return null;
+        }
+        BatchPayload batchedEvents = new BatchPayload(batchId.getAndIncrement(), eventsToSend);
+        eventsBeingSent.put(batchedEvents.getBatchId(), new Lease(batchedEvents.getPayloads(), sourceShards));
+        return batchedEvents;
+    }
+
+    /**
+     * Finish processing events after a request has been made. If the request was successful,
+     * the events are deleted. If not, each event is reinserted at the beginning of the shard it was taken from
+     * for another attempt, or of another shard with space if that one has filled up meanwhile.
+     * If all the shards are full, the overflow policy chooses which event is dropped.
+     *
+     * @param needRetry if true, move events back to the buffer instead of deleting
+     * @param batchId the ID of the batch of events
+     * @return TrackerPayloads dropped by the overflow policy: by default, newer payloads deleted
+     * from the shards to make space for older payloads
+     */
+    @Override
+    public List<TrackerPayload> cleanupAfterSendingAttempt(boolean needRetry, long batchId) {
+        Lease lease = eventsBeingSent.remove(batchId);
+        List<TrackerPayload> removedEvents = new ArrayList<>();
+        if (!needRetry || lease == null) {
+            return removedEvents;
+        }
+
+        // Inserted last to first, to keep their order at the head of each shard
+        for (int i = lease.events.size() - 1; i >= 0; i--) {
+            TrackerPayload payload = lease.events.get(i);
+            int source = lease.sourceShards[i];
+            if (offerFirst(source, payload)) {
+                continue;
+            }
+
+            boolean reinserted = false;
+            for (int j = 1; j < shards.length && !reinserted; j++) {
+                reinserted = offerFirst((source + j) % shards.length, payload);
+            }
+            if (!reinserted) {
+                Shard shard = shards[source];
+                shard.lock.lock();
+                try {
+                    shard.addOrDrop(payload, true, overflowPolicy, removedEvents);
+                } finally {
+                    shard.lock.unlock();
+                }
+            }
+        }
+        return removedEvents;
+    }
+
+    /**
+     * Remove the events created before the given time from all the shards, based on their device created timestamp.
+     * This does not include any events currently being sent.
+     *
+     * @param createdBefore the device created timestamp, in milliseconds, before which events are expired
+     * @return the removed events
+     */
+    @Override
+    public List<TrackerPayload> removeExpiredEvents(long createdBefore) {
+        List<TrackerPayload> expiredEvents = new ArrayList<>();
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                Iterator<TrackerPayload> iterator = shard.events.iterator();
+                while (iterator.hasNext()) {
+                    TrackerPayload payload = iterator.next();
+                    if (isCreatedBefore(payload, createdBefore)) {
+                        iterator.remove();
+                        shard.count.decrementAndGet();
+                        expiredEvents.add(payload);
+                    }
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return expiredEvents;
+    }
+
+    /**
+     * Get a copy of all the TrackerPayloads in the shards. This does not include any events
+     * currently being sent by the BatchEmitter.
+     *
+     * @return List of all the stored events
+     */
+    @Override
+    public List<TrackerPayload> getAllEvents() {
+        List<TrackerPayload> events = new ArrayList<>();
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                events.addAll(shard.events);
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Get the current size of the buffer, summed across the shards. This does not include any events
+     * currently being sent by the BatchEmitter.
+     *
+     * @return number of events currently in the buffer
+     */
+    @Override
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.count.get();
+        }
+        return size;
+    }
+
+    /**
+     * Get the number of shards.
+     *
+     * @return the shard count
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    private static boolean isCreatedBefore(TrackerPayload payload, long createdBefore) {
+        Long deviceCreatedTimestamp = payload.getDeviceCreatedTimestamp();
+        return deviceCreatedTimestamp != null && deviceCreatedTimestamp < createdBefore;
+    }
+
+    private boolean offerFirst(int shardIndex, TrackerPayload payload) {
+        Shard shard = shards[shardIndex];
+        // Skips locking a shard that is already full
+        if (shard.count.get() >= shard.capacity) {
+            return false;
+        }
+        shard.lock.lock();
+        try {
+            return shard.offerFirst(payload);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    private int homeShard() {
+        long threadId = Thread.currentThread().getId();
+        // Spread sequential thread IDs across the shards
+        int hash = (int) ((threadId * 0x9E3779B97F4A7C15L) >>> 32);
+        return Math.floorMod(hash, shards.length);
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.emitter;
+
+import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
+
+import java.io.Closeable;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers events (as TrackerPayloads) in memory, spilling them to segment files on local disk
+ * once the events in memory reach a size watermark.
+ *
+ * While nothing is spilled, events are kept in a queue in memory, as in {@link InMemoryEventStore}, with no
+ * serialization or disk access. Once the estimated size of the events in memory reaches the watermark,
+ * new events are appended to a {@link SegmentLogEventStore} instead, which keeps them in memory-mapped files
+ * outside the Java heap. Events keep going to disk until the spilled events have all been sent,
+ * so that events are sent in the order they were added: first the events in memory, then the spilled events.
+ *
+ * The spilled events are not forced to disk, as the point is to bound memory use rather than to survive a
+ * crash; events in memory are lost if the process exits. Spilled events which have not been sent are read again
+ * by the next SpilloverEventStore opened in the same directory.
+ *
+ * Each batch is taken from a single tier. Call {@link #close()} when the store is no longer used.
+ */
+public class SpilloverEventStore implements EventStore, Closeable {
+    private static final long DEFAULT_MEMORY_WATERMARK_BYTES = 64L * 1024 * 1024;
+    private static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+    private static final long DEFAULT_DISK_CAPACITY_BYTES = 4L * 1024 * 1024 * 1024;
+
+    private final AtomicLong batchId = new AtomicLong(1);
+    private final long memoryWatermarkBytes;
+    private final SegmentLogEventStore disk;
+
+    // Guarded by this
+    private final ArrayDeque<TrackerPayload> memory = new ArrayDeque<>();
+    private long memoryBytes;
+    private final Map<Long, List<TrackerPayload>> memoryBatches = new HashMap<>();
+    // Batch ID -> the ID of the batch in the SegmentLogEventStore
+    private final Map<Long, Long> diskBatches = new HashMap<>();
+
+    /**
+     * Creates a SpilloverEventStore which spills to a directory once 64 MB of events are buffered in memory,
+     * with a disk capacity of 4 GB.
+     *
+     * @param directory the directory for the spilled events
+     * @throws UncheckedIOException if the directory can't be used
+     */
+    public SpilloverEventStore(Path directory) {
+        this(directory, DEFAULT_MEMORY_WATERMARK_BYTES, DEFAULT_SEGMENT_BYTES, DEFAULT_DISK_CAPACITY_BYTES);
+    }
+
+    /**
+     * Creates a SpilloverEventStore. Events spilled by a previous instance in the same directory
+     * are buffered again, to be sent after the events in memory.
+     *
+     * @param directory the directory for the spilled events
+     * @param memoryWatermarkBytes the estimated size of the events kept in memory before spilling to disk
+     * @param segmentBytes the size of each segment file; the largest event that can be spilled
+     * @param diskCapacityBytes the maximum total size of the segment files
+     * @throws UncheckedIOException if the directory can't be used
+     */
+    public SpilloverEventStore(Path directory, long memoryWatermarkBytes, int segmentBytes, long diskCapacityBytes) {
+        if (memoryWatermarkBytes < 0) {
+            throw new IllegalArgumentException("memoryWatermarkBytes cannot be negative");
+        }
+        this.memoryWatermarkBytes = memoryWatermarkBytes;
+        // No group commit: the operating system writes the spilled events back when it needs the memory
+        disk = new SegmentLogEventStore(directory, segmentBytes, diskCapacityBytes, 0);
+    }
+
+    /**
+     * Add TrackerPayload to the memory tier, or spill it to disk if the memory watermark has been reached
+     * or if spilled events are still buffered or being sent. Returns false if it needed to be spilled, and the disk tier was full.
+     * Note that the event is lost in this case.
+     *
+     * @param trackerPayload the payload to add
+     * @return success or not
+     */
+    @Override
+    public synchronized boolean addEvent(TrackerPayload trackerPayload) {
+        long payloadBytes = trackerPayload.getEstimatedByteSize();
+        // Spilled events being sent may still be retried, so new events stay behind them until they are sent
+        if (disk.size() == 0 && diskBatches.isEmpty() && memoryBytes + payloadBytes <= memoryWatermarkBytes) {
+            memory.addLast(trackerPayload);
+            memoryBytes += payloadBytes;
+            return true;
+        }
+        return disk.addEvent(trackerPayload);
+    }
+
+    /**
+     * Remove some TrackerPayloads from the buffer, from memory first, then from disk.
+     *
+     * @param numberToGet how many payloads to get
+     * @return a BatchPayload wrapper, or null
+     */
+    @Override
+    public BatchPayload getEventsBatch(int numberToGet) {
+        return getEventsBatch(numberToGet, Long.MAX_VALUE);
+    }
+
+    /**
+     * Remove some TrackerPayloads from the buffer, stopping early if adding the next payload would make
+     * the batch larger than maxBytes. The batch contains at least one payload.
+     * Events are taken from memory while there are any, then from disk, so the batch may contain fewer than
+     * numberToGet events. As with {@link #getEventsBatch(int)}, no batch is returned if fewer than numberToGet
+     * payloads are buffered.
+     *
+     * @param numberToGet how many payloads to get
+     * @param maxBytes the maximum total estimated byte size of the payloads
+     * @return a BatchPayload wrapper, or null
+     */
+    @Override
+    public synchronized BatchPayload getEventsBatch(int numberToGet, long maxBytes) {
+        if (numberToGet <= 0 || size() < numberToGet) {
+            return null;
+        }
+
+        if (memory.isEmpty()) {
+            BatchPayload diskBatch = disk.getEventsBatch(Math.min(numberToGet, disk.size()), maxBytes);
+            if (diskBatch == null) {
+                return null;
+            }
+            BatchPayload batch = new BatchPayload(batchId.getAndIncrement(), diskBatch.getPayloads());
+            diskBatches.put(batch.getBatchId(), diskBatch.getBatchId());
+            return batch;
+        }
+
+        List<TrackerPayload> eventsToSend = new ArrayList<>();
+        long batchBytes = 0;
+        while (eventsToSend.size() < numberToGet && !memory.isEmpty()) {
+            long payloadBytes = memory.peekFirst().getEstimatedByteSize();
+            if (!eventsToSend.isEmpty() && batchBytes + payloadBytes > maxBytes) {
+                break;
+            }
+            eventsToSend.add(memory.pollFirst());
+            memoryBytes -= payloadBytes;
+            batchBytes += payloadBytes;
+        }
+        BatchPayload batch = new BatchPayload(batchId.getAndIncrement(), eventsToSend);
+        memoryBatches.put(batch.getBatchId(), eventsToSend);
+        return batch;
+    }
+
+    /**
+     * Finish processing events after a request has been made. If the request was successful,
+     * the events are deleted. If not, events from memory are reinserted at the beginning of the memory queue,
+     * even above the watermark, and spilled events are read again from disk first.
+     *
+     * @param needRetry if true, move events back to the buffer instead of deleting
+     * @param batchId the ID of the batch of events
+     * @return an empty list, as no events are deleted to make space for events to retry
+     */
+    @Override
+    public synchronized List<TrackerPayload> cleanupAfterSendingAttempt(boolean needRetry, long batchId) {
+        Long diskBatchId = diskBatches.remove(batchId);
+        if (diskBatchId != null) {
+            return disk.cleanupAfterSendingAttempt(needRetry, diskBatchId);
+        }
+
+        List<TrackerPayload> events = memoryBatches.remove(batchId);
+        if (needRetry && events != null) {
+            for (int i = events.size() - 1; i >= 0; i--) {
+                memory.addFirst(events.get(i));
+                memoryBytes += events.get(i).getEstimatedByteSize();
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Remove the events created before the given time from memory and from disk, based on their
+     * device created timestamp. This does not include any events currently being sent.
+     *
+     * @param createdBefore the device created timestamp, in milliseconds, before which events are expired
+     * @return the removed events, in memory then on disk
+     */
+    @Override
+    public synchronized List<TrackerPayload> removeExpiredEvents(long createdBefore) {
+        List<TrackerPayload> expiredEvents = new ArrayList<>();
+        Iterator<TrackerPayload> iterator = memory.iterator();
+        while (iterator.hasNext()) {
+            TrackerPayload payload = iterator.next();
+            Long deviceCreatedTimestamp = payload.getDeviceCreatedTimestamp();
+            if (deviceCreatedTimestamp != null && deviceCreatedTimestamp < createdBefore) {
+                iterator.remove();
+                memoryBytes -= payload.getEstimatedByteSize();
+                expiredEvents.add(payload);
+            }
+        }
+        expiredEvents.addAll(disk.removeExpiredEvents(createdBefore));
+        return expiredEvents;
+    }
+
+    /**
+     * Get a copy of all the TrackerPayloads in the buffer, in memory then on disk. This does not include
+     * any events currently being sent by the BatchEmitter.
+     *
+     * @return List of all the stored events
+     */
+    @Override
+    public synchronized List<TrackerPayload> getAllEvents() {
+        List<TrackerPayload> events = new ArrayList<>(memory);
+        events.addAll(disk.getAllEvents());
+        return events;
+    }
+
+    /**
+     * Get the current size of the buffer, in memory and on disk. This does not include any events
+     * currently being sent by the BatchEmitter.
+     *
+     * @return number of events currently in the buffer
+     */
+    @Override
+    public synchronized int size() {
+        return memory.size() + disk.size();
+    }
+
+    /**
+     * Get the number of buffered events spilled to disk.
+     *
+     * @return number of events on disk
+     */
+    public int getSpilledSize() {
+        return disk.size();
+    }
+
+    /**
+     * Get the estimated byte size of the events buffered in memory.
+     *
+     * @return the size of the memory tier
+     */
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    /**
+     * Closes the disk tier. Spilled events which have not been sent will be read again by the next
+     * SpilloverEventStore opened in the same directory; events in memory are lost.
+     */
+    @Override
+    public void close() {
+        disk.close();
+    }
+}
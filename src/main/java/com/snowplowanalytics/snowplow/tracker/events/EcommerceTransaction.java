@@ -19,6 +19,7 @@ import java.util.List;
 import java.util.Objects;
 
 // This library
+import com.snowplowanalytics.snowplow.tracker.EventIdGenerator;
 import com.snowplowanalytics.snowplow.tracker.constants.Parameter;
 import com.snowplowanalytics.snowplow.tracker.constants.Constants;
 import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
@@ -237,7 +238,18 @@ public class EcommerceTransaction extends AbstractEvent {
      * @return the payload to be sent.
      */
     public TrackerPayload getPayload() {
-        TrackerPayload payload = new TrackerPayload();
+        return getPayload(EventIdGenerator.RANDOM_UUID);
+    }
+
+    /**
+     * Returns a TrackerPayload which can be passed to an Emitter, with an event ID from the given generator.
+     *
+     * @param eventIdGenerator generates the event ID
+     * @return the payload to be sent.
+     */
+    @Override
+    public TrackerPayload getPayload(EventIdGenerator eventIdGenerator) {
+        TrackerPayload payload = new TrackerPayload(eventIdGenerator);
         payload.add(Parameter.EVENT, Constants.EVENT_ECOMM);
         payload.add(Parameter.TR_ID, this.orderId);
         payload.add(Parameter.TR_TOTAL, Double.toString(this.totalValue));
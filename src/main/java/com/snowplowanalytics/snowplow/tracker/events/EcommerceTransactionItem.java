@@ -13,6 +13,7 @@
 package com.snowplowanalytics.snowplow.tracker.events;
 
 // This library
+import com.snowplowanalytics.snowplow.tracker.EventIdGenerator;
 import com.snowplowanalytics.snowplow.tracker.constants.Parameter;
 import com.snowplowanalytics.snowplow.tracker.constants.Constants;
 import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
@@ -179,7 +180,18 @@ public class EcommerceTransactionItem extends AbstractEvent {
      * @return the payload to be sent.
      */
     public TrackerPayload getPayload() {
-        TrackerPayload payload = new TrackerPayload();
+        return getPayload(EventIdGenerator.RANDOM_UUID);
+    }
+
+    /**
+     * Returns a TrackerPayload which can be passed to an Emitter, with an event ID from the given generator.
+     *
+     * @param eventIdGenerator generates the event ID
+     * @return the payload to be sent.
+     */
+    @Override
+    public TrackerPayload getPayload(EventIdGenerator eventIdGenerator) {
+        TrackerPayload payload = new TrackerPayload(eventIdGenerator);
         payload.add(Parameter.EVENT, Constants.EVENT_ECOMM_ITEM);
         payload.add(Parameter.TI_ITEM_ID, this.itemId);
         payload.add(Parameter.TI_ITEM_SKU, this.sku);
@@ -14,6 +14,7 @@ package com.snowplowanalytics.snowplow.tracker.events;
 
 import java.util.List;
 
+import com.snowplowanalytics.snowplow.tracker.EventIdGenerator;
 import com.snowplowanalytics.snowplow.tracker.Subject;
 import com.snowplowanalytics.snowplow.tracker.payload.Payload;
 import com.snowplowanalytics.snowplow.tracker.payload.SelfDescribingJson;
@@ -42,4 +43,15 @@ public interface Event {
      * @return the event payload
      */
     Payload getPayload();
+
+    /**
+     * Returns the event payload. Events which create a TrackerPayload take its event ID from the given
+     * generator; the default implementation ignores it and returns {@link #getPayload()}.
+     *
+     * @param eventIdGenerator generates the event ID
+     * @return the event payload
+     */
+    default Payload getPayload(EventIdGenerator eventIdGenerator) {
+        return getPayload();
+    }
 }
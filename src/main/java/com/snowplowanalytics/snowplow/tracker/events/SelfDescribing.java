@@ -13,6 +13,7 @@
 package com.snowplowanalytics.snowplow.tracker.events;
 
 // This library
+import com.snowplowanalytics.snowplow.tracker.EventIdGenerator;
 import com.snowplowanalytics.snowplow.tracker.constants.Parameter;
 import com.snowplowanalytics.snowplow.tracker.constants.Constants;
 import com.snowplowanalytics.snowplow.tracker.payload.SelfDescribingJson;
@@ -87,7 +88,18 @@ public class SelfDescribing extends AbstractEvent {
      * @return the payload to be sent.
      */
     public TrackerPayload getPayload() {
-        TrackerPayload payload = new TrackerPayload();
+        return getPayload(EventIdGenerator.RANDOM_UUID);
+    }
+
+    /**
+     * Returns a TrackerPayload which can be passed to an Emitter, with an event ID from the given generator.
+     *
+     * @param eventIdGenerator generates the event ID
+     * @return the payload to be sent.
+     */
+    @Override
+    public TrackerPayload getPayload(EventIdGenerator eventIdGenerator) {
+        TrackerPayload payload = new TrackerPayload(eventIdGenerator);
         SelfDescribingJson envelope = new SelfDescribingJson(
                 Constants.SCHEMA_SELF_DESCRIBING_EVENT, this.eventData.getMap());
         payload.add(Parameter.EVENT, Constants.EVENT_SELF_DESCRIBING);
@@ -12,17 +12,34 @@
  */
 package com.snowplowanalytics.snowplow.tracker.http;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPOutputStream;
+
 import com.snowplowanalytics.snowplow.tracker.constants.Constants;
 import com.snowplowanalytics.snowplow.tracker.Utils;
+import com.snowplowanalytics.snowplow.tracker.payload.EncodedBatch;
 import com.snowplowanalytics.snowplow.tracker.payload.SelfDescribingJson;
 import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
 
 /**
  * Abstract HttpClient class.
+ *
+ * POST bodies can be compressed with gzip, see {@link #setGzipThreshold(long)}.
+ * The event JSON is highly repetitive, so it usually compresses to a small fraction of its size.
  */
 public abstract class AbstractHttpClientAdapter implements HttpClientAdapter {
 
+    /**
+     * The Content-Encoding header value for compressed POST bodies.
+     */
+    protected static final String GZIP_CONTENT_ENCODING = "gzip";
+    private static final int GZIP_BUFFER_SIZE = 8192;
+
     protected final String url;
+    private volatile long gzipThreshold = -1;
 
     public AbstractHttpClientAdapter(String url) {
         this.url = url.replaceFirst("/*$", "");
@@ -38,6 +55,61 @@ public abstract class AbstractHttpClientAdapter implements HttpClientAdapter {
         return this.url;
     }
 
+    /**
+     * Returns the minimum size in bytes of the POST bodies to compress with gzip,
+     * or a negative value if they are never compressed.
+     *
+     * @return the gzip threshold
+     */
+    public long getGzipThreshold() {
+        return gzipThreshold;
+    }
+
+    /**
+     * Compresses POST bodies of at least the given size in bytes with gzip, sending them with
+     * a "Content-Encoding: gzip" header. The default is -1: bodies are never compressed.
+     * Small bodies gain little from compression, so a threshold of around 1 KB is a good start.
+     * The collector must accept compressed requests.
+     *
+     * @param gzipThreshold the minimum body size to compress, or a negative value to never compress
+     */
+    public void setGzipThreshold(long gzipThreshold) {
+        this.gzipThreshold = gzipThreshold;
+    }
+
+    /**
+     * Returns whether a POST body of the given size should be compressed with gzip.
+     *
+     * @param contentLength the uncompressed body size in bytes
+     * @return true to compress the body
+     */
+    protected boolean shouldCompress(long contentLength) {
+        long threshold = gzipThreshold;
+        return threshold >= 0 && contentLength >= threshold;
+    }
+
+    /**
+     * Compresses a POST body with gzip as it is written to the request stream,
+     * so the body is not buffered again. The stream is not closed.
+     *
+     * @param out the request stream
+     * @param body writes the uncompressed body
+     * @throws IOException if the stream cannot be written to
+     */
+    protected static void writeGzip(OutputStream out, BodyWriter body) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(out, GZIP_BUFFER_SIZE);
+        body.writeTo(gzip);
+        gzip.finish();
+    }
+
+    /**
+     * Writes an uncompressed POST body, such as {@link EncodedBatch#writeTo(OutputStream)}.
+     */
+    @FunctionalInterface
+    protected interface BodyWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
     /**
      * Sends a payload via a POST request.
      *
@@ -50,6 +122,40 @@ public abstract class AbstractHttpClientAdapter implements HttpClientAdapter {
         return doPost(url, body);
     }
 
+    /**
+     * Sends a payload via a POST request, without waiting for the response.
+     *
+     * @param payload the SelfDescribingJson to send
+     */
+    @Override
+    public CompletableFuture<Integer> postAsync(SelfDescribingJson payload) {
+        String url = this.url + "/" + Constants.PROTOCOL_VENDOR + "/" + Constants.PROTOCOL_VERSION;
+        String body = payload.toString();
+        return doPostAsync(url, body);
+    }
+
+    /**
+     * Sends encoded events via a POST request.
+     *
+     * @param batch the encoded events to send
+     */
+    @Override
+    public int post(EncodedBatch batch) {
+        String url = this.url + "/" + Constants.PROTOCOL_VENDOR + "/" + Constants.PROTOCOL_VERSION;
+        return doPost(url, batch);
+    }
+
+    /**
+     * Sends encoded events via a POST request, without waiting for the response.
+     *
+     * @param batch the encoded events to send
+     */
+    @Override
+    public CompletableFuture<Integer> postAsync(EncodedBatch batch) {
+        String url = this.url + "/" + Constants.PROTOCOL_VENDOR + "/" + Constants.PROTOCOL_VERSION;
+        return doPostAsync(url, batch);
+    }
+
     /**
      * Sends a payload via a GET request.
      *
@@ -79,6 +185,81 @@ public abstract class AbstractHttpClientAdapter implements HttpClientAdapter {
      */
     protected abstract int doPost(String url, String payload);
 
+    /**
+     * Sends the SelfDescribingJson string containing
+     * the events as a POST request to the endpoint,
+     * without waiting for the response.
+     * <p>
+     * The default implementation sends the request
+     * synchronously using {@link #doPost(String, String)}.
+     *
+     * @param url the URL to send to
+     * @param payload the event payload String
+     * @return the future result of the send
+     */
+    protected CompletableFuture<Integer> doPostAsync(String url, String payload) {
+        return CompletableFuture.completedFuture(doPost(url, payload));
+    }
+
+    /**
+     * Sends the SelfDescribingJson containing the events,
+     * already encoded as UTF-8 JSON, as a POST request to the endpoint.
+     * <p>
+     * The default implementation decodes the body for {@link #doPost(String, String)}.
+     *
+     * @param url the URL to send to
+     * @param body the encoded event payload
+     * @return the result of the send
+     */
+    protected int doPost(String url, byte[] body) {
+        return doPost(url, new String(body, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends the SelfDescribingJson containing the events,
+     * already encoded as UTF-8 JSON, as a POST request to the endpoint,
+     * without waiting for the response.
+     * <p>
+     * The default implementation decodes the body for {@link #doPostAsync(String, String)}.
+     *
+     * @param url the URL to send to
+     * @param body the encoded event payload
+     * @return the future result of the send
+     */
+    protected CompletableFuture<Integer> doPostAsync(String url, byte[] body) {
+        return doPostAsync(url, new String(body, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends the SelfDescribingJson containing the encoded events
+     * as a POST request to the endpoint.
+     * <p>
+     * The default implementation builds the whole body for {@link #doPost(String, byte[])}.
+     * Adapters which can stream the body to the request should override this
+     * to write it with {@link EncodedBatch#writeTo(java.io.OutputStream)}.
+     *
+     * @param url the URL to send to
+     * @param batch the encoded events
+     * @return the result of the send
+     */
+    protected int doPost(String url, EncodedBatch batch) {
+        return doPost(url, batch.toByteArray());
+    }
+
+    /**
+     * Sends the SelfDescribingJson containing the encoded events
+     * as a POST request to the endpoint, without waiting for the response.
+     * <p>
+     * The default implementation builds the whole body for {@link #doPostAsync(String, byte[])}.
+     *
+     * @param url the URL to send to
+     * @param batch the encoded events
+     * @return the future result of the send
+     */
+    protected CompletableFuture<Integer> doPostAsync(String url, EncodedBatch batch) {
+        return doPostAsync(url, batch.toByteArray());
+    }
+
     /**
      * Sends the Map of key-value pairs for the event
      * as a GET request to the endpoint.
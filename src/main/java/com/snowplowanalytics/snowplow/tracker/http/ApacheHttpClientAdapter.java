@@ -12,27 +12,43 @@
  */
 package com.snowplowanalytics.snowplow.tracker.http;
 
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.core5.concurrent.FutureCallback;
 import org.apache.hc.core5.http.ContentType;
-import org.apache.hc.core5.http.io.entity.StringEntity;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.apache.hc.core5.http.io.entity.EntityTemplate;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.snowplowanalytics.snowplow.tracker.constants.Constants;
+import com.snowplowanalytics.snowplow.tracker.payload.EncodedBatch;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A HttpClient built using Apache to send events via
  * GET or POST requests.
+ *
+ * If an async client is also provided, asynchronous POST requests
+ * are sent with it, without blocking a thread per request.
  */
 public class ApacheHttpClientAdapter extends AbstractHttpClientAdapter {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ApacheHttpClientAdapter.class);
     private CloseableHttpClient httpClient;
+    private CloseableHttpAsyncClient httpAsyncClient;
 
     public ApacheHttpClientAdapter(String url, CloseableHttpClient httpClient) {
         super(url);
@@ -43,6 +59,23 @@ public class ApacheHttpClientAdapter extends AbstractHttpClientAdapter {
         this.httpClient = httpClient;
     }
 
+    /**
+     * Creates an adapter which also sends asynchronous POST requests with an async client.
+     * The async client must already be started.
+     *
+     * @param url the collector URL
+     * @param httpClient the client for synchronous requests
+     * @param httpAsyncClient the client for asynchronous POST requests
+     */
+    public ApacheHttpClientAdapter(String url, CloseableHttpClient httpClient, CloseableHttpAsyncClient httpAsyncClient) {
+        this(url, httpClient);
+
+        // Precondition checks
+        Objects.requireNonNull(httpAsyncClient);
+
+        this.httpAsyncClient = httpAsyncClient;
+    }
+
     /**
      * Returns the HttpClient in use; it is up to the developer
      * to cast it back to its original class.
@@ -81,11 +114,145 @@ public class ApacheHttpClientAdapter extends AbstractHttpClientAdapter {
      * @return the HttpResponse for the Request
      */
     public int doPost(String url, String payload) {
+        return doPost(url, payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Attempts to send a group of encoded payloads with a
+     * POST request to the configured endpoint.
+     *
+     * @param url the URL to send to
+     * @param body the encoded payload to send
+     * @return the HttpResponse for the Request
+     */
+    @Override
+    protected int doPost(String url, byte[] body) {
+        if (shouldCompress(body.length)) {
+            return executePost(url, gzipEntity(out -> out.write(body)));
+        }
+        return executePost(url, new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+    }
+
+    /**
+     * Attempts to send a batch of encoded events with a
+     * POST request to the configured endpoint, streaming
+     * the body to the request entity.
+     *
+     * @param url the URL to send to
+     * @param batch the encoded events to send
+     * @return the HttpResponse for the Request
+     */
+    @Override
+    protected int doPost(String url, EncodedBatch batch) {
+        long contentLength = batch.getContentLength();
+        if (shouldCompress(contentLength)) {
+            return executePost(url, gzipEntity(batch::writeTo));
+        }
+        return executePost(url, new EntityTemplate(contentLength, ContentType.APPLICATION_JSON, null, batch::writeTo));
+    }
+
+    /**
+     * Attempts to send a group of payloads with a
+     * POST request to the configured endpoint, using the
+     * async client if there is one.
+     *
+     * @param url the URL to send to
+     * @param payload the payload to send
+     * @return the future HttpResponse code for the Request, or -1 if the request failed
+     */
+    @Override
+    protected CompletableFuture<Integer> doPostAsync(String url, String payload) {
+        return doPostAsync(url, payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Attempts to send a batch of encoded events with a
+     * POST request to the configured endpoint, using the
+     * async client if there is one. The async client sends
+     * the whole body, so the body is only streamed without it.
+     *
+     * @param url the URL to send to
+     * @param batch the encoded events to send
+     * @return the future HttpResponse code for the Request, or -1 if the request failed
+     */
+    @Override
+    protected CompletableFuture<Integer> doPostAsync(String url, EncodedBatch batch) {
+        if (httpAsyncClient == null) {
+            return CompletableFuture.completedFuture(doPost(url, batch));
+        }
+        return doPostAsync(url, batch.toByteArray());
+    }
+
+    /**
+     * Attempts to send a group of encoded payloads with a
+     * POST request to the configured endpoint, using the
+     * async client if there is one.
+     *
+     * @param url the URL to send to
+     * @param body the encoded payload to send
+     * @return the future HttpResponse code for the Request, or -1 if the request failed
+     */
+    @Override
+    protected CompletableFuture<Integer> doPostAsync(String url, byte[] body) {
+        if (httpAsyncClient == null) {
+            return CompletableFuture.completedFuture(doPost(url, body));
+        }
+
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        try {
+            // The async client sends a whole body, so it is compressed in memory
+            boolean gzip = shouldCompress(body.length);
+            SimpleHttpRequest httpPost = SimpleRequestBuilder.post(url)
+                    .setBody(gzip ? gzip(body) : body, ContentType.APPLICATION_JSON)
+                    .build();
+            httpPost.addHeader("Content-Type", Constants.POST_CONTENT_TYPE);
+            if (gzip) {
+                httpPost.addHeader("Content-Encoding", GZIP_CONTENT_ENCODING);
+            }
+            httpAsyncClient.execute(httpPost, new FutureCallback<SimpleHttpResponse>() {
+                @Override
+                public void completed(SimpleHttpResponse response) {
+                    result.complete(response.getCode());
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    LOGGER.error("ApacheHttpAsyncClient POST Request failed: {}", e.getMessage());
+                    result.complete(-1);
+                }
+
+                @Override
+                public void cancelled() {
+                    LOGGER.error("ApacheHttpAsyncClient POST Request cancelled");
+                    result.complete(-1);
+                }
+            });
+        } catch (Exception e) {
+            LOGGER.error("ApacheHttpAsyncClient POST Request failed: {}", e.getMessage());
+            result.complete(-1);
+        }
+        return result;
+    }
+
+    /**
+     * Creates an entity which compresses the body as it is written to the request.
+     * The compressed length is unknown, so the body is sent chunked.
+     */
+    private static HttpEntity gzipEntity(BodyWriter body) {
+        return new EntityTemplate(-1, ContentType.APPLICATION_JSON, GZIP_CONTENT_ENCODING, out -> writeGzip(out, body));
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4);
+        writeGzip(out, gzip -> gzip.write(body));
+        return out.toByteArray();
+    }
+
+    private int executePost(String url, HttpEntity entity) {
         try {
             HttpPost httpPost = new HttpPost(url);
             httpPost.addHeader("Content-Type", Constants.POST_CONTENT_TYPE);
-            StringEntity params = new StringEntity(payload, ContentType.APPLICATION_JSON);
-            httpPost.setEntity(params);
+            httpPost.setEntity(entity);
             return httpClient.execute(httpPost, response -> {
                 return response.getCode();
             });
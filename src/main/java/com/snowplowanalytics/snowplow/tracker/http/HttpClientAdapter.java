@@ -12,7 +12,11 @@
  */
 package com.snowplowanalytics.snowplow.tracker.http;
 
+// Java
+import java.util.concurrent.CompletableFuture;
+
 // This library
+import com.snowplowanalytics.snowplow.tracker.payload.EncodedBatch;
 import com.snowplowanalytics.snowplow.tracker.payload.SelfDescribingJson;
 import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
 
@@ -30,6 +34,50 @@ public interface HttpClientAdapter {
      */
     int post(SelfDescribingJson payload);
 
+    /**
+     * Sends a group of events compressed into a
+     * single SelfDescribingJson payload, without
+     * waiting for the response.
+     * <p>
+     * The default implementation sends the request
+     * synchronously using {@link #post(SelfDescribingJson)}.
+     *
+     * @param payload the final event payload
+     * @return a future status code
+     */
+    default CompletableFuture<Integer> postAsync(SelfDescribingJson payload) {
+        return CompletableFuture.completedFuture(post(payload));
+    }
+
+    /**
+     * Sends a group of events as a single POST request,
+     * using their JSON as already encoded.
+     * <p>
+     * The default implementation converts the batch to a
+     * SelfDescribingJson for {@link #post(SelfDescribingJson)}.
+     *
+     * @param batch the encoded events
+     * @return status code
+     */
+    default int post(EncodedBatch batch) {
+        return post(batch.toSelfDescribingJson());
+    }
+
+    /**
+     * Sends a group of events as a single POST request,
+     * using their JSON as already encoded, without
+     * waiting for the response.
+     * <p>
+     * The default implementation converts the batch to a
+     * SelfDescribingJson for {@link #postAsync(SelfDescribingJson)}.
+     *
+     * @param batch the encoded events
+     * @return a future status code
+     */
+    default CompletableFuture<Integer> postAsync(EncodedBatch batch) {
+        return postAsync(batch.toSelfDescribingJson());
+    }
+
     /**
      * Sends a single TrackerPayload via a
      * GET request
@@ -14,10 +14,13 @@ package com.snowplowanalytics.snowplow.tracker.http;
 
 // Java
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 
 // SquareUp
 import okhttp3.*;
+import okio.BufferedSink;
 
 // Slf4j
 import org.slf4j.Logger;
@@ -25,10 +28,16 @@ import org.slf4j.LoggerFactory;
 
 // This library
 import com.snowplowanalytics.snowplow.tracker.constants.Constants;
+import com.snowplowanalytics.snowplow.tracker.payload.EncodedBatch;
 
 /**
  * A HttpClient built using OkHttp to send events via
  * GET or POST requests.
+ *
+ * Asynchronous POST requests are queued with OkHttp's Dispatcher,
+ * which by default allows 5 concurrent requests per host.
+ * Configure the Dispatcher of the OkHttpClient to allow more,
+ * or use {@link #OkHttpClientAdapter(String, int)}.
  */
 public class OkHttpClientAdapter extends AbstractHttpClientAdapter {
 
@@ -49,6 +58,39 @@ public class OkHttpClientAdapter extends AbstractHttpClientAdapter {
         this(url, new OkHttpClient.Builder().build());
     }
 
+    /**
+     * Creates an adapter whose OkHttpClient allows the given number of
+     * asynchronous requests at once, to the collector host as well as in total.
+     *
+     * @param url the collector URL
+     * @param maxConcurrentRequests the maximum number of asynchronous requests in flight
+     */
+    public OkHttpClientAdapter(String url, int maxConcurrentRequests) {
+        this(url, new OkHttpClient.Builder().dispatcher(createDispatcher(maxConcurrentRequests)).build());
+    }
+
+    private static Dispatcher createDispatcher(int maxConcurrentRequests) {
+        if (maxConcurrentRequests <= 0) {
+            throw new IllegalArgumentException("maxConcurrentRequests must be greater than 0");
+        }
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxConcurrentRequests);
+        dispatcher.setMaxRequestsPerHost(maxConcurrentRequests);
+        return dispatcher;
+    }
+
+    /**
+     * Returns how many asynchronous requests to the collector the
+     * Dispatcher of the OkHttpClient runs at once. Further requests
+     * wait in the Dispatcher queue.
+     *
+     * @return the maximum number of asynchronous requests in flight
+     */
+    public int getMaxConcurrentAsyncRequests() {
+        Dispatcher dispatcher = httpClient.dispatcher();
+        return Math.min(dispatcher.getMaxRequests(), dispatcher.getMaxRequestsPerHost());
+    }
+
     /**
      * Returns the HttpClient in use; it is up to the developer
      * to cast it back to its original class.
@@ -93,14 +135,82 @@ public class OkHttpClientAdapter extends AbstractHttpClientAdapter {
      * @return the HttpResponse code for the Request or -1 if exception is caught
      */
     public int doPost(String url, String payload) {
+        return doPost(url, payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Attempts to send a group of encoded payloads with a
+     * POST request to the configured endpoint.
+     *
+     * @param url the URL to send to
+     * @param body the encoded payload to send
+     * @return the HttpResponse code for the Request or -1 if exception is caught
+     */
+    @Override
+    protected int doPost(String url, byte[] body) {
+        return executePost(buildPostRequest(url, body));
+    }
+
+    /**
+     * Attempts to send a batch of encoded events with a
+     * POST request to the configured endpoint, streaming
+     * the body to the request.
+     *
+     * @param url the URL to send to
+     * @param batch the encoded events to send
+     * @return the HttpResponse code for the Request or -1 if exception is caught
+     */
+    @Override
+    protected int doPost(String url, EncodedBatch batch) {
+        return executePost(buildPostRequest(url, batch));
+    }
+
+    /**
+     * Attempts to send a group of payloads with a
+     * POST request to the configured endpoint,
+     * using OkHttp's asynchronous call queue.
+     *
+     * @param url the URL to send to
+     * @param payload the payload to send
+     * @return the future HttpResponse code for the Request, or -1 if the request failed
+     */
+    @Override
+    protected CompletableFuture<Integer> doPostAsync(String url, String payload) {
+        return doPostAsync(url, payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Attempts to send a group of encoded payloads with a
+     * POST request to the configured endpoint,
+     * using OkHttp's asynchronous call queue.
+     *
+     * @param url the URL to send to
+     * @param body the encoded payload to send
+     * @return the future HttpResponse code for the Request, or -1 if the request failed
+     */
+    @Override
+    protected CompletableFuture<Integer> doPostAsync(String url, byte[] body) {
+        return enqueuePost(buildPostRequest(url, body));
+    }
+
+    /**
+     * Attempts to send a batch of encoded events with a
+     * POST request to the configured endpoint,
+     * using OkHttp's asynchronous call queue and streaming
+     * the body to the request.
+     *
+     * @param url the URL to send to
+     * @param batch the encoded events to send
+     * @return the future HttpResponse code for the Request, or -1 if the request failed
+     */
+    @Override
+    protected CompletableFuture<Integer> doPostAsync(String url, EncodedBatch batch) {
+        return enqueuePost(buildPostRequest(url, batch));
+    }
+
+    private int executePost(Request request) {
         int returnValue = -1;
 
-        RequestBody body = RequestBody.create(payload, JSON);
-        Request request = new Request.Builder()
-                .url(url)
-                .addHeader("Content-Type", Constants.POST_CONTENT_TYPE)
-                .post(body)
-                .build();
         try (Response response = httpClient.newCall(request).execute()) {
             if (!response.isSuccessful()) {
                 LOGGER.error("OkHttpClient POST Request failed: {}", response);
@@ -112,4 +222,88 @@ public class OkHttpClientAdapter extends AbstractHttpClientAdapter {
 
         return returnValue;
     }
+
+    private CompletableFuture<Integer> enqueuePost(Request request) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+
+        httpClient.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                LOGGER.error("OkHttpClient POST Request failed: {}", e.getMessage());
+                result.complete(-1);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (Response closeableResponse = response) {
+                    if (!closeableResponse.isSuccessful()) {
+                        LOGGER.error("OkHttpClient POST Request failed: {}", closeableResponse);
+                    }
+                    result.complete(closeableResponse.code());
+                }
+            }
+        });
+
+        return result;
+    }
+
+    private Request buildPostRequest(String url, byte[] body) {
+        if (shouldCompress(body.length)) {
+            return buildPostRequest(url, new StreamingRequestBody(out -> out.write(body), body.length, true), true);
+        }
+        return buildPostRequest(url, RequestBody.create(body, JSON), false);
+    }
+
+    private Request buildPostRequest(String url, EncodedBatch batch) {
+        long contentLength = batch.getContentLength();
+        boolean gzip = shouldCompress(contentLength);
+        return buildPostRequest(url, new StreamingRequestBody(batch::writeTo, contentLength, gzip), gzip);
+    }
+
+    private Request buildPostRequest(String url, RequestBody body, boolean gzip) {
+        Request.Builder builder = new Request.Builder()
+                .url(url)
+                .addHeader("Content-Type", Constants.POST_CONTENT_TYPE);
+        if (gzip) {
+            builder.addHeader("Content-Encoding", GZIP_CONTENT_ENCODING);
+        }
+        return builder.post(body).build();
+    }
+
+    /**
+     * Writes the body straight to the request sink, compressing it on the way if needed,
+     * so the body is never built in memory. The compressed length is unknown, so
+     * compressed bodies are sent chunked.
+     * OkHttp may write the body again to retry the request on another connection.
+     */
+    private class StreamingRequestBody extends RequestBody {
+        private final BodyWriter body;
+        private final long contentLength;
+        private final boolean gzip;
+
+        StreamingRequestBody(BodyWriter body, long contentLength, boolean gzip) {
+            this.body = body;
+            this.contentLength = contentLength;
+            this.gzip = gzip;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return JSON;
+        }
+
+        @Override
+        public long contentLength() {
+            return gzip ? -1 : contentLength;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            if (gzip) {
+                writeGzip(sink.outputStream(), body);
+            } else {
+                body.writeTo(sink.outputStream());
+            }
+        }
+    }
 }
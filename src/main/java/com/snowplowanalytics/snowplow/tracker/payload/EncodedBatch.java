@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.payload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import com.snowplowanalytics.snowplow.tracker.Utils;
+import com.snowplowanalytics.snowplow.tracker.constants.Constants;
+import com.snowplowanalytics.snowplow.tracker.constants.Parameter;
+
+/**
+ * A batch of events to send in a POST request, as a payload_data SelfDescribingJson.
+ *
+ * The JSON of each event is encoded once, by {@link TrackerPayload#getEncodedJson()}, and reused by every
+ * attempt to send it until the event is returned to the buffer. Building the request body only joins the
+ * encoded events, splicing the "stm" sent timestamp of this attempt into each one. The events themselves
+ * are not modified.
+ * The body can also be streamed to the HTTP request with {@link #writeTo(OutputStream)}, without
+ * building it in memory.
+ */
+public final class EncodedBatch {
+
+    private static final byte[] PREFIX;
+    private static final byte[] SUFFIX = "]}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEPARATOR = ",".getBytes(StandardCharsets.UTF_8);
+
+    static {
+        // {"schema":"..."} becomes {"schema":"...","data":[
+        String schema = Utils.mapToJSONString(Collections.singletonMap(Parameter.SCHEMA, Constants.SCHEMA_PAYLOAD_DATA));
+        PREFIX = (schema.substring(0, schema.length() - 1) + ",\"" + Parameter.DATA + "\":[")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private final List<TrackerPayload> events;
+    private final long sentTimestamp;
+    private final byte[] stm;
+    private byte[] body;
+
+    /**
+     * Creates an EncodedBatch.
+     *
+     * @param events the events to send
+     * @param sentTimestamp the "stm" timestamp to send with each event
+     */
+    public EncodedBatch(List<TrackerPayload> events, long sentTimestamp) {
+        this.events = Objects.requireNonNull(events);
+        this.sentTimestamp = sentTimestamp;
+        this.stm = ("\"" + Parameter.DEVICE_SENT_TIMESTAMP + "\":\"" + sentTimestamp + "\"")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the events in the batch.
+     *
+     * @return the events
+     */
+    public List<TrackerPayload> getEvents() {
+        return events;
+    }
+
+    /**
+     * Returns the "stm" timestamp sent with each event.
+     *
+     * @return the sent timestamp
+     */
+    public long getSentTimestamp() {
+        return sentTimestamp;
+    }
+
+    /**
+     * Returns the length of the request body in bytes, without building it.
+     *
+     * @return the body length
+     */
+    public long getContentLength() {
+        long length = PREFIX.length + SUFFIX.length;
+        for (TrackerPayload event : events) {
+            byte[] json = event.getEncodedJson();
+            // Each event gains "stm":"...", followed by a comma unless the event has no other entries
+            length += json.length + stm.length + (json.length > 2 ? SEPARATOR.length : 0);
+        }
+        // The events are separated by commas
+        return length + (events.isEmpty() ? 0 : (long) (events.size() - 1) * SEPARATOR.length);
+    }
+
+    /**
+     * Writes the request body, as UTF-8 JSON, to a stream. The encoded events are written directly,
+     * so the whole body is never held in memory. The body can be written any number of times.
+     *
+     * @param out the stream to write to
+     * @throws IOException if the stream cannot be written to
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(PREFIX);
+        boolean first = true;
+        for (TrackerPayload event : events) {
+            if (!first) {
+                out.write(SEPARATOR);
+            }
+            first = false;
+            byte[] json = event.getEncodedJson();
+            // {"stm":"...", followed by the event's entries after its opening brace
+            out.write(json, 0, 1);
+            out.write(stm);
+            if (json.length > 2) {
+                out.write(SEPARATOR);
+            }
+            out.write(json, 1, json.length - 1);
+        }
+        out.write(SUFFIX);
+    }
+
+    /**
+     * Returns the request body, as UTF-8 JSON. The body is built on the first call.
+     * HttpClientAdapters which can stream the body should use {@link #writeTo(OutputStream)} instead.
+     *
+     * @return the request body
+     */
+    public synchronized byte[] toByteArray() {
+        if (body == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) getContentLength());
+            try {
+                writeTo(out);
+            } catch (IOException e) {
+                // ByteArrayOutputStream does not throw
+                throw new UncheckedIOException(e);
+            }
+            body = out.toByteArray();
+        }
+        return body;
+    }
+
+    /**
+     * Returns the batch as a SelfDescribingJson, for HttpClientAdapters which don't send
+     * encoded batches. Each event's key-value pairs are copied, and "stm" is added to the copy.
+     *
+     * @return the POST payload
+     */
+    public SelfDescribingJson toSelfDescribingJson() {
+        List<Map<String, String>> data = new ArrayList<>(events.size());
+        String stm = Long.toString(sentTimestamp);
+        for (TrackerPayload event : events) {
+            Map<String, String> map = new LinkedHashMap<>(event.getMap());
+            map.put(Parameter.DEVICE_SENT_TIMESTAMP, stm);
+            data.add(map);
+        }
+        return new SelfDescribingJson(Constants.SCHEMA_PAYLOAD_DATA, data);
+    }
+
+    /**
+     * Returns the request body as a String.
+     *
+     * @return the request body
+     */
+    @Override
+    public String toString() {
+        return new String(toByteArray(), StandardCharsets.UTF_8);
+    }
+}
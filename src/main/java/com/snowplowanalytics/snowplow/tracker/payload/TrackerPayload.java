@@ -12,42 +12,127 @@
  */
 package com.snowplowanalytics.snowplow.tracker.payload;
 
-import java.nio.charset.StandardCharsets;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.*;
 
 import com.snowplowanalytics.snowplow.tracker.constants.Parameter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.snowplowanalytics.snowplow.tracker.EventIdGenerator;
 import com.snowplowanalytics.snowplow.tracker.Utils;
 
 /**
  * A TrackerPayload stores a map of key - pair values.
  *
- * When the Emitter attempts to send a TrackerPayload, these pairs are extracted
- * and added to the HTTP request (via a SelfDescribingJson).
- * The deviceSentTimestamp ("stm") is added at that point.
+ * When the Emitter attempts to send a TrackerPayload, these pairs are encoded
+ * as JSON once, and added to the HTTP request (via an EncodedBatch).
+ * The deviceSentTimestamp ("stm") is added to the request at that point.
  *
  * EventId and deviceCreatedTimestamp are added to the internal map at
  * TrackerPayload initialization.
+ *
+ * To keep buffered events small, the values of the parameters set by the tracker are stored
+ * in an array, indexed by parameter, rather than in a map entry each. Other keys are kept in a
+ * small map. The order the keys were added in is kept as one byte per key, so that {@link #getMap()},
+ * a view of both, lists the keys in the order they were added, like a LinkedHashMap.
  */
 public class TrackerPayload implements Payload {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(TrackerPayload.class);
-    protected final Map<String, String> payload = new LinkedHashMap<>();
+
+    // The parameters set by the tracker, most common first, so that most payloads only use the start of the array
+    private static final String[] KNOWN_KEYS = {
+            Parameter.EVENT, Parameter.EID, Parameter.DEVICE_CREATED_TIMESTAMP, Parameter.TRUE_TIMESTAMP,
+            Parameter.TRACKER_VERSION, Parameter.APP_ID, Parameter.NAMESPACE, Parameter.PLATFORM,
+            Parameter.UID, Parameter.CONTEXT, Parameter.CONTEXT_ENCODED,
+            Parameter.SELF_DESCRIBING, Parameter.SELF_DESCRIBING_ENCODED,
+            Parameter.RESOLUTION, Parameter.VIEWPORT, Parameter.COLOR_DEPTH, Parameter.TIMEZONE,
+            Parameter.LANGUAGE, Parameter.IP_ADDRESS, Parameter.USERAGENT,
+            Parameter.DOMAIN_UID, Parameter.NETWORK_UID, Parameter.SESSION_UID,
+            Parameter.PAGE_URL, Parameter.PAGE_TITLE, Parameter.PAGE_REFR,
+            Parameter.SE_CATEGORY, Parameter.SE_ACTION, Parameter.SE_LABEL, Parameter.SE_PROPERTY, Parameter.SE_VALUE,
+            Parameter.TR_ID, Parameter.TR_TOTAL, Parameter.TR_AFFILIATION, Parameter.TR_TAX, Parameter.TR_SHIPPING,
+            Parameter.TR_CITY, Parameter.TR_STATE, Parameter.TR_COUNTRY, Parameter.TR_CURRENCY,
+            Parameter.TI_ITEM_ID, Parameter.TI_ITEM_SKU, Parameter.TI_ITEM_NAME, Parameter.TI_ITEM_CATEGORY,
+            Parameter.TI_ITEM_PRICE, Parameter.TI_ITEM_QUANTITY, Parameter.TI_ITEM_CURRENCY
+    };
+    private static final Map<String, Integer> KNOWN_KEY_INDEXES = new HashMap<>();
+    private static final int INITIAL_KNOWN_VALUES = 8;
+    // Marks a key of otherValues in the insertion order; the other entries are indexes of KNOWN_KEYS
+    private static final byte OTHER_KEY = -1;
+
+    static {
+        for (int i = 0; i < KNOWN_KEYS.length; i++) {
+            KNOWN_KEY_INDEXES.put(KNOWN_KEYS[i], i);
+        }
+    }
+
+    /**
+     * A view of the key-value pairs. Changes made through the view update the payload.
+     */
+    protected final Map<String, String> payload = new PayloadMap();
+    // Values of the KNOWN_KEYS, grown as needed
+    private String[] knownValues = new String[INITIAL_KNOWN_VALUES];
+    // Other keys, in the order they were added, or null if there are none
+    private Map<String, String> otherValues;
+    // The keys in the order they were added: the first size bytes are used
+    private byte[] keyOrder = new byte[INITIAL_KNOWN_VALUES];
+    private int size;
     private final String eventId;
     private final Long deviceCreatedTimestamp;
 
+    // The JSON object braces, less the comma which the last entry doesn't have
+    private long estimatedByteSize = 1;
+    // The JSON of the key-value pairs other than "stm", once encoded
+    private byte[] encodedJson;
 
+    /**
+     * Creates a TrackerPayload with a new random event ID, from {@link Utils#getEventId()}.
+     */
     public TrackerPayload() {
-        eventId = Utils.getEventId();
+        this(EventIdGenerator.RANDOM_UUID);
+    }
+
+    /**
+     * Creates a TrackerPayload with a new event ID from the given generator.
+     *
+     * @param eventIdGenerator generates the event ID
+     */
+    public TrackerPayload(final EventIdGenerator eventIdGenerator) {
+        eventId = eventIdGenerator.generateEventId();
         deviceCreatedTimestamp = System.currentTimeMillis();
 
         add(Parameter.EID, eventId);
         add(Parameter.DEVICE_CREATED_TIMESTAMP, Long.toString(deviceCreatedTimestamp));
     }
 
+    /**
+     * Creates a TrackerPayload from the key-value pairs of an existing payload,
+     * for example one restored from persistent storage. The event ID and
+     * device created timestamp are taken from the map, if present.
+     *
+     * @param map the key-value pairs of the payload
+     */
+    public TrackerPayload(final Map<String, String> map) {
+        String storedEventId = map.get(Parameter.EID);
+        eventId = storedEventId != null ? storedEventId : Utils.getEventId();
+
+        Long storedTimestamp = null;
+        try {
+            String timestamp = map.get(Parameter.DEVICE_CREATED_TIMESTAMP);
+            if (timestamp != null) {
+                storedTimestamp = Long.parseLong(timestamp);
+            }
+        } catch (NumberFormatException e) {
+            LOGGER.debug("Invalid device created timestamp: {}", map.get(Parameter.DEVICE_CREATED_TIMESTAMP));
+        }
+        deviceCreatedTimestamp = storedTimestamp != null ? storedTimestamp : System.currentTimeMillis();
+
+        add(Parameter.EID, eventId);
+        add(Parameter.DEVICE_CREATED_TIMESTAMP, Long.toString(deviceCreatedTimestamp));
+        addMap(map);
+    }
+
     public String getEventId() {
         return eventId;
     }
@@ -74,7 +159,99 @@ public class TrackerPayload implements Payload {
             return;
         }
         LOGGER.debug("Adding new kv pair: {}->{}", key, value);
-        payload.put(key, value);
+        putValue(key, value);
+    }
+
+    private String getValue(Object key) {
+        Integer index = KNOWN_KEY_INDEXES.get(key);
+        if (index != null) {
+            return index < knownValues.length ? knownValues[index] : null;
+        }
+        return otherValues != null ? otherValues.get(key) : null;
+    }
+
+    private String putValue(String key, String value) {
+        String previousValue;
+        Integer index = KNOWN_KEY_INDEXES.get(key);
+        if (index != null) {
+            if (index >= knownValues.length) {
+                knownValues = Arrays.copyOf(knownValues, Math.min(KNOWN_KEYS.length, Math.max(index + 1, knownValues.length * 2)));
+            }
+            previousValue = knownValues[index];
+            knownValues[index] = value;
+        } else {
+            if (otherValues == null) {
+                otherValues = new LinkedHashMap<>(4);
+            }
+            previousValue = otherValues.put(key, value);
+        }
+
+        encodedJson = null;
+        if (previousValue == null) {
+            if (size == keyOrder.length) {
+                keyOrder = Arrays.copyOf(keyOrder, size * 2);
+            }
+            keyOrder[size] = index != null ? (byte) (int) index : OTHER_KEY;
+            size++;
+            estimatedByteSize += getEntryByteSize(key, value);
+        } else {
+            estimatedByteSize += Utils.getUTF8Length(value) - Utils.getUTF8Length(previousValue);
+        }
+        return previousValue;
+    }
+
+    private String removeValue(Object key) {
+        String previousValue = null;
+        int position = -1;
+        Integer index = KNOWN_KEY_INDEXES.get(key);
+        if (index != null) {
+            if (index < knownValues.length && knownValues[index] != null) {
+                previousValue = knownValues[index];
+                knownValues[index] = null;
+                position = findKeyOrderPosition(index.byteValue(), 0);
+            }
+        } else if (otherValues != null && otherValues.containsKey(key)) {
+            // The key is the nth marker of the other keys in the insertion order
+            int rank = 0;
+            for (String otherKey : otherValues.keySet()) {
+                if (otherKey.equals(key)) {
+                    break;
+                }
+                rank++;
+            }
+            previousValue = otherValues.remove(key);
+            position = findKeyOrderPosition(OTHER_KEY, rank);
+        }
+        if (previousValue != null) {
+            removed(position, (String) key, previousValue);
+        }
+        return previousValue;
+    }
+
+    /**
+     * Returns the position in keyOrder of a known key's index, or of the marker of the nth other key.
+     */
+    private int findKeyOrderPosition(byte entry, int rank) {
+        for (int position = 0; position < size; position++) {
+            if (keyOrder[position] == entry && rank-- == 0) {
+                return position;
+            }
+        }
+        throw new IllegalStateException("Key missing from the insertion order");
+    }
+
+    private void removed(int position, String key, String value) {
+        System.arraycopy(keyOrder, position + 1, keyOrder, position, size - position - 1);
+        encodedJson = null;
+        size--;
+        estimatedByteSize -= getEntryByteSize(key, value);
+    }
+
+    /**
+     * The byte size of a "key":"value" JSON entry, with its separating comma.
+     */
+    private static long getEntryByteSize(String key, String value) {
+        return Utils.getUTF8Length(key) + Utils.getUTF8Length(value) + 6;
     }
 
     /**
@@ -111,18 +288,21 @@ public class TrackerPayload implements Payload {
             return;
         }
 
-        final String mapString = Utils.mapToJSONString(map);
         LOGGER.debug("Adding new map: {}", map);
 
         if (base64Encoded) {
-            add(typeEncoded, Utils.base64Encode(mapString, StandardCharsets.UTF_8));
+            // Encoded as the JSON is written, without building the JSON String first
+            add(typeEncoded, Utils.mapToBase64JSONString(map));
         } else {
-            add(typeNotEncoded, mapString);
+            add(typeNotEncoded, Utils.mapToJSONString(map));
         }
     }
 
     /**
-     * Returns the Payload as a Map.
+     * Returns the Payload as a Map. This is a view of the payload, not a copy: changes made through the map,
+     * its key, value and entry sets, and their iterators update the payload, and clear its encoded JSON.
+     * Its entries are snapshots which can't be changed with {@code setValue}.
+     * Putting a null value removes the key, as the payload doesn't keep keys without a value.
      *
      * @return A Map of all the key-value entries
      */
@@ -141,6 +321,46 @@ public class TrackerPayload implements Payload {
         return Utils.getUTF8Length(toString());
     }
 
+    /**
+     * Returns an estimate of the byte size of the payload, as JSON. Unlike {@link #getByteSize()},
+     * this does not serialize the payload: the estimate is updated as key-value pairs are added.
+     * Characters that need escaping in JSON are not accounted for.
+     *
+     * @return the estimated byte size of the payload
+     */
+    public long getEstimatedByteSize() {
+        return estimatedByteSize;
+    }
+
+    /**
+     * Returns the key-value pairs as UTF-8 JSON, leaving out the deviceSentTimestamp ("stm"),
+     * which is added separately to each attempt to send the event. The JSON is encoded on the first call,
+     * and encoded again only if the payload is changed or the JSON released.
+     *
+     * @return the encoded payload, which must not be modified
+     */
+    public byte[] getEncodedJson() {
+        byte[] json = encodedJson;
+        if (json == null) {
+            Map<String, String> map = payload;
+            if (map.containsKey(Parameter.DEVICE_SENT_TIMESTAMP)) {
+                map = new LinkedHashMap<>(payload);
+                map.remove(Parameter.DEVICE_SENT_TIMESTAMP);
+            }
+            json = Utils.mapToJSONBytes(map);
+            encodedJson = json;
+        }
+        return json;
+    }
+
+    /**
+     * Releases the JSON encoded by {@link #getEncodedJson()}, so that the payload doesn't hold it
+     * while it waits in a buffer. It is encoded again the next time it is needed.
+     */
+    public void releaseEncodedJson() {
+        encodedJson = null;
+    }
+
     /**
      * Returns the Payload as a string. This is essentially the toString from the
      * ObjectNode used to store the Payload.
@@ -151,4 +371,99 @@ public class TrackerPayload implements Payload {
     public String toString() {
         return Utils.mapToJSONString(payload);
     }
+
+    /**
+     * The Map view of the payload, listing the keys in the order they were added.
+     */
+    private final class PayloadMap extends AbstractMap<String, String> {
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return getValue(key) != null;
+        }
+
+        @Override
+        public String get(Object key) {
+            return getValue(key);
+        }
+
+        @Override
+        public String put(String key, String value) {
+            if (value == null) {
+                // Like add(), the payload doesn't keep keys without a value
+                return removeValue(Objects.requireNonNull(key));
+            }
+            return putValue(Objects.requireNonNull(key), value);
+        }
+
+        @Override
+        public String remove(Object key) {
+            return removeValue(key);
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            return new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<String, String>> {
+        private int nextPosition = 0;
+        private Iterator<Map.Entry<String, String>> otherIterator;
+        private Map.Entry<String, String> lastEntry;
+
+        @Override
+        public boolean hasNext() {
+            return nextPosition < size;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            byte entry = keyOrder[nextPosition++];
+            if (entry != OTHER_KEY) {
+                lastEntry = new AbstractMap.SimpleImmutableEntry<>(KNOWN_KEYS[entry], knownValues[entry]);
+            } else {
+                if (otherIterator == null) {
+                    otherIterator = otherValues.entrySet().iterator();
+                }
+                Map.Entry<String, String> other = otherIterator.next();
+                lastEntry = new AbstractMap.SimpleImmutableEntry<>(other.getKey(), other.getValue());
+            }
+            return lastEntry;
+        }
+
+        @Override
+        public void remove() {
+            if (lastEntry == null) {
+                throw new IllegalStateException();
+            }
+            int position = --nextPosition;
+            byte entry = keyOrder[position];
+            if (entry != OTHER_KEY) {
+                knownValues[entry] = null;
+            } else {
+                otherIterator.remove();
+            }
+            removed(position, lastEntry.getKey(), lastEntry.getValue());
+            lastEntry = null;
+        }
+    }
 }
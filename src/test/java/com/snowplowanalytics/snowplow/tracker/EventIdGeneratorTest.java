@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EventIdGeneratorTest {
+
+    @Test
+    public void fastRandomUuidsAreVersion4() {
+        for (int i = 0; i < 1000; i++) {
+            UUID uuid = UUID.fromString(EventIdGenerator.FAST_RANDOM_UUID.generateEventId());
+            assertEquals(4, uuid.version());
+            assertEquals(2, uuid.variant());
+        }
+    }
+
+    @Test
+    public void timeOrderedUuidsAreVersion7WithTheCurrentTime() {
+        long before = System.currentTimeMillis();
+        UUID uuid = UUID.fromString(EventIdGenerator.TIME_ORDERED_UUID.generateEventId());
+        long after = System.currentTimeMillis();
+
+        assertEquals(7, uuid.version());
+        assertEquals(2, uuid.variant());
+        long timestamp = uuid.getMostSignificantBits() >>> 16;
+        // The counter can carry into the timestamp if the tests generate many IDs in the same millisecond
+        assertTrue(timestamp >= before && timestamp <= after + 1000);
+    }
+
+    @Test
+    public void timeOrderedUuidsIncreaseMonotonically() {
+        EventIdGenerator generator = new TimeOrderedEventIdGenerator();
+        String previous = generator.generateEventId();
+        // More IDs than the counter can hold in one millisecond
+        for (int i = 0; i < 10000; i++) {
+            String next = generator.generateEventId();
+            assertTrue(next.compareTo(previous) > 0);
+            previous = next;
+        }
+    }
+
+    @Test
+    public void generatorsAreUniqueAcrossThreads() throws InterruptedException {
+        for (EventIdGenerator generator : Arrays.asList(EventIdGenerator.FAST_RANDOM_UUID, new TimeOrderedEventIdGenerator())) {
+            Set<String> ids = ConcurrentHashMap.newKeySet();
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                threads.add(new Thread(() -> {
+                    for (int i = 0; i < 5000; i++) {
+                        ids.add(generator.generateEventId());
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(40000, ids.size());
+        }
+    }
+}
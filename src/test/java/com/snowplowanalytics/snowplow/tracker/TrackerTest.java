@@ -13,6 +13,8 @@
 package com.snowplowanalytics.snowplow.tracker;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import static java.util.Collections.singletonList;
 
 import com.snowplowanalytics.snowplow.tracker.configuration.NetworkConfiguration;
@@ -88,6 +90,58 @@ public class TrackerTest {
         assertTrue(isValidEventId);
     }
 
+    @Test
+    public void testTrackAsyncReturnsEventIds() throws Exception {
+        List<String> result = tracker.trackAsync(EcommerceTransaction.builder()
+                .orderId("order_id")
+                .totalValue(1.0)
+                .items(EcommerceTransactionItem.builder()
+                        .itemId("order_id")
+                        .sku("sku")
+                        .price(1.0)
+                        .quantity(1)
+                        .build())
+                .build()).get();
+
+        assertEquals(2, result.size());
+        assertEquals(mockEmitter.eventList.get(0).getEventId(), result.get(0));
+        assertEquals(mockEmitter.eventList.get(1).getEventId(), result.get(1));
+    }
+
+    @Test
+    public void testTrackUsesConfiguredEventIdGenerator() {
+        AtomicInteger count = new AtomicInteger();
+        TrackerConfiguration trackerConfig = new TrackerConfiguration("AF003", "cloudfront")
+                .eventIdGenerator(() -> "id-" + count.incrementAndGet());
+        tracker = new Tracker(trackerConfig, mockEmitter);
+
+        List<String> result = tracker.track(EcommerceTransaction.builder()
+                .orderId("order_id")
+                .totalValue(1.0)
+                .items(EcommerceTransactionItem.builder()
+                        .itemId("order_id")
+                        .sku("sku")
+                        .price(1.0)
+                        .quantity(1)
+                        .build())
+                .build());
+
+        assertEquals(Arrays.asList("id-1", "id-2"), result);
+        assertEquals("id-1", mockEmitter.eventList.get(0).getMap().get("eid"));
+        // Payloads created outside the Tracker keep the default generator
+        UUID.fromString(new TrackerPayload().getEventId());
+    }
+
+    @Test
+    public void testTrackWithTimeoutReturnsEventId() throws InterruptedException {
+        List<String> result = tracker.track(PageView.builder()
+                .pageUrl("url")
+                .build(), 1, TimeUnit.SECONDS);
+
+        assertEquals(1, result.size());
+        assertEquals(mockEmitter.eventList.get(0).getEventId(), result.get(0));
+    }
+
     @Test
     public void testTrackReturnsNullIfEventWasDropped() throws InterruptedException {
         class FailingMockEmitter implements Emitter {
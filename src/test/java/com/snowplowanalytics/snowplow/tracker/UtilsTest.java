@@ -19,6 +19,8 @@ import org.junit.Test;
 import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -112,6 +114,33 @@ public class UtilsTest {
 
     }
 
+    @Test
+    public void testMapToBase64JSONString() {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("name", "helloworldtestb64withutf8charsôéàç");
+        data.put("date", LocalDate.of(2024, 1, 2));
+        data.put("nested", Collections.singletonMap("key", "value"));
+
+        assertEquals(Utils.base64Encode(Utils.mapToJSONString(data), StandardCharsets.UTF_8),
+                Utils.mapToBase64JSONString(data));
+    }
+
+    @Test
+    public void testMapToBase64JSONStringReusesBuffer() {
+        Map<String, String> large = new LinkedHashMap<>();
+        for (int i = 0; i < 10000; i++) {
+            large.put("key" + i, "value" + i);
+        }
+        Map<String, String> small = new LinkedHashMap<>();
+        small.put("a", "b");
+
+        // Each result must not include anything left in the buffer by the previous call
+        for (Map<String, String> map : Arrays.asList(small, large, small, small)) {
+            assertEquals(Utils.base64Encode(Utils.mapToJSONString(map), StandardCharsets.UTF_8),
+                    Utils.mapToBase64JSONString(map));
+        }
+    }
+
     @Test
     public void testGetUtf8Length() {
         long expected = 20;
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.emitter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AimdConcurrencyLimitTest {
+
+    @Test
+    public void limitGrowsWhileLatencyIsStable() {
+        AimdConcurrencyLimit limit = new AimdConcurrencyLimit(2, 1, 5);
+
+        for (int i = 0; i < 10; i++) {
+            limit.onSuccess(100, limit.getLimit());
+        }
+
+        Assert.assertEquals(5, limit.getLimit());
+    }
+
+    @Test
+    public void limitDoesNotGrowIfUnused() {
+        AimdConcurrencyLimit limit = new AimdConcurrencyLimit(10, 1, 20);
+
+        for (int i = 0; i < 10; i++) {
+            limit.onSuccess(100, 1);
+        }
+
+        Assert.assertEquals(10, limit.getLimit());
+    }
+
+    @Test
+    public void limitBacksOffOnFailure() {
+        AimdConcurrencyLimit limit = new AimdConcurrencyLimit(10, 1, 20);
+
+        limit.onFailure();
+        Assert.assertEquals(9, limit.getLimit());
+
+        for (int i = 0; i < 50; i++) {
+            limit.onFailure();
+        }
+        Assert.assertEquals(1, limit.getLimit());
+    }
+
+    @Test
+    public void limitBacksOffOnLatencySpike() {
+        AimdConcurrencyLimit limit = new AimdConcurrencyLimit(10, 1, 20);
+
+        limit.onSuccess(100, 1);
+        limit.onSuccess(100, 1);
+        limit.onSuccess(500, 10);
+
+        Assert.assertEquals(9, limit.getLimit());
+    }
+
+    @Test
+    public void initialLimitIsWithinBounds() {
+        Assert.assertEquals(1, new AimdConcurrencyLimit(0, 1, 5).getLimit());
+        Assert.assertEquals(5, new AimdConcurrencyLimit(50, 1, 5).getLimit());
+    }
+}
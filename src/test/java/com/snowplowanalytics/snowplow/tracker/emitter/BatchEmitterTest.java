@@ -13,6 +13,11 @@
 package com.snowplowanalytics.snowplow.tracker.emitter;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import com.snowplowanalytics.snowplow.tracker.configuration.EmitterConfiguration;
@@ -22,6 +27,7 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.snowplowanalytics.snowplow.tracker.payload.EncodedBatch;
 import com.snowplowanalytics.snowplow.tracker.payload.SelfDescribingJson;
 import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
 import com.snowplowanalytics.snowplow.tracker.events.PageView;
@@ -90,6 +96,55 @@ public class BatchEmitterTest {
         public Object getHttpClient() { return null; }
     }
 
+    // this class records how many requests are being sent at the same time
+    static class SlowHttpClientAdapter implements HttpClientAdapter {
+        final AtomicInteger postCounter = new AtomicInteger(0);
+        final AtomicInteger eventCounter = new AtomicInteger(0);
+        final AtomicInteger inFlight = new AtomicInteger(0);
+        final AtomicInteger maxInFlight = new AtomicInteger(0);
+
+        @Override
+        public int post(SelfDescribingJson payload) {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            inFlight.decrementAndGet();
+            postCounter.incrementAndGet();
+            eventCounter.addAndGet(((List<?>) payload.getMap().get("data")).size());
+            return 200;
+        }
+
+        @Override
+        public int get(TrackerPayload payload) { return 0; }
+
+        @Override
+        public String getUrl() { return null; }
+
+        @Override
+        public Object getHttpClient() { return null; }
+    }
+
+    // this class completes requests without holding the calling thread
+    static class AsyncHttpClientAdapter extends SlowHttpClientAdapter {
+        final ScheduledExecutorService responses = Executors.newSingleThreadScheduledExecutor();
+
+        @Override
+        public CompletableFuture<Integer> postAsync(SelfDescribingJson payload) {
+            CompletableFuture<Integer> result = new CompletableFuture<>();
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            responses.schedule(() -> {
+                inFlight.decrementAndGet();
+                postCounter.incrementAndGet();
+                eventCounter.addAndGet(((List<?>) payload.getMap().get("data")).size());
+                result.complete(200);
+            }, 50, TimeUnit.MILLISECONDS);
+            return result;
+        }
+    }
+
     @Before
     public void setUp() {
         mockHttpClientAdapter = new MockHttpClientAdapter(200);
@@ -163,6 +218,15 @@ public class BatchEmitterTest {
         Assert.assertEquals("batchSize must be greater than 0", exception.getMessage());
     }
 
+    @Test
+    public void gzipThresholdWithCustomHttpClientAdapter_ThrowInvalidArgumentException() {
+        // The emitter doesn't change an adapter it was given
+        NetworkConfiguration networkConfig = new NetworkConfiguration(mockHttpClientAdapter).gzipThreshold(1024);
+
+        Exception exception = Assert.assertThrows(IllegalArgumentException.class, () -> new BatchEmitter(networkConfig));
+        Assert.assertEquals("gzipThreshold must be set on the httpClientAdapter instead", exception.getMessage());
+    }
+
     @Test
     public void setAndGetBatchSizeWorksAsExpected() throws InterruptedException {
         emitter.setBatchSize(2);
@@ -313,6 +377,34 @@ public class BatchEmitterTest {
         Assert.assertEquals(0, emitter.getRetryDelay());
     }
 
+    @Test
+    public void failedBatchReturnedToBufferReleasesEncodedJson() throws InterruptedException {
+        final Map<TrackerPayload, byte[]> encodedEvents = new IdentityHashMap<>();
+        MockHttpClientAdapter failingHttpClientAdapter = new MockHttpClientAdapter(500) {
+            @Override
+            public int post(EncodedBatch batch) {
+                for (TrackerPayload event : batch.getEvents()) {
+                    encodedEvents.put(event, event.getEncodedJson());
+                }
+                return 500;
+            }
+        };
+        emitter = new BatchEmitter(
+                new NetworkConfiguration(failingHttpClientAdapter),
+                new EmitterConfiguration().batchSize(2));
+
+        for (TrackerPayload payload : createPayloads(2)) {
+            emitter.add(payload);
+        }
+        Thread.sleep(100);
+
+        // The events waiting for retry don't keep the JSON encoded for the failed request
+        Assert.assertEquals(2, encodedEvents.size());
+        for (TrackerPayload payload : emitter.getBuffer()) {
+            Assert.assertNotSame(encodedEvents.get(payload), payload.getEncodedJson());
+        }
+    }
+
     @Test
     public void retryWithCustomRulesOverridingDefault() throws InterruptedException {
         Map<Integer, Boolean> customRetry = new HashMap<>();
@@ -564,6 +656,725 @@ public class BatchEmitterTest {
         Assert.assertEquals(callback.payloads.get(0), payload3);
     }
 
+    @Test
+    public void coalescingDispatcher_sendsEveryFullBatch() throws InterruptedException {
+        SlowHttpClientAdapter slowHttpClientAdapter = new SlowHttpClientAdapter();
+        emitter = new BatchEmitter(
+                new NetworkConfiguration(slowHttpClientAdapter),
+                new EmitterConfiguration().batchSize(10).coalescingDispatcher(true));
+
+        for (TrackerPayload payload : createPayloads(35)) {
+            emitter.add(payload);
+        }
+
+        Thread.sleep(500);
+
+        Assert.assertEquals(3, slowHttpClientAdapter.postCounter.get());
+        Assert.assertEquals(30, slowHttpClientAdapter.eventCounter.get());
+        Assert.assertEquals(5, emitter.getBuffer().size());
+    }
+
+    @Test
+    public void coalescingDispatcher_limitsRequestsInFlightToThreadCount() throws InterruptedException {
+        SlowHttpClientAdapter slowHttpClientAdapter = new SlowHttpClientAdapter();
+        emitter = new BatchEmitter(
+                new NetworkConfiguration(slowHttpClientAdapter),
+                new EmitterConfiguration().batchSize(5).threadCount(3).coalescingDispatcher(true));
+
+        for (TrackerPayload payload : createPayloads(100)) {
+            emitter.add(payload);
+        }
+
+        Thread.sleep(1500);
+
+        Assert.assertEquals(20, slowHttpClientAdapter.postCounter.get());
+        Assert.assertEquals(0, emitter.getBuffer().size());
+        Assert.assertTrue(slowHttpClientAdapter.maxInFlight.get() <= 3);
+    }
+
+    @Test
+    public void maxConcurrentRequests_allowsMoreAsyncRequestsInFlightThanThreads() throws InterruptedException {
+        AsyncHttpClientAdapter asyncHttpClientAdapter = new AsyncHttpClientAdapter();
+        emitter = new BatchEmitter(
+                new NetworkConfiguration(asyncHttpClientAdapter),
+                new EmitterConfiguration().batchSize(5).threadCount(1).maxConcurrentRequests(10).coalescingDispatcher(true));
+
+        for (TrackerPayload payload : createPayloads(100)) {
+            emitter.add(payload);
+        }
+
+        Thread.sleep(800);
+
+        Assert.assertEquals(20, asyncHttpClientAdapter.postCounter.get());
+        Assert.assertEquals(100, asyncHttpClientAdapter.eventCounter.get());
+        Assert.assertEquals(0, emitter.getBuffer().size());
+        Assert.assertTrue(asyncHttpClientAdapter.maxInFlight.get() > 1);
+        Assert.assertTrue(asyncHttpClientAdapter.maxInFlight.get() <= 10);
+    }
+
+    @Test
+    public void virtualThreads_sendsEventsWithOrWithoutJvmSupport() throws InterruptedException {
+        emitter = new BatchEmitter(
+                new NetworkConfiguration(mockHttpClientAdapter),
+                new EmitterConfiguration().batchSize(10).virtualThreads(true));
+
+        for (TrackerPayload payload : createPayloads(10)) {
+            emitter.add(payload);
+        }
+
+        Thread.sleep(500);
+
+        Assert.assertEquals(1, mockHttpClientAdapter.postCounter);
+        Assert.assertEquals(0, emitter.getBuffer().size());
+    }
+
+    @Test
+    public void virtualThreads_sendEachBlockingRequestOnItsOwnThread() throws InterruptedException {
+        SlowHttpClientAdapter slowHttpClientAdapter = new SlowHttpClientAdapter();
+        emitter = new BatchEmitter(
+                new NetworkConfiguration(slowHttpClientAdapter),
+                new EmitterConfiguration()
+                        .batchSize(5)
+                        .threadCount(1)
+                        .maxConcurrentRequests(4)
+                        .coalescingDispatcher(true)
+                        .virtualThreads(true));
+
+        for (TrackerPayload payload : createPayloads(40)) {
+            emitter.add(payload);
+        }
+
+        Thread.sleep(800);
+
+        Assert.assertEquals(8, slowHttpClientAdapter.postCounter.get());
+        // Virtual threads are only available from Java 21; otherwise the single thread sends one request at a time
+        if (new BatchEmitter.EmitterThreadFactory(true).isVirtual()) {
+            Assert.assertTrue(slowHttpClientAdapter.maxInFlight.get() > 1);
+        } else {
+            Assert.assertEquals(1, slowHttpClientAdapter.maxInFlight.get());
+        }
+    }
+
+    @Test
+    public void emitterThreadFactory_createsDaemonThreadsOnlyWhenVirtual() {
+        BatchEmitter.EmitterThreadFactory platformFactory = new BatchEmitter.EmitterThreadFactory(false);
+        BatchEmitter.EmitterThreadFactory virtualFactory = new BatchEmitter.EmitterThreadFactory(true);
+
+        Assert.assertFalse(platformFactory.isVirtual());
+        Assert.assertFalse(platformFactory.newThread(() -> {}).isDaemon());
+        // Virtual threads are only available from Java 21
+        Assert.assertEquals(virtualFactory.isVirtual(), virtualFactory.newThread(() -> {}).isDaemon());
+    }
+
+    @Test
+    public void circuitBreaker_stopsRequestsDuringOutageAndProbesBeforeResuming() throws InterruptedException {
+        final AtomicInteger statusCode = new AtomicInteger(500);
+        final AtomicInteger postCounter = new AtomicInteger(0);
+        HttpClientAdapter httpClientAdapter = new HttpClientAdapter() {
+            @Override
+            public int post(SelfDescribingJson payload) {
+                postCounter.incrementAndGet();
+                return statusCode.get();
+            }
+
+            @Override
+            public int get(TrackerPayload payload) { return 0; }
+
+            @Override
+            public String getUrl() { return null; }
+
+            @Override
+            public Object getHttpClient() { return null; }
+        };
+        final List<CircuitBreakerState> states = Collections.synchronizedList(new ArrayList<>());
+        EmitterCallback callback = new EmitterCallback() {
+            @Override
+            public void onSuccess(List<TrackerPayload> payloads) {}
+
+            @Override
+            public void onFailure(FailureType failureType, boolean willRetry, List<TrackerPayload> payloads) {}
+
+            @Override
+            public void onCircuitBreakerStateChange(CircuitBreakerState state) {
+                states.add(state);
+            }
+        };
+        emitter = new BatchEmitter(
+                new NetworkConfiguration(httpClientAdapter),
+                new EmitterConfiguration()
+                        .batchSize(1)
+                        .circuitBreakerFailureThreshold(2)
+                        .circuitBreakerOpenMs(1000)
+                        .callback(callback));
+
+        List<TrackerPayload> payloads = createPayloads(3);
+        emitter.add(payloads.get(0));
+        Thread.sleep(50);
+        emitter.add(payloads.get(1));
+        Thread.sleep(200);
+
+        // Both requests failed, so the circuit breaker is open and no more requests are sent
+        emitter.add(payloads.get(2));
+        Thread.sleep(300);
+        Assert.assertEquals(2, postCounter.get());
+        Assert.assertEquals(CircuitBreakerState.OPEN, emitter.getCircuitBreakerState());
+        Assert.assertEquals(3, emitter.getBuffer().size());
+
+        // The collector recovers before the probe request
+        statusCode.set(200);
+        Thread.sleep(800);
+        Assert.assertEquals(3, postCounter.get());
+        Assert.assertEquals(CircuitBreakerState.CLOSED, emitter.getCircuitBreakerState());
+        Assert.assertEquals(
+                Arrays.asList(CircuitBreakerState.OPEN, CircuitBreakerState.HALF_OPEN, CircuitBreakerState.CLOSED),
+                states);
+    }
+
+    @Test
+    public void scheduledRetries_retryFailedBatchWithoutNewEvents() throws InterruptedException {
+        // this adapter fails the first 2 requests
+        final AtomicInteger postCounter = new AtomicInteger(0);
+        HttpClientAdapter httpClientAdapter = new HttpClientAdapter() {
+            @Override
+            public int post(SelfDescribingJson payload) {
+                return postCounter.incrementAndGet() <= 2 ? 500 : 200;
+            }
+
+            @Override
+            public int get(TrackerPayload payload) { return 0; }
+
+            @Override
+            public String getUrl() { return null; }
+
+            @Override
+            public Object getHttpClient() { return null; }
+        };
+        emitter = new BatchEmitter(
+                new NetworkConfiguration(httpClientAdapter),
+                new EmitterConfiguration().batchSize(2).scheduledRetries(true));
+
+        for (TrackerPayload payload : createPayloads(2)) {
+            emitter.add(payload);
+        }
+
+        Thread.sleep(50);
+        // The failed batch waits for its retry outside the buffer
+        Assert.assertEquals(0, emitter.getBuffer().size());
+
+        Thread.sleep(950);
+        Assert.assertEquals(3, postCounter.get());
+        Assert.assertEquals(0, emitter.getBuffer().size());
+        // The global backoff time is not used for scheduled retries
+        Assert.assertEquals(0, emitter.getRetryDelay());
+    }
+
+    @Test
+    public void scheduledRetries_closeReturnsBatchWaitingForRetry() throws InterruptedException {
+        MockHttpClientAdapter failingHttpClientAdapter = new MockHttpClientAdapter(500);
+        emitter = new BatchEmitter(
+                new NetworkConfiguration(failingHttpClientAdapter),
+                new EmitterConfiguration().batchSize(2).scheduledRetries(true));
+
+        for (TrackerPayload payload : createPayloads(2)) {
+            emitter.add(payload);
+        }
+        Thread.sleep(50);
+
+        long closeStart = System.currentTimeMillis();
+        emitter.close();
+
+        // The batch is sent once more on close, then returned to the buffer
+        Assert.assertTrue(System.currentTimeMillis() - closeStart < 2000);
+        Assert.assertEquals(2, failingHttpClientAdapter.postCounter);
+        Assert.assertEquals(2, emitter.getBuffer().size());
+    }
+
+    @Test
+    public void drainTimeoutMs_closeSendsAllBufferedEvents() throws InterruptedException {
+        SlowHttpClientAdapter slowHttpClientAdapter = new SlowHttpClientAdapter();
+        final List<DrainResult> drainResults = new ArrayList<>();
+        EmitterCallback callback = new EmitterCallback() {
+            @Override
+            public void onSuccess(List<TrackerPayload> payloads) {}
+
+            @Override
+            public void onFailure(FailureType failureType, boolean willRetry, List<TrackerPayload> payloads) {}
+
+            @Override
+            public void onDrainComplete(DrainResult drainResult) {
+                drainResults.add(drainResult);
+            }
+        };
+        emitter = new BatchEmitter(
+                new NetworkConfiguration(slowHttpClientAdapter),
+                new EmitterConfiguration().batchSize(10).drainTimeoutMs(2000).callback(callback));
+
+        // 5 events are left over from full batches
+        for (TrackerPayload payload : createPayloads(95)) {
+            emitter.add(payload);
+        }
+        emitter.close();
+
+        Assert.assertEquals(95, slowHttpClientAdapter.eventCounter.get());
+        Assert.assertEquals(0, emitter.getBuffer().size());
+        Assert.assertEquals(1, drainResults.size());
+        Assert.assertEquals(0, drainResults.get(0).getRemainingCount());
+        Assert.assertEquals(0, drainResults.get(0).getDroppedCount());
+    }
+
+    @Test
+    public void drainTimeoutMs_handsUnsentEventsToDrainSinkAtDeadline() {
+        MockHttpClientAdapter failingHttpClientAdapter = new MockHttpClientAdapter(500);
+        final List<TrackerPayload> sunkEvents = new ArrayList<>();
+        final List<DrainResult> drainResults = new ArrayList<>();
+        EmitterCallback callback = new EmitterCallback() {
+            @Override
+            public void onSuccess(List<TrackerPayload> payloads) {}
+
+            @Override
+            public void onFailure(FailureType failureType, boolean willRetry, List<TrackerPayload> payloads) {}
+
+            @Override
+            public void onDrainComplete(DrainResult drainResult) {
+                drainResults.add(drainResult);
+            }
+        };
+        emitter = new BatchEmitter(
+                new NetworkConfiguration(failingHttpClientAdapter),
+                new EmitterConfiguration()
+                        .batchSize(10)
+                        .drainTimeoutMs(300)
+                        .drainSink(sunkEvents::addAll)
+                        .callback(callback));
+
+        List<TrackerPayload> payloads = createPayloads(5);
+        for (TrackerPayload payload : payloads) {
+            emitter.add(payload);
+        }
+
+        long closeStart = System.currentTimeMillis();
+        emitter.close();
+
+        Assert.assertTrue(System.currentTimeMillis() - closeStart < 2000);
+        // The drain backs off between attempts
+        Assert.assertTrue(failingHttpClientAdapter.postCounter >= 2);
+        Assert.assertTrue(failingHttpClientAdapter.postCounter <= 4);
+        Assert.assertEquals(new HashSet<>(payloads), new HashSet<>(sunkEvents));
+        Assert.assertEquals(0, emitter.getBuffer().size());
+        Assert.assertEquals(0, drainResults.get(0).getSentCount());
+        Assert.assertEquals(5, drainResults.get(0).getRemainingCount());
+        Assert.assertEquals(0, drainResults.get(0).getDroppedCount());
+    }
+
+    @Test
+    public void drainTimeoutMs_ignoresLateResultsOfRequestsGivenUpAtDeadline() {
+        final CompletableFuture<Integer> lateResponse = new CompletableFuture<>();
+        MockHttpClientAdapter hangingHttpClientAdapter = new MockHttpClientAdapter(200) {
+            @Override
+            public CompletableFuture<Integer> postAsync(SelfDescribingJson payload) {
+                return lateResponse;
+            }
+        };
+        final List<TrackerPayload> sentEvents = Collections.synchronizedList(new ArrayList<>());
+        final List<TrackerPayload> sunkEvents = new ArrayList<>();
+        final List<DrainResult> drainResults = new ArrayList<>();
+        EmitterCallback callback = new EmitterCallback() {
+            @Override
+            public void onSuccess(List<TrackerPayload> payloads) {
+                sentEvents.addAll(payloads);
+            }
+
+            @Override
+            public void onFailure(FailureType failureType, boolean willRetry, List<TrackerPayload> payloads) {}
+
+            @Override
+            public void onDrainComplete(DrainResult drainResult) {
+                drainResults.add(drainResult);
+            }
+        };
+        emitter = new BatchEmitter(
+                new NetworkConfiguration(hangingHttpClientAdapter),
+                new EmitterConfiguration()
+                        .batchSize(10)
+                        .drainTimeoutMs(200)
+                        .drainSink(sunkEvents::addAll)
+                        .callback(callback));
+
+        List<TrackerPayload> payloads = createPayloads(5);
+        for (TrackerPayload payload : payloads) {
+            emitter.add(payload);
+        }
+
+        emitter.close();
+        // The collector responds once the emitter has given up on the request
+        lateResponse.complete(200);
+
+        Assert.assertEquals(new HashSet<>(payloads), new HashSet<>(sunkEvents));
+        Assert.assertTrue(sentEvents.isEmpty());
+        Assert.assertEquals(0, emitter.getBuffer().size());
+        Assert.assertEquals(0, drainResults.get(0).getSentCount());
+        Assert.assertEquals(5, drainResults.get(0).getRemainingCount());
+        Assert.assertEquals(0, drainResults.get(0).getDroppedCount());
+    }
+
+    @Test
+    public void close_withoutDrainTimeoutWaitsForAsyncRequestsInFlight() throws InterruptedException {
+        final CompletableFuture<Integer> slowResponse = new CompletableFuture<>();
+        MockHttpClientAdapter slowHttpClientAdapter = new MockHttpClientAdapter(200) {
+            @Override
+            public CompletableFuture<Integer> postAsync(SelfDescribingJson payload) {
+                Executors.newSingleThreadScheduledExecutor().schedule(
+                        () -> slowResponse.complete(200), 300, TimeUnit.MILLISECONDS);
+                return slowResponse;
+            }
+        };
+        final List<DrainResult> drainResults = new ArrayList<>();
+        EmitterCallback callback = new EmitterCallback() {
+            @Override
+            public void onSuccess(List<TrackerPayload> payloads) {}
+
+            @Override
+            public void onFailure(FailureType failureType, boolean willRetry, List<TrackerPayload> payloads) {}
+
+            @Override
+            public void onDrainComplete(DrainResult drainResult) {
+                drainResults.add(drainResult);
+            }
+        };
+        emitter = new BatchEmitter(
+                new NetworkConfiguration(slowHttpClientAdapter),
+                new EmitterConfiguration().batchSize(5).coalescingDispatcher(true).callback(callback));
+
+        for (TrackerPayload payload : createPayloads(5)) {
+            emitter.add(payload);
+        }
+        Thread.sleep(100);
+        emitter.close();
+
+        // The request in flight is not given up: its success is counted and its events leave the buffer
+        Assert.assertTrue(slowResponse.isDone());
+        Assert.assertEquals(0, emitter.getBuffer().size());
+        Assert.assertEquals(5, drainResults.get(0).getSentCount());
+        Assert.assertEquals(0, drainResults.get(0).getRemainingCount());
+    }
+
+    @Test
+    public void close_countsRemainingEventsWithoutTakingThemFromEventStore() throws InterruptedException {
+        final List<DrainResult> drainResults = new ArrayList<>();
+        EmitterCallback callback = new EmitterCallback() {
+            @Override
+            public void onSuccess(List<TrackerPayload> payloads) {}
+
+            @Override
+            public void onFailure(FailureType failureType, boolean willRetry, List<TrackerPayload> payloads) {}
+
+            @Override
+            public void onDrainComplete(DrainResult drainResult) {
+                drainResults.add(drainResult);
+            }
+        };
+        final AtomicInteger batchesTaken = new AtomicInteger(0);
+        InMemoryEventStore eventStore = new InMemoryEventStore() {
+            @Override
+            public BatchPayload getEventsBatch(int numberToGet) {
+                batchesTaken.incrementAndGet();
+                return super.getEventsBatch(numberToGet);
+            }
+        };
+        // The circuit breaker is open, so close() can't send the buffered events
+        emitter = new BatchEmitter(
+                new NetworkConfiguration(new MockHttpClientAdapter(500)),
+                new EmitterConfiguration()
+                        .batchSize(10)
+                        .eventStore(eventStore)
+                        .circuitBreakerFailureThreshold(1)
+                        .circuitBreakerOpenMs(60000)
+                        .callback(callback));
+        emitter.add(createPayload());
+        emitter.flushBuffer();
+        Thread.sleep(200);
+        Assert.assertEquals(CircuitBreakerState.OPEN, emitter.getCircuitBreakerState());
+        int batchesTakenBeforeClose = batchesTaken.get();
+
+        emitter.close();
+
+        Assert.assertEquals(batchesTakenBeforeClose, batchesTaken.get());
+        Assert.assertEquals(1, emitter.getBuffer().size());
+        Assert.assertEquals(1, drainResults.get(0).getRemainingCount());
+    }
+
+    @Test
+    public void lingerMs_sendsPartialBatchOnceOldestEventIsOldEnough() throws InterruptedException {
+        emitter = new BatchEmitter(
+                new NetworkConfiguration(mockHttpClientAdapter),
+                new EmitterConfiguration().batchSize(50).lingerMs(300));
+
+        for (TrackerPayload payload : createPayloads(3)) {
+            emitter.add(payload);
+        }
+
+        Thread.sleep(100);
+        Assert.assertFalse(mockHttpClientAdapter.isPostCalled);
+        Assert.assertEquals(3, emitter.getBuffer().size());
+
+        Thread.sleep(500);
+        Assert.assertEquals(1, mockHttpClientAdapter.postCounter);
+        Assert.assertEquals(0, emitter.getBuffer().size());
+    }
+
+    @Test
+    public void lingerMs_sendsPartialBatchWithCoalescingDispatcher() throws InterruptedException {
+        SlowHttpClientAdapter slowHttpClientAdapter = new SlowHttpClientAdapter();
+        emitter = new BatchEmitter(
+                new NetworkConfiguration(slowHttpClientAdapter),
+                new EmitterConfiguration().batchSize(10).lingerMs(200).coalescingDispatcher(true));
+
+        for (TrackerPayload payload : createPayloads(13)) {
+            emitter.add(payload);
+        }
+
+        Thread.sleep(600);
+        Assert.assertEquals(2, slowHttpClientAdapter.postCounter.get());
+        Assert.assertEquals(13, slowHttpClientAdapter.eventCounter.get());
+        Assert.assertEquals(0, emitter.getBuffer().size());
+    }
+
+    @Test
+    public void byteLimitPost_splitsBatchIntoSmallerRequests() throws InterruptedException {
+        SlowHttpClientAdapter slowHttpClientAdapter = new SlowHttpClientAdapter();
+        long payloadBytes = createPayload().getEstimatedByteSize();
+        emitter = new BatchEmitter(
+                new NetworkConfiguration(slowHttpClientAdapter),
+                new EmitterConfiguration().batchSize(10).byteLimitPost(payloadBytes * 6));
+
+        for (TrackerPayload payload : createPayloads(10)) {
+            emitter.add(payload);
+        }
+
+        Thread.sleep(500);
+
+        Assert.assertTrue(slowHttpClientAdapter.postCounter.get() > 1);
+        Assert.assertEquals(10, slowHttpClientAdapter.eventCounter.get());
+        Assert.assertEquals(0, emitter.getBuffer().size());
+    }
+
+    @Test
+    public void adaptiveConcurrency_reducesRequestLimitWhenRequestsFail() throws InterruptedException {
+        emitter = new BatchEmitter(
+                new NetworkConfiguration(new MockHttpClientAdapter(500)),
+                new EmitterConfiguration().batchSize(1).threadCount(40).adaptiveConcurrency(true));
+        int initialLimit = emitter.getRequestLimit();
+
+        emitter.add(createPayload());
+        Thread.sleep(500);
+
+        Assert.assertTrue(emitter.getRequestLimit() < initialLimit);
+    }
+
+    @Test
+    public void addAsync_addsPayloadOnceBufferHasSpace() throws Exception {
+        emitter = new BatchEmitter(
+                new NetworkConfiguration(mockHttpClientAdapter),
+                new EmitterConfiguration().batchSize(10).bufferCapacity(2));
+
+        emitter.add(createPayload());
+        emitter.add(createPayload());
+        TrackerPayload payload = createPayload();
+        Assert.assertFalse(emitter.add(payload));
+
+        // the buffer is full, but holds less than a batch, so it is flushed to make space
+        CompletableFuture<Boolean> result = emitter.addAsync(payload);
+
+        Assert.assertTrue(result.get(500, TimeUnit.MILLISECONDS));
+        Thread.sleep(100);
+        Assert.assertEquals(Collections.singletonList(payload), emitter.getBuffer());
+    }
+
+    @Test
+    public void addWithTimeout_givesUpIfBufferStaysFull() throws InterruptedException {
+        final List<FailureType> failureTypes = new ArrayList<>();
+        EmitterCallback callback = new EmitterCallback() {
+            @Override
+            public void onSuccess(List<TrackerPayload> payloads) {}
+
+            @Override
+            public void onFailure(FailureType failureType, boolean willRetry, List<TrackerPayload> payloads) {
+                failureTypes.add(failureType);
+            }
+        };
+        EventStore fullEventStore = new InMemoryEventStore(1) {
+            @Override
+            public boolean addEvent(TrackerPayload trackerPayload) {
+                return false;
+            }
+        };
+        emitter = new BatchEmitter(
+                new NetworkConfiguration(mockHttpClientAdapter),
+                new EmitterConfiguration().eventStore(fullEventStore).callback(callback));
+
+        long start = System.currentTimeMillis();
+        boolean result = emitter.add(createPayload(), 200, TimeUnit.MILLISECONDS);
+
+        Assert.assertFalse(result);
+        Assert.assertTrue(System.currentTimeMillis() - start >= 200);
+        Assert.assertEquals(Collections.singletonList(FailureType.TRACKER_STORAGE_FULL), failureTypes);
+    }
+
+    @Test
+    public void addWithTimeout_waitsInsteadOfApplyingOverflowPolicy() throws InterruptedException {
+        // The buffer is never sent, so it stays full
+        InMemoryEventStore unsentEventStore = new InMemoryEventStore(2, OverflowPolicy.DROP_OLDEST) {
+            @Override
+            public int size() {
+                return 0;
+            }
+        };
+        emitter = new BatchEmitter(
+                new NetworkConfiguration(mockHttpClientAdapter),
+                new EmitterConfiguration().eventStore(unsentEventStore));
+        List<TrackerPayload> payloads = createPayloads(2);
+        for (TrackerPayload payload : payloads) {
+            emitter.add(payload);
+        }
+
+        boolean result = emitter.add(createPayload(), 200, TimeUnit.MILLISECONDS);
+
+        // The buffered events are kept, and the store dropped nothing while the payload waited
+        Assert.assertFalse(result);
+        Assert.assertEquals(payloads, emitter.getBuffer());
+        Assert.assertEquals(0, unsentEventStore.getOverflowDropCount());
+    }
+
+    @Test
+    public void addBlocking_completesWhenEmitterIsClosed() throws Exception {
+        EventStore fullEventStore = new InMemoryEventStore(1) {
+            @Override
+            public boolean addEvent(TrackerPayload trackerPayload) {
+                return false;
+            }
+        };
+        emitter = new BatchEmitter(
+                new NetworkConfiguration(mockHttpClientAdapter),
+                new EmitterConfiguration().eventStore(fullEventStore));
+
+        CompletableFuture<Boolean> result = CompletableFuture.supplyAsync(() -> {
+            try {
+                return emitter.addBlocking(createPayload());
+            } catch (InterruptedException e) {
+                return null;
+            }
+        });
+        Thread.sleep(100);
+        Assert.assertFalse(result.isDone());
+
+        emitter.close();
+        Assert.assertFalse(result.get(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void addBlocking_addsPayloadOnceEventsExpire() throws Exception {
+        // The buffer is never sent, so only expiry makes space
+        EventStore unsentEventStore = new InMemoryEventStore(1) {
+            @Override
+            public int size() {
+                return 0;
+            }
+        };
+        emitter = new BatchEmitter(
+                new NetworkConfiguration(mockHttpClientAdapter),
+                new EmitterConfiguration().eventStore(unsentEventStore).eventTtlMs(100));
+
+        Assert.assertTrue(emitter.add(createPayload()));
+        TrackerPayload payload = createPayload();
+        CompletableFuture<Boolean> result = CompletableFuture.supplyAsync(() -> {
+            try {
+                return emitter.addBlocking(payload);
+            } catch (InterruptedException e) {
+                return null;
+            }
+        });
+
+        Assert.assertTrue(result.get(500, TimeUnit.MILLISECONDS));
+        Assert.assertFalse(mockHttpClientAdapter.isPostCalled);
+    }
+
+    @Test
+    public void overflowPolicy_reportsEventsDeletedToMakeSpace() throws InterruptedException {
+        final List<FailureType> failureTypes = new ArrayList<>();
+        final List<TrackerPayload> droppedPayloads = new ArrayList<>();
+        EmitterCallback callback = new EmitterCallback() {
+            @Override
+            public void onSuccess(List<TrackerPayload> payloads) {}
+
+            @Override
+            public void onFailure(FailureType failureType, boolean willRetry, List<TrackerPayload> payloads) {
+                failureTypes.add(failureType);
+                droppedPayloads.addAll(payloads);
+            }
+        };
+        emitter = new BatchEmitter(
+                new NetworkConfiguration(mockHttpClientAdapter),
+                new EmitterConfiguration()
+                        .batchSize(10)
+                        .bufferCapacity(2)
+                        .overflowPolicy(OverflowPolicy.DROP_OLDEST)
+                        .callback(callback));
+
+        List<TrackerPayload> payloads = createPayloads(3);
+        for (TrackerPayload payload : payloads) {
+            Assert.assertTrue(emitter.add(payload));
+        }
+
+        Assert.assertEquals(Collections.singletonList(FailureType.TRACKER_STORAGE_FULL), failureTypes);
+        Assert.assertEquals(Collections.singletonList(payloads.get(0)), droppedPayloads);
+        Assert.assertEquals(payloads.subList(1, 3), emitter.getBuffer());
+    }
+
+    @Test
+    public void eventTtl_reportsExpiredEventsToCallback() throws InterruptedException {
+        final List<FailureType> failureTypes = Collections.synchronizedList(new ArrayList<>());
+        final List<TrackerPayload> expiredPayloads = Collections.synchronizedList(new ArrayList<>());
+        EmitterCallback callback = new EmitterCallback() {
+            @Override
+            public void onSuccess(List<TrackerPayload> payloads) {}
+
+            @Override
+            public void onFailure(FailureType failureType, boolean willRetry, List<TrackerPayload> payloads) {
+                failureTypes.add(failureType);
+                expiredPayloads.addAll(payloads);
+            }
+        };
+        emitter = new BatchEmitter(
+                new NetworkConfiguration(mockHttpClientAdapter),
+                new EmitterConfiguration()
+                        .batchSize(10)
+                        .eventTtlMs(100)
+                        .callback(callback));
+
+        TrackerPayload payload = createPayload();
+        emitter.add(payload);
+
+        Thread.sleep(500);
+
+        Assert.assertEquals(Collections.singletonList(FailureType.EVENT_EXPIRED), failureTypes);
+        Assert.assertEquals(Collections.singletonList(payload), expiredPayloads);
+        Assert.assertTrue(emitter.getBuffer().isEmpty());
+        Assert.assertFalse(mockHttpClientAdapter.isPostCalled);
+    }
+
+    @Test
+    public void eventTtl_rejectsInMemoryEventStoreWithDifferentTtl() {
+        // Nothing would collect the events the store expires
+        EmitterConfiguration emitterConfig = new EmitterConfiguration()
+                .eventStore(new InMemoryEventStore(100, Long.MAX_VALUE, OverflowPolicy.DROP_NEWEST, 60000));
+
+        Exception exception = Assert.assertThrows(IllegalArgumentException.class,
+                () -> new BatchEmitter(new NetworkConfiguration(mockHttpClientAdapter), emitterConfig));
+        Assert.assertEquals("eventTtlMs must match the eventTtlMs of the InMemoryEventStore", exception.getMessage());
+
+        emitter = new BatchEmitter(new NetworkConfiguration(mockHttpClientAdapter), emitterConfig.eventTtlMs(60000));
+    }
+
     private TrackerPayload createPayload() {
         PageView pv = PageView.builder()
                 .pageUrl("https://www.snowplowanalytics.com/")
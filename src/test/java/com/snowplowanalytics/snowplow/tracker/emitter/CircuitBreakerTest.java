@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.emitter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    private final List<CircuitBreakerState> states = Collections.synchronizedList(new ArrayList<>());
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(3, 10000, states::add);
+
+        circuitBreaker.onFailure(1);
+        circuitBreaker.onFailure(1);
+        circuitBreaker.onSuccess(1);
+        circuitBreaker.onFailure(1);
+        circuitBreaker.onFailure(1);
+        Assert.assertEquals(CircuitBreakerState.CLOSED, circuitBreaker.getState());
+        Assert.assertNotEquals(CircuitBreaker.NOT_ALLOWED, circuitBreaker.tryAcquire());
+
+        circuitBreaker.onFailure(1);
+        Assert.assertEquals(CircuitBreakerState.OPEN, circuitBreaker.getState());
+        Assert.assertEquals(CircuitBreaker.NOT_ALLOWED, circuitBreaker.tryAcquire());
+        Assert.assertEquals(Collections.singletonList(CircuitBreakerState.OPEN), states);
+    }
+
+    @Test
+    public void allowsSingleProbeAfterOpenDuration() throws InterruptedException {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 100, states::add);
+        circuitBreaker.onFailure(1);
+        Assert.assertEquals(CircuitBreaker.NOT_ALLOWED, circuitBreaker.tryAcquire());
+
+        Thread.sleep(150);
+
+        long permit = circuitBreaker.tryAcquire();
+        Assert.assertNotEquals(CircuitBreaker.NOT_ALLOWED, permit);
+        circuitBreaker.onRequestSent(permit, 2);
+        Assert.assertEquals(CircuitBreakerState.HALF_OPEN, circuitBreaker.getState());
+        Assert.assertEquals(CircuitBreaker.NOT_ALLOWED, circuitBreaker.tryAcquire());
+
+        circuitBreaker.onSuccess(2);
+        Assert.assertEquals(CircuitBreakerState.CLOSED, circuitBreaker.getState());
+        Assert.assertNotEquals(CircuitBreaker.NOT_ALLOWED, circuitBreaker.tryAcquire());
+        Assert.assertEquals(
+                Arrays.asList(CircuitBreakerState.OPEN, CircuitBreakerState.HALF_OPEN, CircuitBreakerState.CLOSED),
+                states);
+    }
+
+    @Test
+    public void failedProbeOpensAgain() throws InterruptedException {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 100, states::add);
+        circuitBreaker.onFailure(1);
+        Thread.sleep(150);
+        long permit = circuitBreaker.tryAcquire();
+        circuitBreaker.onRequestSent(permit, 2);
+
+        circuitBreaker.onFailure(2);
+
+        Assert.assertEquals(CircuitBreakerState.OPEN, circuitBreaker.getState());
+        Assert.assertEquals(CircuitBreaker.NOT_ALLOWED, circuitBreaker.tryAcquire());
+    }
+
+    @Test
+    public void releasedProbeCanBeTakenAgain() throws InterruptedException {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 100, states::add);
+        circuitBreaker.onFailure(1);
+        Thread.sleep(150);
+        long permit = circuitBreaker.tryAcquire();
+        Assert.assertNotEquals(CircuitBreaker.NOT_ALLOWED, permit);
+
+        circuitBreaker.release(permit);
+
+        Assert.assertNotEquals(CircuitBreaker.NOT_ALLOWED, circuitBreaker.tryAcquire());
+        Assert.assertEquals(Arrays.asList(CircuitBreakerState.OPEN, CircuitBreakerState.HALF_OPEN), states);
+    }
+
+    @Test
+    public void ignoresResultsOfOtherRequestsWhileHalfOpen() throws InterruptedException {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 100, states::add);
+        circuitBreaker.onFailure(1);
+        Thread.sleep(150);
+        long permit = circuitBreaker.tryAcquire();
+        circuitBreaker.onRequestSent(permit, 2);
+
+        // Requests sent before the circuit breaker opened
+        circuitBreaker.onFailure(3);
+        Assert.assertEquals(CircuitBreakerState.HALF_OPEN, circuitBreaker.getState());
+        circuitBreaker.onSuccess(4);
+        Assert.assertEquals(CircuitBreakerState.HALF_OPEN, circuitBreaker.getState());
+        Assert.assertEquals(CircuitBreaker.NOT_ALLOWED, circuitBreaker.tryAcquire());
+
+        circuitBreaker.onSuccess(2);
+        Assert.assertEquals(CircuitBreakerState.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void closedPermitDoesNotReleaseProbe() throws InterruptedException {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 100, states::add);
+        long closedPermit = circuitBreaker.tryAcquire();
+        circuitBreaker.onFailure(1);
+        Thread.sleep(150);
+        long permit = circuitBreaker.tryAcquire();
+        Assert.assertNotEquals(CircuitBreaker.NOT_ALLOWED, permit);
+
+        circuitBreaker.onRequestSent(closedPermit, 3);
+        circuitBreaker.release(closedPermit);
+        Assert.assertEquals(CircuitBreaker.NOT_ALLOWED, circuitBreaker.tryAcquire());
+
+        circuitBreaker.onRequestSent(permit, 2);
+        circuitBreaker.onSuccess(3);
+        Assert.assertEquals(CircuitBreakerState.HALF_OPEN, circuitBreaker.getState());
+        circuitBreaker.onSuccess(2);
+        Assert.assertEquals(CircuitBreakerState.CLOSED, circuitBreaker.getState());
+    }
+}
@@ -12,12 +12,18 @@
  */
 package com.snowplowanalytics.snowplow.tracker.emitter;
 
+import com.snowplowanalytics.snowplow.tracker.constants.Parameter;
 import com.snowplowanalytics.snowplow.tracker.events.PageView;
 import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
 public class InMemoryEventStoreTest {
 
     private TrackerPayload trackerPayload;
@@ -65,6 +71,30 @@ public class InMemoryEventStoreTest {
         Assert.assertNull(events);
     }
 
+    @Test
+    public void getEventsWithinByteLimit() {
+        long payloadBytes = trackerPayload.getEstimatedByteSize();
+        for (int i = 0; i < 5; i++) {
+            eventStore.addEvent(trackerPayload);
+        }
+
+        BatchPayload batch = eventStore.getEventsBatch(5, payloadBytes * 2 + 1);
+
+        Assert.assertEquals(2, batch.size());
+        Assert.assertEquals(3, eventStore.size());
+    }
+
+    @Test
+    public void getOneEventIfLargerThanByteLimit() {
+        eventStore.addEvent(trackerPayload);
+        eventStore.addEvent(trackerPayload);
+
+        BatchPayload batch = eventStore.getEventsBatch(2, 1);
+
+        Assert.assertEquals(1, batch.size());
+        Assert.assertEquals(1, eventStore.size());
+    }
+
     @Test
     public void putEventsBackInBufferIfFailedToSend() {
         eventStore.addEvent(trackerPayload);
@@ -109,6 +139,174 @@ public class InMemoryEventStoreTest {
         Assert.assertTrue(eventStore.getAllEvents().contains(differentPayload));
     }
 
+    @Test
+    public void dropOldestPolicyDeletesOldestEventsWhenBufferFull() {
+        eventStore = new InMemoryEventStore(2, OverflowPolicy.DROP_OLDEST);
+        TrackerPayload first = createTrackerPayload();
+        TrackerPayload second = createTrackerPayload();
+        TrackerPayload third = createTrackerPayload();
+
+        Assert.assertTrue(eventStore.addEventOrDrop(first).isEmpty());
+        Assert.assertTrue(eventStore.addEventOrDrop(second).isEmpty());
+        Assert.assertEquals(Collections.singletonList(first), eventStore.addEventOrDrop(third));
+        Assert.assertEquals(Arrays.asList(second, third), eventStore.getAllEvents());
+
+        // Events to retry are older than all the buffered events, so they are dropped
+        BatchPayload batch = eventStore.getEventsBatch(1);
+        eventStore.addEventOrDrop(first);
+        Assert.assertEquals(Collections.singletonList(second), eventStore.cleanupAfterSendingAttempt(true, batch.getBatchId()));
+        Assert.assertEquals(Arrays.asList(third, first), eventStore.getAllEvents());
+        Assert.assertEquals(2, eventStore.getOverflowDropCount());
+    }
+
+    @Test
+    public void dropNewestPolicyRejectsNewEventsWhenBufferFull() {
+        eventStore = new InMemoryEventStore(1);
+        eventStore.addEventOrDrop(trackerPayload);
+        TrackerPayload newPayload = createTrackerPayload();
+
+        Assert.assertEquals(Collections.singletonList(newPayload), eventStore.addEventOrDrop(newPayload));
+        Assert.assertEquals(Collections.singletonList(trackerPayload), eventStore.getAllEvents());
+        Assert.assertEquals(1, eventStore.getOverflowDropCount());
+    }
+
+    @Test
+    public void samplingPolicyKeepsEventsByType() {
+        Map<String, Double> keepRates = new HashMap<>();
+        keepRates.put("pv", 0.0);
+        eventStore = new InMemoryEventStore(2, OverflowPolicy.sampleByEventType(keepRates, 1.0));
+        TrackerPayload structured = createTrackerPayload("se");
+        eventStore.addEventOrDrop(trackerPayload);
+        eventStore.addEventOrDrop(createTrackerPayload());
+
+        TrackerPayload pageView = createTrackerPayload();
+        Assert.assertEquals(Collections.singletonList(pageView), eventStore.addEventOrDrop(pageView));
+        Assert.assertEquals(Collections.singletonList(trackerPayload), eventStore.addEventOrDrop(structured));
+        Assert.assertTrue(eventStore.getAllEvents().contains(structured));
+    }
+
+    @Test
+    public void priorityPolicyDropsNewestLowestPriorityEvent() {
+        Map<String, Integer> priorities = new HashMap<>();
+        priorities.put("se", 2);
+        eventStore = new InMemoryEventStore(2, OverflowPolicy.priorityByEventType(priorities, 1));
+        TrackerPayload structured = createTrackerPayload("se");
+        eventStore.addEventOrDrop(trackerPayload);
+        eventStore.addEventOrDrop(structured);
+
+        // Same priority as the buffered page view, but newer
+        TrackerPayload pageView = createTrackerPayload();
+        Assert.assertEquals(Collections.singletonList(pageView), eventStore.addEventOrDrop(pageView));
+
+        TrackerPayload otherStructured = createTrackerPayload("se");
+        Assert.assertEquals(Collections.singletonList(trackerPayload), eventStore.addEventOrDrop(otherStructured));
+        Assert.assertEquals(Arrays.asList(structured, otherStructured), eventStore.getAllEvents());
+    }
+
+    @Test
+    public void byteLimitRejectsEventsWhenFull() {
+        long payloadBytes = trackerPayload.getEstimatedByteSize();
+        eventStore = new InMemoryEventStore(100, payloadBytes * 2, OverflowPolicy.DROP_NEWEST);
+
+        Assert.assertTrue(eventStore.addEvent(trackerPayload));
+        Assert.assertTrue(eventStore.addEvent(createTrackerPayload()));
+        Assert.assertFalse(eventStore.addEvent(createTrackerPayload()));
+        Assert.assertEquals(2, eventStore.size());
+        Assert.assertEquals(payloadBytes * 2, eventStore.getBufferedBytes());
+
+        BatchPayload batch = eventStore.getEventsBatch(1);
+        Assert.assertEquals(payloadBytes, eventStore.getBufferedBytes());
+        Assert.assertTrue(eventStore.addEvent(createTrackerPayload()));
+
+        // Events to retry make space by deleting newer events
+        Assert.assertEquals(1, eventStore.cleanupAfterSendingAttempt(true, batch.getBatchId()).size());
+        Assert.assertEquals(payloadBytes * 2, eventStore.getBufferedBytes());
+    }
+
+    @Test
+    public void byteLimitEvictsEventsWithOverflowPolicy() {
+        TrackerPayload small = createTrackerPayload("se");
+        long smallBytes = small.getEstimatedByteSize();
+        eventStore = new InMemoryEventStore(100, smallBytes * 3, OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 3; i++) {
+            eventStore.addEventOrDrop(createTrackerPayload("se"));
+        }
+
+        // The larger payload needs the space of two small ones
+        TrackerPayload large = createTrackerPayload("se");
+        large.add("a", "b");
+        Assert.assertTrue(large.getEstimatedByteSize() > smallBytes);
+        Assert.assertEquals(2, eventStore.addEventOrDrop(large).size());
+        Assert.assertEquals(2, eventStore.size());
+        Assert.assertEquals(smallBytes + large.getEstimatedByteSize(), eventStore.getBufferedBytes());
+    }
+
+    @Test
+    public void eventLargerThanByteLimitIsDroppedWithoutEvictingOthers() {
+        eventStore = new InMemoryEventStore(100, trackerPayload.getEstimatedByteSize(), OverflowPolicy.DROP_OLDEST);
+        eventStore.addEventOrDrop(trackerPayload);
+        TrackerPayload large = createTrackerPayload();
+        large.add("extra", "value");
+
+        Assert.assertEquals(Collections.singletonList(large), eventStore.addEventOrDrop(large));
+        Assert.assertEquals(Collections.singletonList(trackerPayload), eventStore.getAllEvents());
+    }
+
+    @Test
+    public void getEventsBatchDeletesExpiredEventsAtHead() {
+        eventStore = new InMemoryEventStore(100, Long.MAX_VALUE, OverflowPolicy.DROP_NEWEST, 60000);
+        TrackerPayload expired = createTrackerPayloadCreatedAt(System.currentTimeMillis() - 120000);
+        eventStore.addEvent(expired);
+        eventStore.addEvent(trackerPayload);
+
+        BatchPayload batch = eventStore.getEventsBatch(1);
+        Assert.assertEquals(Collections.singletonList(trackerPayload), batch.getPayloads());
+        Assert.assertEquals(0, eventStore.size());
+        Assert.assertEquals(0, eventStore.getBufferedBytes());
+
+        // Events expired while taking batches are returned by the next removal
+        Assert.assertEquals(Collections.singletonList(expired),
+                eventStore.removeExpiredEvents(System.currentTimeMillis() - 60000));
+        Assert.assertTrue(eventStore.removeExpiredEvents(System.currentTimeMillis() - 60000).isEmpty());
+    }
+
+    @Test
+    public void getEventsBatchReturnsNullIfOnlyExpiredEventsAreBuffered() {
+        eventStore = new InMemoryEventStore(100, Long.MAX_VALUE, OverflowPolicy.DROP_NEWEST, 60000);
+        eventStore.addEvent(createTrackerPayloadCreatedAt(System.currentTimeMillis() - 120000));
+
+        Assert.assertNull(eventStore.getEventsBatch(1, Long.MAX_VALUE));
+        Assert.assertEquals(0, eventStore.size());
+    }
+
+    @Test
+    public void removeExpiredEventsDeletesOldEventsAnywhereInBuffer() {
+        TrackerPayload expired = createTrackerPayloadCreatedAt(System.currentTimeMillis() - 120000);
+        TrackerPayload recent = createTrackerPayload();
+        eventStore.addEvent(trackerPayload);
+        eventStore.addEvent(expired);
+        eventStore.addEvent(recent);
+
+        Assert.assertEquals(Collections.singletonList(expired),
+                eventStore.removeExpiredEvents(System.currentTimeMillis() - 60000));
+        Assert.assertEquals(Arrays.asList(trackerPayload, recent), eventStore.getAllEvents());
+        Assert.assertEquals(trackerPayload.getEstimatedByteSize() + recent.getEstimatedByteSize(),
+                eventStore.getBufferedBytes());
+    }
+
+    private TrackerPayload createTrackerPayloadCreatedAt(long deviceCreatedTimestamp) {
+        Map<String, String> map = new HashMap<>();
+        map.put(Parameter.DEVICE_CREATED_TIMESTAMP, Long.toString(deviceCreatedTimestamp));
+        map.put("e", "se");
+        return new TrackerPayload(map);
+    }
+
+    private TrackerPayload createTrackerPayload(String eventType) {
+        TrackerPayload payload = new TrackerPayload();
+        payload.add("e", eventType);
+        return payload;
+    }
+
     private TrackerPayload createTrackerPayload() {
         PageView pv = PageView.builder()
                 .pageUrl("https://www.snowplowanalytics.com/")
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.emitter;
+
+import com.snowplowanalytics.snowplow.tracker.constants.Parameter;
+import com.snowplowanalytics.snowplow.tracker.events.PageView;
+import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class JournaledEventStoreTest {
+
+    private Path directory;
+    private Path journalFile;
+    private JournaledEventStore eventStore;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("snowplow-journal");
+        journalFile = directory.resolve("leases.journal");
+        eventStore = new JournaledEventStore(new InMemoryEventStore(), journalFile);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        eventStore.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void unresolvedBatchesAreRecoveredAndSentFirst() {
+        List<TrackerPayload> payloads = createTrackerPayloads(5);
+        for (TrackerPayload payload : payloads) {
+            eventStore.addEvent(payload);
+        }
+        BatchPayload sent = eventStore.getEventsBatch(2);
+        eventStore.cleanupAfterSendingAttempt(false, sent.getBatchId());
+        BatchPayload inFlight = eventStore.getEventsBatch(2);
+
+        // The process dies before the result of the request is known
+        eventStore.close();
+        eventStore = new JournaledEventStore(new InMemoryEventStore(), journalFile);
+
+        Assert.assertEquals(2, eventStore.size());
+        BatchPayload recovered = eventStore.getEventsBatch(10);
+        Assert.assertEquals(inFlight.getBatchId(), recovered.getBatchId());
+        assertEventIds(payloads.subList(2, 4), recovered.getPayloads());
+        Assert.assertEquals(payloads.get(2).getMap(), recovered.getPayloads().get(0).getMap());
+
+        // New batches don't reuse the recovered batch IDs
+        eventStore.addEvent(payloads.get(4));
+        Assert.assertTrue(eventStore.getEventsBatch(1).getBatchId() > inFlight.getBatchId());
+
+        eventStore.cleanupAfterSendingAttempt(false, recovered.getBatchId());
+        eventStore.close();
+        eventStore = new JournaledEventStore(new InMemoryEventStore(), journalFile);
+        // Only the batch taken after the restart is still open
+        assertEventIds(payloads.subList(4, 5), eventStore.getAllEvents());
+    }
+
+    @Test
+    public void recoveredBatchToRetryStaysLeased() {
+        List<TrackerPayload> payloads = createTrackerPayloads(2);
+        for (TrackerPayload payload : payloads) {
+            eventStore.addEvent(payload);
+        }
+        eventStore.getEventsBatch(2);
+        eventStore.close();
+        eventStore = new JournaledEventStore(new InMemoryEventStore(), journalFile);
+
+        BatchPayload recovered = eventStore.getEventsBatch(2);
+        eventStore.cleanupAfterSendingAttempt(true, recovered.getBatchId());
+        Assert.assertEquals(2, eventStore.size());
+
+        eventStore.close();
+        eventStore = new JournaledEventStore(new InMemoryEventStore(), journalFile);
+        assertEventIds(payloads, eventStore.getAllEvents());
+    }
+
+    @Test
+    public void eventsToRetryAreReturnedToTheWrappedStore() {
+        List<TrackerPayload> payloads = createTrackerPayloads(2);
+        for (TrackerPayload payload : payloads) {
+            eventStore.addEvent(payload);
+        }
+
+        BatchPayload batch = eventStore.getEventsBatch(2);
+        Assert.assertEquals(0, eventStore.size());
+        eventStore.cleanupAfterSendingAttempt(true, batch.getBatchId());
+
+        Assert.assertEquals(2, eventStore.size());
+    }
+
+    @Test
+    public void journalIsCompactedOnceMostlyResolved() throws IOException {
+        eventStore.close();
+        eventStore = new JournaledEventStore(new InMemoryEventStore(), journalFile, 1024);
+
+        for (TrackerPayload payload : createTrackerPayloads(50)) {
+            eventStore.addEvent(payload);
+            BatchPayload batch = eventStore.getEventsBatch(1);
+            eventStore.cleanupAfterSendingAttempt(false, batch.getBatchId());
+            Assert.assertTrue(eventStore.getJournalBytes() <= 1024 + 1024);
+        }
+        Assert.assertEquals(eventStore.getJournalBytes(), Files.size(journalFile));
+    }
+
+    @Test
+    public void tornRecordAtTheEndIsIgnored() throws IOException {
+        List<TrackerPayload> payloads = createTrackerPayloads(2);
+        for (TrackerPayload payload : payloads) {
+            eventStore.addEvent(payload);
+        }
+        eventStore.getEventsBatch(2);
+        eventStore.close();
+        Files.write(journalFile, new byte[]{0, 0, 1, 0, 42, 42}, StandardOpenOption.APPEND);
+
+        eventStore = new JournaledEventStore(new InMemoryEventStore(), journalFile);
+
+        assertEventIds(payloads, eventStore.getAllEvents());
+    }
+
+    @Test
+    public void removeExpiredEventsIsForwardedToTheWrappedStore() {
+        List<TrackerPayload> payloads = createTrackerPayloads(3);
+        TrackerPayload expired = createdTwoMinutesAgo(payloads.get(1));
+        eventStore.addEvent(payloads.get(0));
+        eventStore.addEvent(expired);
+        eventStore.addEvent(payloads.get(2));
+
+        List<TrackerPayload> removed = eventStore.removeExpiredEvents(System.currentTimeMillis() - 60000);
+
+        Assert.assertEquals(Collections.singletonList(expired), removed);
+        assertEventIds(Arrays.asList(payloads.get(0), payloads.get(2)), eventStore.getAllEvents());
+    }
+
+    @Test
+    public void expiredEventsAreRemovedFromRecoveredBatches() {
+        List<TrackerPayload> payloads = createTrackerPayloads(2);
+        TrackerPayload expired = createdTwoMinutesAgo(payloads.get(1));
+        eventStore.addEvent(expired);
+        eventStore.getEventsBatch(1);
+        eventStore.addEvent(payloads.get(0));
+        eventStore.getEventsBatch(1);
+
+        eventStore.close();
+        eventStore = new JournaledEventStore(new InMemoryEventStore(), journalFile);
+        Assert.assertEquals(2, eventStore.size());
+
+        assertEventIds(Collections.singletonList(expired),
+                eventStore.removeExpiredEvents(System.currentTimeMillis() - 60000));
+        Assert.assertEquals(1, eventStore.size());
+
+        // The lease of the expired batch is resolved, so it is not recovered again
+        eventStore.close();
+        eventStore = new JournaledEventStore(new InMemoryEventStore(), journalFile);
+        assertEventIds(Collections.singletonList(payloads.get(0)), eventStore.getAllEvents());
+    }
+
+    // A copy of the payload, with the same event ID, created two minutes ago
+    private TrackerPayload createdTwoMinutesAgo(TrackerPayload payload) {
+        Map<String, String> map = new HashMap<>(payload.getMap());
+        map.put(Parameter.DEVICE_CREATED_TIMESTAMP, Long.toString(System.currentTimeMillis() - 120000));
+        return new TrackerPayload(map);
+    }
+
+    private void assertEventIds(List<TrackerPayload> expected, List<TrackerPayload> actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals(expected.get(i).getEventId(), actual.get(i).getEventId());
+        }
+    }
+
+    private List<TrackerPayload> createTrackerPayloads(int count) {
+        List<TrackerPayload> payloads = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            payloads.add(PageView.builder()
+                    .pageUrl("https://www.snowplowanalytics.com/" + i)
+                    .pageTitle("Snowplow")
+                    .referrer("https://www.google.com/")
+                    .build()
+                    .getPayload());
+        }
+        return payloads;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.emitter;
+
+import com.snowplowanalytics.snowplow.tracker.constants.Parameter;
+import com.snowplowanalytics.snowplow.tracker.events.PageView;
+import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MpscEventStoreTest {
+
+    @Test
+    public void addAndGetEvents() {
+        MpscEventStore eventStore = new MpscEventStore();
+        List<TrackerPayload> payloads = createTrackerPayloads(3);
+        for (TrackerPayload payload : payloads) {
+            Assert.assertTrue(eventStore.addEvent(payload));
+        }
+        Assert.assertEquals(3, eventStore.size());
+
+        BatchPayload batch = eventStore.getEventsBatch(2);
+
+        Assert.assertEquals(2, batch.size());
+        Assert.assertSame(payloads.get(0), batch.getPayloads().get(0));
+        Assert.assertSame(payloads.get(1), batch.getPayloads().get(1));
+        Assert.assertEquals(1, eventStore.size());
+        Assert.assertNull(eventStore.getEventsBatch(2));
+    }
+
+    @Test
+    public void addEventFailsWhenFull() {
+        MpscEventStore eventStore = new MpscEventStore(3);
+        TrackerPayload payload = createTrackerPayloads(1).get(0);
+
+        Assert.assertTrue(eventStore.addEvent(payload));
+        Assert.assertTrue(eventStore.addEvent(payload));
+        Assert.assertTrue(eventStore.addEvent(payload));
+        Assert.assertFalse(eventStore.addEvent(payload));
+
+        BatchPayload batch = eventStore.getEventsBatch(1);
+        Assert.assertTrue(eventStore.addEvent(payload));
+        Assert.assertFalse(eventStore.addEvent(payload));
+        eventStore.cleanupAfterSendingAttempt(false, batch.getBatchId());
+        Assert.assertEquals(3, eventStore.size());
+    }
+
+    @Test
+    public void retriedEventsAreTakenAgainFirst() {
+        MpscEventStore eventStore = new MpscEventStore(3);
+        List<TrackerPayload> payloads = createTrackerPayloads(4);
+        for (int i = 0; i < 3; i++) {
+            eventStore.addEvent(payloads.get(i));
+        }
+
+        BatchPayload batch = eventStore.getEventsBatch(2);
+        eventStore.addEvent(payloads.get(3));
+        Assert.assertTrue(eventStore.cleanupAfterSendingAttempt(true, batch.getBatchId()).isEmpty());
+
+        // The retried events are kept even though the ring is full again
+        Assert.assertEquals(4, eventStore.size());
+        List<TrackerPayload> expected = Arrays.asList(payloads.get(0), payloads.get(1), payloads.get(2), payloads.get(3));
+        Assert.assertEquals(expected, eventStore.getAllEvents());
+
+        BatchPayload first = eventStore.getEventsBatch(1);
+        BatchPayload rest = eventStore.getEventsBatch(3);
+        Assert.assertSame(payloads.get(0), first.getPayloads().get(0));
+        Assert.assertEquals(expected.subList(1, 4), rest.getPayloads());
+        Assert.assertEquals(0, eventStore.size());
+    }
+
+    @Test
+    public void getEventsBatchRespectsByteLimit() {
+        MpscEventStore eventStore = new MpscEventStore();
+        List<TrackerPayload> payloads = createTrackerPayloads(3);
+        for (TrackerPayload payload : payloads) {
+            eventStore.addEvent(payload);
+        }
+
+        BatchPayload batch = eventStore.getEventsBatch(3, payloads.get(0).getEstimatedByteSize() + 1);
+
+        Assert.assertEquals(1, batch.size());
+        Assert.assertEquals(2, eventStore.size());
+    }
+
+    @Test
+    public void concurrentProducersLoseAndDuplicateNoEvents() throws InterruptedException {
+        int producerCount = 32;
+        int eventsPerProducer = 2000;
+        MpscEventStore eventStore = new MpscEventStore(1000);
+        List<TrackerPayload> payloads = createTrackerPayloads(producerCount * eventsPerProducer);
+        Set<String> received = ConcurrentHashMap.newKeySet();
+        AtomicInteger duplicates = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch producersDone = new CountDownLatch(producerCount);
+
+        for (int p = 0; p < producerCount; p++) {
+            List<TrackerPayload> ownPayloads = payloads.subList(p * eventsPerProducer, (p + 1) * eventsPerProducer);
+            new Thread(() -> {
+                try {
+                    start.await();
+                    for (TrackerPayload payload : ownPayloads) {
+                        while (!eventStore.addEvent(payload)) {
+                            Thread.yield();
+                        }
+                    }
+                } catch (InterruptedException ignored) {
+                } finally {
+                    producersDone.countDown();
+                }
+            }).start();
+        }
+
+        // Two consumers, which retry every third batch
+        Thread[] consumers = new Thread[2];
+        for (int c = 0; c < consumers.length; c++) {
+            consumers[c] = new Thread(() -> {
+                int batches = 0;
+                while (received.size() < payloads.size()) {
+                    BatchPayload batch = eventStore.getEventsBatch(1 + batches % 50);
+                    if (batch == null) {
+                        batch = eventStore.getEventsBatch(1);
+                    }
+                    if (batch == null) {
+                        Thread.yield();
+                        continue;
+                    }
+                    boolean retry = ++batches % 3 == 0;
+                    if (!retry) {
+                        for (TrackerPayload payload : batch.getPayloads()) {
+                            if (!received.add(payload.getEventId())) {
+                                duplicates.incrementAndGet();
+                            }
+                        }
+                    }
+                    eventStore.cleanupAfterSendingAttempt(retry, batch.getBatchId());
+                }
+            });
+            consumers[c].start();
+        }
+
+        start.countDown();
+        producersDone.await();
+        for (Thread consumer : consumers) {
+            consumer.join(30000);
+        }
+
+        Assert.assertEquals(payloads.size(), received.size());
+        Assert.assertEquals(0, duplicates.get());
+        Assert.assertEquals(0, eventStore.size());
+    }
+
+    @Test
+    public void removeExpiredEventsCompactsTheRing() {
+        MpscEventStore eventStore = new MpscEventStore(4);
+        List<TrackerPayload> payloads = createTrackerPayloads(6);
+        TrackerPayload expired = createdTwoMinutesAgo(payloads.get(1));
+        TrackerPayload otherExpired = createdTwoMinutesAgo(payloads.get(3));
+        eventStore.addEvent(payloads.get(0));
+        eventStore.addEvent(expired);
+        eventStore.addEvent(payloads.get(2));
+        eventStore.addEvent(otherExpired);
+        Assert.assertFalse(eventStore.addEvent(payloads.get(4)));
+
+        List<TrackerPayload> removed = eventStore.removeExpiredEvents(System.currentTimeMillis() - 60000);
+
+        Assert.assertEquals(Arrays.asList(expired, otherExpired), removed);
+        Assert.assertEquals(2, eventStore.size());
+        // The space of the expired events is released, and the kept events stay in order
+        Assert.assertTrue(eventStore.addEvent(payloads.get(4)));
+        Assert.assertTrue(eventStore.addEvent(payloads.get(5)));
+        Assert.assertEquals(Arrays.asList(payloads.get(0), payloads.get(2), payloads.get(4), payloads.get(5)),
+                eventStore.getEventsBatch(4).getPayloads());
+    }
+
+    @Test
+    public void removeExpiredEventsRemovesEventsToRetry() {
+        MpscEventStore eventStore = new MpscEventStore(4);
+        List<TrackerPayload> payloads = createTrackerPayloads(3);
+        TrackerPayload expired = createdTwoMinutesAgo(payloads.get(1));
+        eventStore.addEvent(payloads.get(0));
+        eventStore.addEvent(expired);
+        eventStore.addEvent(payloads.get(2));
+        BatchPayload batch = eventStore.getEventsBatch(2);
+        eventStore.cleanupAfterSendingAttempt(true, batch.getBatchId());
+
+        List<TrackerPayload> removed = eventStore.removeExpiredEvents(System.currentTimeMillis() - 60000);
+
+        Assert.assertEquals(Collections.singletonList(expired), removed);
+        Assert.assertEquals(Arrays.asList(payloads.get(0), expired), batch.getPayloads());
+        Assert.assertEquals(2, eventStore.size());
+        Assert.assertEquals(Arrays.asList(payloads.get(0), payloads.get(2)), eventStore.getAllEvents());
+    }
+
+    // A copy of the payload, with the same event ID, created two minutes ago
+    private TrackerPayload createdTwoMinutesAgo(TrackerPayload payload) {
+        Map<String, String> map = new HashMap<>(payload.getMap());
+        map.put(Parameter.DEVICE_CREATED_TIMESTAMP, Long.toString(System.currentTimeMillis() - 120000));
+        return new TrackerPayload(map);
+    }
+
+    private List<TrackerPayload> createTrackerPayloads(int count) {
+        List<TrackerPayload> payloads = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            payloads.add(PageView.builder()
+                    .pageUrl("https://www.snowplowanalytics.com/" + i)
+                    .pageTitle("Snowplow")
+                    .referrer("https://www.google.com/")
+                    .build()
+                    .getPayload());
+        }
+        return payloads;
+    }
+}
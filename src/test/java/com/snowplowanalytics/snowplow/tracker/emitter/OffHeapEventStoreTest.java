@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.emitter;
+
+import com.snowplowanalytics.snowplow.tracker.constants.Parameter;
+import com.snowplowanalytics.snowplow.tracker.events.PageView;
+import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class OffHeapEventStoreTest {
+
+    @Test
+    public void addAndGetEvents() {
+        OffHeapEventStore eventStore = new OffHeapEventStore();
+        List<TrackerPayload> payloads = createTrackerPayloads(3);
+        for (TrackerPayload payload : payloads) {
+            Assert.assertTrue(eventStore.addEvent(payload));
+        }
+        Assert.assertEquals(3, eventStore.size());
+
+        BatchPayload batch = eventStore.getEventsBatch(2);
+
+        Assert.assertEquals(2, batch.size());
+        Assert.assertEquals(payloads.get(0).getMap(), batch.getPayloads().get(0).getMap());
+        Assert.assertEquals(payloads.get(1).getEventId(), batch.getPayloads().get(1).getEventId());
+        Assert.assertEquals(1, eventStore.size());
+        Assert.assertNull(eventStore.getEventsBatch(2));
+    }
+
+    @Test
+    public void retriedEventsAreTakenAgainFirst() {
+        OffHeapEventStore eventStore = new OffHeapEventStore();
+        List<TrackerPayload> payloads = createTrackerPayloads(3);
+        for (TrackerPayload payload : payloads) {
+            eventStore.addEvent(payload);
+        }
+
+        BatchPayload batch = eventStore.getEventsBatch(2);
+        Assert.assertTrue(eventStore.cleanupAfterSendingAttempt(true, batch.getBatchId()).isEmpty());
+
+        Assert.assertEquals(3, eventStore.size());
+        List<TrackerPayload> allEvents = eventStore.getAllEvents();
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(payloads.get(i).getEventId(), allEvents.get(i).getEventId());
+        }
+    }
+
+    @Test
+    public void addEventFailsWhenFullUntilSpaceIsReclaimed() {
+        TrackerPayload payload = createTrackerPayloads(1).get(0);
+        int recordBytes = PayloadCodec.encode(payload).length + LogCursor.HEADER_BYTES;
+        OffHeapEventStore eventStore = new OffHeapEventStore(recordBytes * 3);
+
+        Assert.assertTrue(eventStore.addEvent(payload));
+        Assert.assertTrue(eventStore.addEvent(payload));
+        Assert.assertTrue(eventStore.addEvent(payload));
+        Assert.assertFalse(eventStore.addEvent(payload));
+
+        // Events being sent still use their space
+        BatchPayload batch = eventStore.getEventsBatch(1);
+        Assert.assertFalse(eventStore.addEvent(payload));
+
+        eventStore.cleanupAfterSendingAttempt(false, batch.getBatchId());
+        Assert.assertTrue(eventStore.addEvent(payload));
+        Assert.assertEquals(3, eventStore.size());
+    }
+
+    @Test
+    public void eventsWrapAroundTheRing() {
+        OffHeapEventStore eventStore = new OffHeapEventStore(4096);
+        List<TrackerPayload> payloads = createTrackerPayloads(200);
+
+        int nextToSend = 0;
+        for (TrackerPayload payload : payloads) {
+            while (!eventStore.addEvent(payload)) {
+                BatchPayload batch = eventStore.getEventsBatch(1);
+                Assert.assertEquals(payloads.get(nextToSend++).getEventId(), batch.getPayloads().get(0).getEventId());
+                eventStore.cleanupAfterSendingAttempt(false, batch.getBatchId());
+            }
+        }
+        BatchPayload batch = eventStore.getEventsBatch(eventStore.size());
+        for (TrackerPayload payload : batch.getPayloads()) {
+            Assert.assertEquals(payloads.get(nextToSend++).getEventId(), payload.getEventId());
+        }
+        eventStore.cleanupAfterSendingAttempt(false, batch.getBatchId());
+
+        Assert.assertEquals(200, nextToSend);
+        Assert.assertEquals(0, eventStore.getUsedBytes());
+    }
+
+    @Test
+    public void getEventsBatchRespectsByteLimit() {
+        OffHeapEventStore eventStore = new OffHeapEventStore();
+        List<TrackerPayload> payloads = createTrackerPayloads(3);
+        for (TrackerPayload payload : payloads) {
+            eventStore.addEvent(payload);
+        }
+
+        BatchPayload batch = eventStore.getEventsBatch(3, payloads.get(0).getEstimatedByteSize() + 1);
+
+        Assert.assertEquals(1, batch.size());
+        Assert.assertEquals(2, eventStore.size());
+    }
+
+    @Test
+    public void removeExpiredEventsSkipsTheirRecordsAndReclaimsTheirSpace() {
+        OffHeapEventStore eventStore = new OffHeapEventStore();
+        List<TrackerPayload> payloads = createTrackerPayloads(4);
+        TrackerPayload expired = createdTwoMinutesAgo(payloads.get(0));
+        TrackerPayload otherExpired = createdTwoMinutesAgo(payloads.get(2));
+        eventStore.addEvent(expired);
+        eventStore.addEvent(payloads.get(1));
+        eventStore.addEvent(otherExpired);
+        eventStore.addEvent(payloads.get(3));
+
+        List<TrackerPayload> removed = eventStore.removeExpiredEvents(System.currentTimeMillis() - 60000);
+
+        assertEventIds(Arrays.asList(expired, otherExpired), removed);
+        Assert.assertEquals(2, eventStore.size());
+        assertEventIds(Arrays.asList(payloads.get(1), payloads.get(3)), eventStore.getAllEvents());
+        Assert.assertTrue(eventStore.removeExpiredEvents(System.currentTimeMillis() - 60000).isEmpty());
+
+        // Unread events around an expired one are read in order, and all the space is reclaimed once they are sent
+        BatchPayload first = eventStore.getEventsBatch(2);
+        assertEventIds(Collections.singletonList(payloads.get(1)), first.getPayloads());
+        BatchPayload second = eventStore.getEventsBatch(1);
+        assertEventIds(Collections.singletonList(payloads.get(3)), second.getPayloads());
+        eventStore.cleanupAfterSendingAttempt(false, first.getBatchId());
+        eventStore.cleanupAfterSendingAttempt(false, second.getBatchId());
+        Assert.assertEquals(0, eventStore.getUsedBytes());
+    }
+
+    @Test
+    public void removeExpiredEventsRemovesEventsToRetry() {
+        OffHeapEventStore eventStore = new OffHeapEventStore();
+        List<TrackerPayload> payloads = createTrackerPayloads(3);
+        TrackerPayload expired = createdTwoMinutesAgo(payloads.get(1));
+        eventStore.addEvent(payloads.get(0));
+        eventStore.addEvent(expired);
+        eventStore.addEvent(payloads.get(2));
+        BatchPayload batch = eventStore.getEventsBatch(3);
+        eventStore.cleanupAfterSendingAttempt(true, batch.getBatchId());
+
+        assertEventIds(Collections.singletonList(expired),
+                eventStore.removeExpiredEvents(System.currentTimeMillis() - 60000));
+        Assert.assertEquals(2, eventStore.size());
+        assertEventIds(Arrays.asList(payloads.get(0), payloads.get(2)), eventStore.getAllEvents());
+    }
+
+    private void assertEventIds(List<TrackerPayload> expected, List<TrackerPayload> actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals(expected.get(i).getEventId(), actual.get(i).getEventId());
+        }
+    }
+
+    // A copy of the payload, with the same event ID, created two minutes ago
+    private TrackerPayload createdTwoMinutesAgo(TrackerPayload payload) {
+        Map<String, String> map = new HashMap<>(payload.getMap());
+        map.put(Parameter.DEVICE_CREATED_TIMESTAMP, Long.toString(System.currentTimeMillis() - 120000));
+        return new TrackerPayload(map);
+    }
+
+    private List<TrackerPayload> createTrackerPayloads(int count) {
+        List<TrackerPayload> payloads = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            payloads.add(PageView.builder()
+                    .pageUrl("https://www.snowplowanalytics.com/" + i)
+                    .pageTitle("Snowplow")
+                    .referrer("https://www.google.com/")
+                    .build()
+                    .getPayload());
+        }
+        return payloads;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.emitter;
+
+import com.snowplowanalytics.snowplow.tracker.constants.Parameter;
+import com.snowplowanalytics.snowplow.tracker.events.PageView;
+import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class SegmentLogEventStoreTest {
+
+    private Path directory;
+    private SegmentLogEventStore eventStore;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("snowplow-event-log");
+        eventStore = new SegmentLogEventStore(directory, 4096, 16 * 4096, 0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        eventStore.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void addAndGetEvents() {
+        List<TrackerPayload> payloads = createTrackerPayloads(3);
+        for (TrackerPayload payload : payloads) {
+            Assert.assertTrue(eventStore.addEvent(payload));
+        }
+        Assert.assertEquals(3, eventStore.size());
+
+        BatchPayload batch = eventStore.getEventsBatch(2);
+
+        Assert.assertEquals(2, batch.size());
+        Assert.assertEquals(payloads.get(0).getMap(), batch.getPayloads().get(0).getMap());
+        Assert.assertEquals(payloads.get(1).getEventId(), batch.getPayloads().get(1).getEventId());
+        Assert.assertEquals(1, eventStore.size());
+        Assert.assertNull(eventStore.getEventsBatch(2));
+    }
+
+    @Test
+    public void retriedEventsAreReadAgainFirst() {
+        List<TrackerPayload> payloads = createTrackerPayloads(3);
+        for (TrackerPayload payload : payloads) {
+            eventStore.addEvent(payload);
+        }
+
+        BatchPayload batch = eventStore.getEventsBatch(2);
+        Assert.assertTrue(eventStore.cleanupAfterSendingAttempt(true, batch.getBatchId()).isEmpty());
+
+        Assert.assertEquals(3, eventStore.size());
+        List<TrackerPayload> allEvents = eventStore.getAllEvents();
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(payloads.get(i).getEventId(), allEvents.get(i).getEventId());
+        }
+        Assert.assertEquals(payloads.get(0).getEventId(), eventStore.getEventsBatch(1).getPayloads().get(0).getEventId());
+    }
+
+    @Test
+    public void unacknowledgedEventsAreRecoveredAfterRestart() {
+        List<TrackerPayload> payloads = createTrackerPayloads(5);
+        for (TrackerPayload payload : payloads) {
+            eventStore.addEvent(payload);
+        }
+        BatchPayload sent = eventStore.getEventsBatch(2);
+        eventStore.cleanupAfterSendingAttempt(false, sent.getBatchId());
+        // This batch is being sent when the process stops
+        eventStore.getEventsBatch(2);
+        eventStore.close();
+
+        eventStore = new SegmentLogEventStore(directory, 4096, 16 * 4096, 0);
+
+        Assert.assertEquals(3, eventStore.size());
+        List<TrackerPayload> recovered = eventStore.getAllEvents();
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(payloads.get(i + 2).getEventId(), recovered.get(i).getEventId());
+            Assert.assertEquals(payloads.get(i + 2).getDeviceCreatedTimestamp(), recovered.get(i).getDeviceCreatedTimestamp());
+        }
+    }
+
+    @Test
+    public void tornRecordAtEndOfLogIsDiscarded() throws IOException {
+        for (TrackerPayload payload : createTrackerPayloads(3)) {
+            eventStore.addEvent(payload);
+        }
+        eventStore.close();
+
+        // Corrupt the last byte of the third record
+        Path segment = directory.resolve(String.format("%020d.log", 0));
+        long lastRecordEnd = findEndOfRecords(segment);
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(lastRecordEnd - 1);
+            int lastByte = file.read();
+            file.seek(lastRecordEnd - 1);
+            file.write(lastByte ^ 0xFF);
+        }
+
+        eventStore = new SegmentLogEventStore(directory, 4096, 16 * 4096, 0);
+
+        Assert.assertEquals(2, eventStore.size());
+        Assert.assertTrue(eventStore.addEvent(createTrackerPayloads(1).get(0)));
+        Assert.assertEquals(3, eventStore.size());
+    }
+
+    @Test
+    public void acknowledgedSegmentsAreDeleted() throws IOException {
+        for (TrackerPayload payload : createTrackerPayloads(50)) {
+            Assert.assertTrue(eventStore.addEvent(payload));
+        }
+        Assert.assertTrue(countSegments() > 1);
+
+        BatchPayload batch = eventStore.getEventsBatch(50);
+        Assert.assertEquals(50, batch.size());
+        eventStore.cleanupAfterSendingAttempt(false, batch.getBatchId());
+
+        Assert.assertEquals(0, eventStore.size());
+        Assert.assertEquals(1, countSegments());
+    }
+
+    @Test
+    public void acknowledgingEventsAcrossSegmentsDeletesTheirFiles() throws IOException {
+        for (TrackerPayload payload : createTrackerPayloads(50)) {
+            Assert.assertTrue(eventStore.addEvent(payload));
+        }
+        long segmentCount = countSegments();
+        Assert.assertTrue(segmentCount > 2);
+
+        // Segments are deleted one by one as the batches in them are acknowledged
+        while (eventStore.size() > 0) {
+            BatchPayload batch = eventStore.getEventsBatch(Math.min(5, eventStore.size()));
+            eventStore.cleanupAfterSendingAttempt(false, batch.getBatchId());
+            Assert.assertTrue(countSegments() <= segmentCount);
+            segmentCount = countSegments();
+        }
+
+        Assert.assertEquals(1, countSegments());
+        Assert.assertTrue(eventStore.addEvent(createTrackerPayloads(1).get(0)));
+    }
+
+    @Test
+    public void unmapReleasesSegmentMapping() throws IOException {
+        Path file = directory.resolve("mapped");
+        MappedByteBuffer mapping;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file.toFile(), "rw")) {
+            randomAccessFile.setLength(4096);
+            mapping = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 4096);
+        }
+
+        Assert.assertTrue(SegmentLogEventStore.unmap(mapping));
+        Files.delete(file);
+    }
+
+    @Test
+    public void addEventFailsWhenFull() {
+        int added = 0;
+        while (eventStore.addEvent(createTrackerPayloads(1).get(0))) {
+            added++;
+        }
+
+        Assert.assertTrue(added > 0);
+        Assert.assertEquals(added, eventStore.size());
+
+        // Sending events makes space again
+        BatchPayload batch = eventStore.getEventsBatch(added);
+        eventStore.cleanupAfterSendingAttempt(false, batch.getBatchId());
+        Assert.assertTrue(eventStore.addEvent(createTrackerPayloads(1).get(0)));
+    }
+
+    @Test
+    public void getEventsBatchRespectsByteLimit() {
+        List<TrackerPayload> payloads = createTrackerPayloads(3);
+        for (TrackerPayload payload : payloads) {
+            eventStore.addEvent(payload);
+        }
+
+        BatchPayload batch = eventStore.getEventsBatch(3, payloads.get(0).getEstimatedByteSize() + 1);
+
+        Assert.assertEquals(1, batch.size());
+        Assert.assertEquals(2, eventStore.size());
+    }
+
+    @Test
+    public void removeExpiredEventsDeletesSegmentsHoldingOnlyExpiredEvents() throws IOException {
+        List<TrackerPayload> payloads = createTrackerPayloads(100);
+        int expiredCount = 0;
+        while (countSegments() < 3) {
+            eventStore.addEvent(createdTwoMinutesAgo(payloads.get(expiredCount++)));
+        }
+        TrackerPayload recent = payloads.get(expiredCount);
+        eventStore.addEvent(recent);
+
+        List<TrackerPayload> removed = eventStore.removeExpiredEvents(System.currentTimeMillis() - 60000);
+
+        Assert.assertEquals(expiredCount, removed.size());
+        Assert.assertEquals(payloads.get(0).getEventId(), removed.get(0).getEventId());
+        Assert.assertEquals(1, eventStore.size());
+        Assert.assertEquals(recent.getEventId(), eventStore.getAllEvents().get(0).getEventId());
+        Assert.assertEquals(1, countSegments());
+    }
+
+    // A copy of the payload, with the same event ID, created two minutes ago
+    private TrackerPayload createdTwoMinutesAgo(TrackerPayload payload) {
+        Map<String, String> map = new HashMap<>(payload.getMap());
+        map.put(Parameter.DEVICE_CREATED_TIMESTAMP, Long.toString(System.currentTimeMillis() - 120000));
+        return new TrackerPayload(map);
+    }
+
+    private long countSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".log")).count();
+        }
+    }
+
+    private long findEndOfRecords(Path segment) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "r")) {
+            long position = 0;
+            int length;
+            while ((length = file.readInt()) > 0) {
+                position += LogCursor.HEADER_BYTES + 4 + length;
+                file.seek(position);
+            }
+            return position;
+        }
+    }
+
+    private List<TrackerPayload> createTrackerPayloads(int count) {
+        List<TrackerPayload> payloads = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            payloads.add(PageView.builder()
+                    .pageUrl("https://www.snowplowanalytics.com/" + i)
+                    .pageTitle("Snowplow")
+                    .referrer("https://www.google.com/")
+                    .build()
+                    .getPayload());
+        }
+        return payloads;
+    }
+}
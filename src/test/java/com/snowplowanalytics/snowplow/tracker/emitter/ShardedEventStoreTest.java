@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.emitter;
+
+import com.snowplowanalytics.snowplow.tracker.constants.Parameter;
+import com.snowplowanalytics.snowplow.tracker.events.PageView;
+import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+public class ShardedEventStoreTest {
+
+    @Test
+    public void eventsFromOneThreadKeepTheirOrder() {
+        ShardedEventStore eventStore = new ShardedEventStore(4, 100);
+        List<TrackerPayload> payloads = createTrackerPayloads(3);
+        for (TrackerPayload payload : payloads) {
+            Assert.assertTrue(eventStore.addEvent(payload));
+        }
+        Assert.assertEquals(3, eventStore.size());
+
+        BatchPayload batch = eventStore.getEventsBatch(2);
+
+        Assert.assertEquals(payloads.subList(0, 2), batch.getPayloads());
+        Assert.assertEquals(1, eventStore.size());
+        Assert.assertNull(eventStore.getEventsBatch(2));
+    }
+
+    @Test
+    public void addEventUsesOtherShardsWhenHomeShardIsFull() {
+        ShardedEventStore eventStore = new ShardedEventStore(4, 8);
+        List<TrackerPayload> payloads = createTrackerPayloads(9);
+
+        for (int i = 0; i < 8; i++) {
+            Assert.assertTrue(eventStore.addEvent(payloads.get(i)));
+        }
+        Assert.assertFalse(eventStore.addEvent(payloads.get(8)));
+        Assert.assertEquals(8, eventStore.size());
+        Assert.assertEquals(new HashSet<>(payloads.subList(0, 8)), new HashSet<>(eventStore.getAllEvents()));
+
+        // A batch drains across all the shards
+        BatchPayload batch = eventStore.getEventsBatch(8);
+        Assert.assertEquals(new HashSet<>(payloads.subList(0, 8)), new HashSet<>(batch.getPayloads()));
+        Assert.assertEquals(0, eventStore.size());
+    }
+
+    @Test
+    public void retriedEventsAreTakenAgainFirst() {
+        ShardedEventStore eventStore = new ShardedEventStore(4, 100);
+        List<TrackerPayload> payloads = createTrackerPayloads(3);
+        for (TrackerPayload payload : payloads) {
+            eventStore.addEvent(payload);
+        }
+
+        BatchPayload batch = eventStore.getEventsBatch(2);
+        Assert.assertTrue(eventStore.cleanupAfterSendingAttempt(true, batch.getBatchId()).isEmpty());
+        Assert.assertEquals(3, eventStore.size());
+
+        BatchPayload retried = eventStore.getEventsBatch(2);
+        Assert.assertEquals(payloads.subList(0, 2), retried.getPayloads());
+    }
+
+    @Test
+    public void retriedEventsReturnToTheShardTheyWereTakenFrom() {
+        ShardedEventStore eventStore = new ShardedEventStore(4, 100);
+        List<TrackerPayload> payloads = createTrackerPayloads(3);
+        for (TrackerPayload payload : payloads) {
+            eventStore.addEvent(payload);
+        }
+
+        // The next batch would start draining from another shard
+        BatchPayload batch = eventStore.getEventsBatch(2);
+        eventStore.cleanupAfterSendingAttempt(true, batch.getBatchId());
+
+        // All the events are in one shard again, in their original order
+        Assert.assertEquals(payloads, eventStore.getAllEvents());
+    }
+
+    @Test
+    public void retriedEventsUseAnotherShardWhenTheirShardIsFull() {
+        ShardedEventStore eventStore = new ShardedEventStore(2, 4);
+        List<TrackerPayload> payloads = createTrackerPayloads(4);
+        eventStore.addEvent(payloads.get(0));
+        eventStore.addEvent(payloads.get(1));
+        BatchPayload batch = eventStore.getEventsBatch(2);
+
+        // Refill the shard the batch was taken from
+        eventStore.addEvent(payloads.get(2));
+        eventStore.addEvent(payloads.get(3));
+
+        Assert.assertTrue(eventStore.cleanupAfterSendingAttempt(true, batch.getBatchId()).isEmpty());
+        Assert.assertEquals(4, eventStore.size());
+        Assert.assertEquals(new HashSet<>(payloads), new HashSet<>(eventStore.getAllEvents()));
+    }
+
+    @Test
+    public void retriedEventsAreDroppedByTheOverflowPolicyWhenAllShardsAreFull() {
+        List<TrackerPayload> payloads = createTrackerPayloads(4);
+
+        ShardedEventStore dropNewest = new ShardedEventStore(1, 2);
+        BatchPayload batch = fillAfterTakingBatch(dropNewest, payloads);
+        Assert.assertEquals(Arrays.asList(payloads.get(3), payloads.get(2)),
+                dropNewest.cleanupAfterSendingAttempt(true, batch.getBatchId()));
+        Assert.assertEquals(payloads.subList(0, 2), dropNewest.getAllEvents());
+
+        ShardedEventStore dropOldest = new ShardedEventStore(1, 2, OverflowPolicy.DROP_OLDEST);
+        batch = fillAfterTakingBatch(dropOldest, payloads);
+        Assert.assertEquals(Arrays.asList(payloads.get(1), payloads.get(0)),
+                dropOldest.cleanupAfterSendingAttempt(true, batch.getBatchId()));
+        Assert.assertEquals(payloads.subList(2, 4), dropOldest.getAllEvents());
+    }
+
+    @Test
+    public void addEventOrDropAppliesTheOverflowPolicy() {
+        List<TrackerPayload> payloads = createTrackerPayloads(3);
+
+        ShardedEventStore dropNewest = new ShardedEventStore(2, 2);
+        Assert.assertTrue(dropNewest.addEventOrDrop(payloads.get(0)).isEmpty());
+        Assert.assertTrue(dropNewest.addEventOrDrop(payloads.get(1)).isEmpty());
+        Assert.assertEquals(Collections.singletonList(payloads.get(2)), dropNewest.addEventOrDrop(payloads.get(2)));
+        Assert.assertEquals(2, dropNewest.size());
+
+        ShardedEventStore dropOldest = new ShardedEventStore(1, 2, OverflowPolicy.DROP_OLDEST);
+        dropOldest.addEventOrDrop(payloads.get(0));
+        dropOldest.addEventOrDrop(payloads.get(1));
+        Assert.assertEquals(Collections.singletonList(payloads.get(0)), dropOldest.addEventOrDrop(payloads.get(2)));
+        Assert.assertEquals(payloads.subList(1, 3), dropOldest.getAllEvents());
+    }
+
+    @Test
+    public void getEventsBatchRespectsByteLimit() {
+        ShardedEventStore eventStore = new ShardedEventStore(2, 100);
+        List<TrackerPayload> payloads = createTrackerPayloads(3);
+        for (TrackerPayload payload : payloads) {
+            eventStore.addEvent(payload);
+        }
+
+        BatchPayload batch = eventStore.getEventsBatch(3, payloads.get(0).getEstimatedByteSize() + 1);
+
+        Assert.assertEquals(1, batch.size());
+        Assert.assertEquals(2, eventStore.size());
+    }
+
+    @Test
+    public void concurrentProducersLoseNoEvents() throws InterruptedException {
+        int producerCount = 32;
+        int eventsPerProducer = 1000;
+        ShardedEventStore eventStore = new ShardedEventStore(8, producerCount * eventsPerProducer);
+        List<TrackerPayload> payloads = createTrackerPayloads(producerCount * eventsPerProducer);
+        Set<TrackerPayload> added = ConcurrentHashMap.newKeySet();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch producersDone = new CountDownLatch(producerCount);
+
+        for (int p = 0; p < producerCount; p++) {
+            List<TrackerPayload> ownPayloads = payloads.subList(p * eventsPerProducer, (p + 1) * eventsPerProducer);
+            new Thread(() -> {
+                try {
+                    start.await();
+                    for (TrackerPayload payload : ownPayloads) {
+                        if (eventStore.addEvent(payload)) {
+                            added.add(payload);
+                        }
+                    }
+                } catch (InterruptedException ignored) {
+                } finally {
+                    producersDone.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        producersDone.await();
+
+        Assert.assertEquals(payloads.size(), added.size());
+        Assert.assertEquals(payloads.size(), eventStore.size());
+        BatchPayload batch = eventStore.getEventsBatch(payloads.size());
+        Assert.assertEquals(added, new HashSet<>(batch.getPayloads()));
+    }
+
+    @Test
+    public void removeExpiredEventsRemovesEventsFromAllShards() {
+        ShardedEventStore eventStore = new ShardedEventStore(2, 4);
+        List<TrackerPayload> payloads = createTrackerPayloads(4);
+        TrackerPayload expired = createdTwoMinutesAgo(payloads.get(1));
+        TrackerPayload otherExpired = createdTwoMinutesAgo(payloads.get(3));
+        eventStore.addEvent(payloads.get(0));
+        eventStore.addEvent(expired);
+        // The home shard is full, so these go to the other shard
+        eventStore.addEvent(payloads.get(2));
+        eventStore.addEvent(otherExpired);
+
+        List<TrackerPayload> removed = eventStore.removeExpiredEvents(System.currentTimeMillis() - 60000);
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList(expired, otherExpired)), new HashSet<>(removed));
+        Assert.assertEquals(2, eventStore.size());
+        Assert.assertEquals(new HashSet<>(Arrays.asList(payloads.get(0), payloads.get(2))),
+                new HashSet<>(eventStore.getAllEvents()));
+    }
+
+    // A copy of the payload, with the same event ID, created two minutes ago
+    private TrackerPayload createdTwoMinutesAgo(TrackerPayload payload) {
+        Map<String, String> map = new HashMap<>(payload.getMap());
+        map.put(Parameter.DEVICE_CREATED_TIMESTAMP, Long.toString(System.currentTimeMillis() - 120000));
+        return new TrackerPayload(map);
+    }
+
+    // Takes the first two payloads as a batch, then fills the store with the other two
+    private BatchPayload fillAfterTakingBatch(ShardedEventStore eventStore, List<TrackerPayload> payloads) {
+        eventStore.addEvent(payloads.get(0));
+        eventStore.addEvent(payloads.get(1));
+        BatchPayload batch = eventStore.getEventsBatch(2);
+        eventStore.addEvent(payloads.get(2));
+        eventStore.addEvent(payloads.get(3));
+        return batch;
+    }
+
+    private List<TrackerPayload> createTrackerPayloads(int count) {
+        List<TrackerPayload> payloads = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            payloads.add(PageView.builder()
+                    .pageUrl("https://www.snowplowanalytics.com/" + i)
+                    .pageTitle("Snowplow")
+                    .referrer("https://www.google.com/")
+                    .build()
+                    .getPayload());
+        }
+        return payloads;
+    }
+}
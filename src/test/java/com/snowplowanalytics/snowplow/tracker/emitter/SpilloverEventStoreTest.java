@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.emitter;
+
+import com.snowplowanalytics.snowplow.tracker.constants.Parameter;
+import com.snowplowanalytics.snowplow.tracker.events.PageView;
+import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class SpilloverEventStoreTest {
+
+    private Path directory;
+    private List<TrackerPayload> payloads;
+    private SpilloverEventStore eventStore;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("snowplow-spillover");
+        payloads = createTrackerPayloads(10);
+        // Room for three events in memory
+        long watermark = payloads.get(0).getEstimatedByteSize() * 3 + 1;
+        eventStore = new SpilloverEventStore(directory, watermark, 4096, 16 * 4096);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        eventStore.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void eventsSpillToDiskAboveWatermark() {
+        for (TrackerPayload payload : payloads) {
+            Assert.assertTrue(eventStore.addEvent(payload));
+        }
+
+        Assert.assertEquals(10, eventStore.size());
+        Assert.assertEquals(7, eventStore.getSpilledSize());
+        Assert.assertEquals(payloads.get(0).getEstimatedByteSize() * 3, eventStore.getMemoryBytes());
+        assertEventIds(payloads, eventStore.getAllEvents());
+    }
+
+    @Test
+    public void eventsAreTakenInOrderAcrossTiers() {
+        for (TrackerPayload payload : payloads.subList(0, 5)) {
+            eventStore.addEvent(payload);
+        }
+
+        BatchPayload fromMemory = eventStore.getEventsBatch(5);
+        assertEventIds(payloads.subList(0, 3), fromMemory.getPayloads());
+        eventStore.cleanupAfterSendingAttempt(false, fromMemory.getBatchId());
+
+        // Memory has space again, but new events follow the spilled events
+        eventStore.addEvent(payloads.get(5));
+        Assert.assertEquals(3, eventStore.getSpilledSize());
+        BatchPayload fromDisk = eventStore.getEventsBatch(3);
+        assertEventIds(payloads.subList(3, 6), fromDisk.getPayloads());
+        eventStore.cleanupAfterSendingAttempt(false, fromDisk.getBatchId());
+
+        // With the disk drained, events are kept in memory again
+        eventStore.addEvent(payloads.get(6));
+        Assert.assertEquals(0, eventStore.getSpilledSize());
+        Assert.assertEquals(1, eventStore.size());
+    }
+
+    @Test
+    public void newEventsFollowRetriedSpilledEvents() {
+        for (TrackerPayload payload : payloads.subList(0, 5)) {
+            eventStore.addEvent(payload);
+        }
+        eventStore.cleanupAfterSendingAttempt(false, eventStore.getEventsBatch(3).getBatchId());
+
+        // Memory has space again while the spilled events are being sent
+        BatchPayload fromDisk = eventStore.getEventsBatch(2);
+        eventStore.addEvent(payloads.get(5));
+        eventStore.cleanupAfterSendingAttempt(true, fromDisk.getBatchId());
+
+        assertEventIds(payloads.subList(3, 6), eventStore.getAllEvents());
+        assertEventIds(payloads.subList(3, 5), eventStore.getEventsBatch(2).getPayloads());
+    }
+
+    @Test
+    public void retriedEventsAreTakenAgainFirst() {
+        for (TrackerPayload payload : payloads.subList(0, 5)) {
+            eventStore.addEvent(payload);
+        }
+
+        BatchPayload fromMemory = eventStore.getEventsBatch(2);
+        eventStore.cleanupAfterSendingAttempt(true, fromMemory.getBatchId());
+        assertEventIds(payloads.subList(0, 5), eventStore.getAllEvents());
+
+        eventStore.cleanupAfterSendingAttempt(false, eventStore.getEventsBatch(3).getBatchId());
+        BatchPayload fromDisk = eventStore.getEventsBatch(2);
+        eventStore.cleanupAfterSendingAttempt(true, fromDisk.getBatchId());
+        assertEventIds(payloads.subList(3, 5), eventStore.getAllEvents());
+    }
+
+    @Test
+    public void spilledEventsAreBufferedAgainAfterReopening() {
+        for (TrackerPayload payload : payloads) {
+            eventStore.addEvent(payload);
+        }
+        eventStore.close();
+
+        eventStore = new SpilloverEventStore(directory, 0, 4096, 16 * 4096);
+        assertEventIds(payloads.subList(3, 10), eventStore.getAllEvents());
+    }
+
+    @Test
+    public void removeExpiredEventsRemovesEventsInMemoryAndOnDisk() {
+        TrackerPayload expiredInMemory = createdTwoMinutesAgo(payloads.get(1));
+        TrackerPayload expiredOnDisk = createdTwoMinutesAgo(payloads.get(4));
+        List<TrackerPayload> added = new ArrayList<>(payloads.subList(0, 6));
+        added.set(1, expiredInMemory);
+        added.set(4, expiredOnDisk);
+        for (TrackerPayload payload : added) {
+            eventStore.addEvent(payload);
+        }
+        Assert.assertEquals(3, eventStore.getSpilledSize());
+
+        List<TrackerPayload> removed = eventStore.removeExpiredEvents(System.currentTimeMillis() - 60000);
+
+        assertEventIds(Arrays.asList(expiredInMemory, expiredOnDisk), removed);
+        Assert.assertEquals(2, eventStore.getSpilledSize());
+        Assert.assertEquals(payloads.get(0).getEstimatedByteSize() * 2, eventStore.getMemoryBytes());
+        assertEventIds(Arrays.asList(payloads.get(0), payloads.get(2), payloads.get(3), payloads.get(5)),
+                eventStore.getAllEvents());
+    }
+
+    // A copy of the payload, with the same event ID, created two minutes ago
+    private TrackerPayload createdTwoMinutesAgo(TrackerPayload payload) {
+        Map<String, String> map = new HashMap<>(payload.getMap());
+        map.put(Parameter.DEVICE_CREATED_TIMESTAMP, Long.toString(System.currentTimeMillis() - 120000));
+        return new TrackerPayload(map);
+    }
+
+    private void assertEventIds(List<TrackerPayload> expected, List<TrackerPayload> actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals(expected.get(i).getEventId(), actual.get(i).getEventId());
+        }
+    }
+
+    private List<TrackerPayload> createTrackerPayloads(int count) {
+        List<TrackerPayload> payloads = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            payloads.add(PageView.builder()
+                    .pageUrl("https://www.snowplowanalytics.com/" + i)
+                    .pageTitle("Snowplow")
+                    .referrer("https://www.google.com/")
+                    .build()
+                    .getPayload());
+        }
+        return payloads;
+    }
+}
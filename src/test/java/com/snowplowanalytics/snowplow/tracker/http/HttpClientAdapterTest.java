@@ -12,25 +12,36 @@
  */
 package com.snowplowanalytics.snowplow.tracker.http;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 import okhttp3.OkHttpClient;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
 
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.HttpClients;
 
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import static org.junit.Assert.assertEquals;
 
+import com.snowplowanalytics.snowplow.tracker.payload.EncodedBatch;
 import com.snowplowanalytics.snowplow.tracker.payload.SelfDescribingJson;
 import com.snowplowanalytics.snowplow.tracker.payload.TrackerPayload;
 
@@ -39,9 +50,11 @@ public class HttpClientAdapterTest {
     
     private final MockWebServer mockWebServer;
     private HttpClientAdapter adapter;
+    // The HTTP clients created for the test, closed after it
+    private final List<Closeable> httpClients = new ArrayList<>();
 
     interface HttpClientAdapterProvider {
-        HttpClientAdapter provide(String uri);
+        HttpClientAdapter provide(String uri, List<Closeable> httpClients);
     }
 
     @Parameterized.Parameters
@@ -49,18 +62,32 @@ public class HttpClientAdapterTest {
         return Arrays.asList(new Object[][]{
                 {new HttpClientAdapterProvider() {
                     @Override
-                    public HttpClientAdapter provide(String url) {
-                        return new ApacheHttpClientAdapter(url, HttpClients.createDefault());
+                    public HttpClientAdapter provide(String url, List<Closeable> httpClients) {
+                        CloseableHttpClient httpClient = HttpClients.createDefault();
+                        httpClients.add(httpClient);
+                        return new ApacheHttpClientAdapter(url, httpClient);
                     }
                 }},
                 {new HttpClientAdapterProvider() {
                     @Override
-                    public HttpClientAdapter provide(String url) {
+                    public HttpClientAdapter provide(String url, List<Closeable> httpClients) {
+                        CloseableHttpClient httpClient = HttpClients.createDefault();
+                        httpClients.add(httpClient);
+                        CloseableHttpAsyncClient httpAsyncClient = HttpAsyncClients.createDefault();
+                        httpClients.add(httpAsyncClient);
+                        httpAsyncClient.start();
+                        return new ApacheHttpClientAdapter(url, httpClient, httpAsyncClient);
+                    }
+                }},
+                {new HttpClientAdapterProvider() {
+                    @Override
+                    public HttpClientAdapter provide(String url, List<Closeable> httpClients) {
                         OkHttpClient httpClient = new OkHttpClient.Builder()
                             .connectTimeout(1, TimeUnit.SECONDS)
                             .readTimeout(1, TimeUnit.SECONDS)
                             .writeTimeout(1, TimeUnit.SECONDS)
                             .build();
+                        httpClients.add(closer(httpClient));
                         return new OkHttpClientAdapter(url, httpClient);
                     }
                 }
@@ -71,7 +98,15 @@ public class HttpClientAdapterTest {
     public HttpClientAdapterTest(HttpClientAdapterProvider httpClientAdapterProvider) throws IOException {
         mockWebServer = new MockWebServer();
         mockWebServer.start();
-        adapter = httpClientAdapterProvider.provide(mockWebServer.url("/").toString());
+        adapter = httpClientAdapterProvider.provide(mockWebServer.url("/").toString(), httpClients);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Closeable httpClient : httpClients) {
+            httpClient.close();
+        }
+        mockWebServer.shutdown();
     }
 
     @Test
@@ -133,6 +168,137 @@ public class HttpClientAdapterTest {
         assertEquals("application/json; charset=utf-8", recordedRequest.getHeader("Content-Type"));
     }
 
+    @Test
+    public void post_withEncodedBatch_sendsEncodedJson() throws InterruptedException {
+        // Given
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200));
+        TrackerPayload payload = new TrackerPayload();
+        payload.add("foo", "bar");
+        EncodedBatch batch = new EncodedBatch(Collections.singletonList(payload), 1000L);
+
+        // When
+        int responseCode = adapter.post(batch);
+
+        // Then
+        assertEquals(200, responseCode);
+        RecordedRequest recordedRequest = mockWebServer.takeRequest();
+        assertEquals("/com.snowplowanalytics.snowplow/tp2", recordedRequest.getPath());
+        assertEquals(batch.toString(), recordedRequest.getBody().readUtf8());
+        assertEquals("application/json; charset=utf-8", recordedRequest.getHeader("Content-Type"));
+    }
+
+    @Test
+    public void postAsync_withEncodedBatch_sendsEncodedJson() throws Exception {
+        // Given
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200));
+        EncodedBatch batch = new EncodedBatch(Arrays.asList(new TrackerPayload(), new TrackerPayload()), 1000L);
+
+        // When
+        int responseCode = adapter.postAsync(batch).get(5, TimeUnit.SECONDS);
+
+        // Then
+        assertEquals(200, responseCode);
+        RecordedRequest recordedRequest = mockWebServer.takeRequest();
+        assertEquals(batch.toString(), recordedRequest.getBody().readUtf8());
+        assertEquals(batch.getContentLength(), recordedRequest.getBodySize());
+    }
+
+    @Test
+    public void post_withGzipThreshold_sendsCompressedBody() throws Exception {
+        // Given
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200));
+        ((AbstractHttpClientAdapter) adapter).setGzipThreshold(0);
+        EncodedBatch batch = new EncodedBatch(Arrays.asList(new TrackerPayload(), new TrackerPayload()), 1000L);
+
+        // When
+        int responseCode = adapter.post(batch);
+
+        // Then
+        assertEquals(200, responseCode);
+        RecordedRequest recordedRequest = mockWebServer.takeRequest();
+        assertEquals("gzip", recordedRequest.getHeader("Content-Encoding"));
+        assertEquals(batch.toString(), gunzip(recordedRequest));
+    }
+
+    @Test
+    public void postAsync_withGzipThreshold_sendsCompressedBody() throws Exception {
+        // Given
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200));
+        ((AbstractHttpClientAdapter) adapter).setGzipThreshold(0);
+
+        // When
+        int responseCode = adapter.postAsync(new SelfDescribingJson("schema", Collections.singletonMap("foo", "bar")))
+                .get(5, TimeUnit.SECONDS);
+
+        // Then
+        assertEquals(200, responseCode);
+        RecordedRequest recordedRequest = mockWebServer.takeRequest();
+        assertEquals("gzip", recordedRequest.getHeader("Content-Encoding"));
+        assertEquals("{\"schema\":\"schema\",\"data\":{\"foo\":\"bar\"}}", gunzip(recordedRequest));
+    }
+
+    @Test
+    public void post_belowGzipThreshold_sendsUncompressedBody() throws Exception {
+        // Given
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200));
+        ((AbstractHttpClientAdapter) adapter).setGzipThreshold(1024);
+        EncodedBatch batch = new EncodedBatch(Collections.singletonList(new TrackerPayload()), 1000L);
+
+        // When
+        int responseCode = adapter.post(batch);
+
+        // Then
+        assertEquals(200, responseCode);
+        RecordedRequest recordedRequest = mockWebServer.takeRequest();
+        Assert.assertNull(recordedRequest.getHeader("Content-Encoding"));
+        assertEquals(batch.toString(), recordedRequest.getBody().readUtf8());
+    }
+
+    @Test
+    public void postAsync_withSuccessfulStatusCode_isOk() throws Exception {
+        // Given
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200));
+
+        // When
+        int responseCode = adapter.postAsync(new SelfDescribingJson("schema", Collections.singletonMap("foo", "bar")))
+                .get(5, TimeUnit.SECONDS);
+
+        // Then
+        assertEquals(200, responseCode);
+        assertEquals(1, mockWebServer.getRequestCount());
+        RecordedRequest recordedRequest = mockWebServer.takeRequest();
+        assertEquals("/com.snowplowanalytics.snowplow/tp2", recordedRequest.getPath());
+        assertEquals("{\"schema\":\"schema\",\"data\":{\"foo\":\"bar\"}}", recordedRequest.getBody().readUtf8());
+        assertEquals("POST", recordedRequest.getMethod());
+    }
+
+    @Test
+    public void postAsync_withUnsuccessfulStatusCode_isOk() throws Exception {
+        // Given
+        mockWebServer.enqueue(new MockResponse().setResponseCode(404));
+
+        // When
+        int responseCode = adapter.postAsync(new SelfDescribingJson("schema", Collections.singletonMap("foo", "bar")))
+                .get(5, TimeUnit.SECONDS);
+
+        // Then
+        assertEquals(404, responseCode);
+        assertEquals(1, mockWebServer.getRequestCount());
+    }
+
+    @Test
+    public void postAsync_withConnectionFailure_returnsMinusOne() throws Exception {
+        // Given
+        mockWebServer.shutdown();
+
+        // When
+        int responseCode = adapter.postAsync(new SelfDescribingJson("schema", Collections.singletonMap("foo", "bar")))
+                .get(5, TimeUnit.SECONDS);
+
+        // Then
+        assertEquals(-1, responseCode);
+    }
+
     @Test
     public void testPostWithNullArgument() {
         Assert.assertThrows(NullPointerException.class, () -> adapter.post(null));
@@ -146,6 +312,7 @@ public class HttpClientAdapterTest {
     @Test
     public void testRequestWithCookies() throws IOException, InterruptedException {
         adapter = new OkHttpClientWithCookieJarAdapter(mockWebServer.url("/").toString());
+        httpClients.add(closer((OkHttpClient) adapter.getHttpClient()));
 
         mockWebServer.enqueue(new MockResponse().addHeader("Set-Cookie", "sp=test"));
 
@@ -159,7 +326,25 @@ public class HttpClientAdapterTest {
         RecordedRequest recordedRequest2 = mockWebServer.takeRequest();
 
         assertEquals("sp=test", recordedRequest2.getHeader("Cookie"));
+    }
 
-        mockWebServer.shutdown();
+    // OkHttpClient has no close(): its threads and connections are released directly
+    private static Closeable closer(OkHttpClient httpClient) {
+        return () -> {
+            httpClient.dispatcher().executorService().shutdown();
+            httpClient.connectionPool().evictAll();
+        };
+    }
+
+    private static String gunzip(RecordedRequest recordedRequest) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(recordedRequest.getBody().inputStream())) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
     }
 }
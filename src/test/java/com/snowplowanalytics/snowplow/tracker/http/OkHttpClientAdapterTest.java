@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.http;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.snowplowanalytics.snowplow.tracker.payload.SelfDescribingJson;
+
+public class OkHttpClientAdapterTest {
+
+    private MockWebServer mockWebServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mockWebServer = new MockWebServer();
+        mockWebServer.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mockWebServer.shutdown();
+    }
+
+    @Test
+    public void maxConcurrentAsyncRequests_defaultsToOkHttpDispatcherLimit() {
+        OkHttpClientAdapter adapter = new OkHttpClientAdapter(mockWebServer.url("/").toString());
+
+        assertEquals(5, adapter.getMaxConcurrentAsyncRequests());
+    }
+
+    @Test
+    public void postAsync_withMaxConcurrentRequests_sendsMoreThanFiveRequestsAtOnce() throws Exception {
+        int requestCount = 10;
+        final CountDownLatch requestsReceived = new CountDownLatch(requestCount);
+        final CountDownLatch respond = new CountDownLatch(1);
+        mockWebServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                // Every response waits until all the requests are in flight
+                requestsReceived.countDown();
+                respond.await(5, TimeUnit.SECONDS);
+                return new MockResponse().setResponseCode(200);
+            }
+        });
+        OkHttpClientAdapter adapter = new OkHttpClientAdapter(mockWebServer.url("/").toString(), requestCount);
+        assertEquals(requestCount, adapter.getMaxConcurrentAsyncRequests());
+
+        List<CompletableFuture<Integer>> responses = new ArrayList<>();
+        for (int i = 0; i < requestCount; i++) {
+            responses.add(adapter.postAsync(new SelfDescribingJson("schema", Collections.singletonMap("foo", "bar"))));
+        }
+
+        assertTrue(requestsReceived.await(5, TimeUnit.SECONDS));
+        respond.countDown();
+        for (CompletableFuture<Integer> response : responses) {
+            assertEquals(Integer.valueOf(200), response.get(5, TimeUnit.SECONDS));
+        }
+    }
+}
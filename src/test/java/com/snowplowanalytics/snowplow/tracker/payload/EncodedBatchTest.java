@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2014-present Snowplow Analytics Ltd. All rights reserved.
+ *
+ * This program is licensed to you under the Apache License Version 2.0,
+ * and you may not use this file except in compliance with the Apache License Version 2.0.
+ * You may obtain a copy of the Apache License Version 2.0 at http://www.apache.org/licenses/LICENSE-2.0.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the Apache License Version 2.0 is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Apache License Version 2.0 for the specific language governing permissions and limitations there under.
+ */
+package com.snowplowanalytics.snowplow.tracker.payload;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.snowplowanalytics.snowplow.tracker.constants.Constants;
+import com.snowplowanalytics.snowplow.tracker.constants.Parameter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class EncodedBatchTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void bodyMatchesSelfDescribingJson() throws Exception {
+        TrackerPayload first = createTrackerPayload("a");
+        TrackerPayload second = createTrackerPayload("é \"quoted\"");
+        EncodedBatch batch = new EncodedBatch(Arrays.asList(first, second), 1234L);
+
+        JsonNode body = objectMapper.readTree(batch.toByteArray());
+
+        Assert.assertEquals(objectMapper.readTree(batch.toSelfDescribingJson().toString()), body);
+        Assert.assertEquals(Constants.SCHEMA_PAYLOAD_DATA, body.get("schema").asText());
+        Assert.assertEquals(2, body.get("data").size());
+        Assert.assertEquals("1234", body.get("data").get(0).get(Parameter.DEVICE_SENT_TIMESTAMP).asText());
+        Assert.assertEquals("é \"quoted\"", body.get("data").get(1).get("foo").asText());
+    }
+
+    @Test
+    public void eventsAreNotModified() {
+        TrackerPayload payload = createTrackerPayload("a");
+        new EncodedBatch(Collections.singletonList(payload), 1234L).toByteArray();
+
+        Assert.assertFalse(payload.getMap().containsKey(Parameter.DEVICE_SENT_TIMESTAMP));
+    }
+
+    @Test
+    public void eventsAreEncodedOnceForEveryAttempt() throws Exception {
+        TrackerPayload payload = createTrackerPayload("a");
+        List<TrackerPayload> events = Collections.singletonList(payload);
+
+        EncodedBatch firstAttempt = new EncodedBatch(events, 1000L);
+        firstAttempt.toByteArray();
+        byte[] encoded = payload.getEncodedJson();
+        EncodedBatch retry = new EncodedBatch(events, 2000L);
+
+        Assert.assertSame(encoded, payload.getEncodedJson());
+        Assert.assertEquals("2000",
+                objectMapper.readTree(retry.toByteArray()).get("data").get(0).get(Parameter.DEVICE_SENT_TIMESTAMP).asText());
+    }
+
+    @Test
+    public void encodedJsonIsUpdatedWhenPayloadChanges() throws Exception {
+        TrackerPayload payload = createTrackerPayload("a");
+        payload.add(Parameter.DEVICE_SENT_TIMESTAMP, "1");
+        byte[] encoded = payload.getEncodedJson();
+        Assert.assertFalse(objectMapper.readTree(encoded).has(Parameter.DEVICE_SENT_TIMESTAMP));
+
+        payload.add("foo", "b");
+
+        Assert.assertEquals("b", objectMapper.readTree(payload.getEncodedJson()).get("foo").asText());
+        JsonNode event = objectMapper.readTree(new EncodedBatch(Collections.singletonList(payload), 5L).toByteArray())
+                .get("data").get(0);
+        Assert.assertEquals("5", event.get(Parameter.DEVICE_SENT_TIMESTAMP).asText());
+    }
+
+    @Test
+    public void writeToStreamsTheSameBodyWithTheContentLength() throws Exception {
+        EncodedBatch batch = new EncodedBatch(
+                Arrays.asList(createTrackerPayload("a"), createTrackerPayload("é"), createTrackerPayload("b")), 1234L);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        batch.writeTo(out);
+        // The body can be written again, for example to retry on another connection
+        batch.writeTo(out);
+
+        byte[] body = batch.toByteArray();
+        Assert.assertEquals(body.length, batch.getContentLength());
+        Assert.assertArrayEquals(body, Arrays.copyOfRange(out.toByteArray(), 0, body.length));
+        Assert.assertArrayEquals(body, Arrays.copyOfRange(out.toByteArray(), body.length, body.length * 2));
+    }
+
+    @Test
+    public void contentLengthOfEmptyBatch() throws Exception {
+        EncodedBatch batch = new EncodedBatch(Collections.emptyList(), 1234L);
+
+        Assert.assertEquals(batch.toByteArray().length, batch.getContentLength());
+        Assert.assertEquals(0, objectMapper.readTree(batch.toByteArray()).get("data").size());
+    }
+
+    private TrackerPayload createTrackerPayload(String value) {
+        TrackerPayload payload = new TrackerPayload();
+        payload.add("e", "pv");
+        payload.add("foo", value);
+        return payload;
+    }
+}
@@ -13,10 +13,18 @@
 package com.snowplowanalytics.snowplow.tracker.payload;
 
 // Java
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
 
+// This library
+import com.snowplowanalytics.snowplow.tracker.constants.Parameter;
+
 // JUnit
 import org.junit.Test;
 
@@ -51,6 +59,42 @@ public class TrackerPayloadTest {
         assertEquals(Long.toString(payload.getDeviceCreatedTimestamp()), payload.getMap().get("dtm"));
     }
 
+    @Test
+    public void testGetEstimatedByteSize() {
+        TrackerPayload payload = new TrackerPayload();
+        payload.add("key", "value");
+        payload.add("other", "£10");
+        assertEquals(payload.getByteSize(), payload.getEstimatedByteSize());
+
+        payload.add("key", "a longer value");
+        assertEquals(payload.getByteSize(), payload.getEstimatedByteSize());
+    }
+
+    @Test
+    public void testRestoreFromMap() {
+        TrackerPayload original = new TrackerPayload();
+        original.add("key", "value");
+
+        TrackerPayload restored = new TrackerPayload(new HashMap<>(original.getMap()));
+
+        assertEquals(original.getEventId(), restored.getEventId());
+        assertEquals(original.getDeviceCreatedTimestamp(), restored.getDeviceCreatedTimestamp());
+        assertEquals(original.getMap(), restored.getMap());
+        assertEquals(original.getEstimatedByteSize(), restored.getEstimatedByteSize());
+    }
+
+    @Test
+    public void testRestoreFromMapWithoutEventId() {
+        Map<String, String> map = new HashMap<>();
+        map.put("key", "value");
+
+        TrackerPayload restored = new TrackerPayload(map);
+
+        assertNotNull(restored.getEventId());
+        assertNotNull(restored.getDeviceCreatedTimestamp());
+        assertEquals("value", restored.getMap().get("key"));
+    }
+
     @Test
     public void testAddKeyValue() {
         TrackerPayload payload = new TrackerPayload();
@@ -128,4 +172,159 @@ public class TrackerPayloadTest {
         assertTrue(payload.getMap().containsKey("non_encoded"));
         assertEquals("{\"key\":\"value\"}", payload.getMap().get("non_encoded"));
     }
+
+    @Test
+    public void testMapListsKeysInInsertionOrder() {
+        TrackerPayload payload = new TrackerPayload();
+        payload.add("foo", "bar");
+        payload.add(Parameter.APP_ID, "app");
+        payload.add(Parameter.EVENT, "pv");
+        payload.add("baz", "qux");
+
+        assertEquals(Arrays.asList(Parameter.EID, Parameter.DEVICE_CREATED_TIMESTAMP,
+                "foo", Parameter.APP_ID, Parameter.EVENT, "baz"), Arrays.asList(payload.getMap().keySet().toArray()));
+        assertEquals(6, payload.getMap().size());
+
+        // Changing a value keeps its position; removing and adding a key again moves it to the end
+        payload.add("foo", "changed");
+        payload.getMap().remove(Parameter.APP_ID);
+        payload.getMap().remove("baz");
+        payload.add(Parameter.APP_ID, "app");
+        payload.add("qux", "quux");
+        Iterator<String> keys = payload.getMap().keySet().iterator();
+        keys.next();
+        keys.next();
+        keys.next();
+        keys.remove();
+
+        assertEquals(Arrays.asList(Parameter.EID, Parameter.DEVICE_CREATED_TIMESTAMP,
+                Parameter.EVENT, Parameter.APP_ID, "qux"), Arrays.asList(payload.getMap().keySet().toArray()));
+        assertEquals(Arrays.asList(payload.getEventId(), payload.getDeviceCreatedTimestamp().toString(),
+                "pv", "app", "quux"), Arrays.asList(payload.getMap().values().toArray()));
+        assertEquals(payload.getByteSize(), payload.getEstimatedByteSize());
+    }
+
+    @Test
+    public void testMapMatchesEveryParameter() throws Exception {
+        TrackerPayload payload = new TrackerPayload();
+        Map<String, String> expected = new LinkedHashMap<>(payload.getMap());
+        for (Field field : Parameter.class.getFields()) {
+            String key = (String) field.get(null);
+            payload.add(key, "value of " + key);
+            expected.put(key, "value of " + key);
+        }
+        payload.add("custom", "value");
+        expected.put("custom", "value");
+
+        assertEquals(expected, payload.getMap());
+        assertEquals(expected.size(), payload.getMap().size());
+        assertEquals(payload.getByteSize(), payload.getEstimatedByteSize());
+    }
+
+    @Test
+    public void testPutNullValueThroughMapRemovesKey() {
+        TrackerPayload payload = new TrackerPayload();
+        payload.add(Parameter.EVENT, "pv");
+        payload.add("foo", "bar");
+
+        assertEquals("pv", payload.getMap().put(Parameter.EVENT, null));
+        assertEquals("bar", payload.getMap().put("foo", null));
+        assertNull(payload.getMap().put("other", null));
+
+        assertFalse(payload.getMap().containsKey(Parameter.EVENT));
+        assertFalse(payload.getMap().containsKey("foo"));
+        assertFalse(payload.getMap().containsKey("other"));
+        assertEquals(2, payload.getMap().size());
+        assertEquals(payload.getByteSize(), payload.getEstimatedByteSize());
+    }
+
+    @Test
+    public void testChangesThroughMapUpdatePayload() {
+        TrackerPayload payload = new TrackerPayload();
+        payload.add(Parameter.EVENT, "pv");
+        payload.add("foo", "bar");
+        byte[] encoded = payload.getEncodedJson();
+
+        assertNull(payload.getMap().put("key", "value"));
+        assertEquals("pv", payload.getMap().remove(Parameter.EVENT));
+        Iterator<Map.Entry<String, String>> iterator = payload.getMap().entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getKey().equals("foo")) {
+                iterator.remove();
+            }
+        }
+
+        assertFalse(payload.getMap().containsKey(Parameter.EVENT));
+        assertFalse(payload.getMap().containsKey("foo"));
+        assertEquals("value", payload.getMap().get("key"));
+        assertEquals(3, payload.getMap().size());
+        assertEquals(payload.getByteSize(), payload.getEstimatedByteSize());
+        assertNotSame(encoded, payload.getEncodedJson());
+        assertEquals(payload.toString(), new String(payload.getEncodedJson(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testEveryChangeThroughMapInvalidatesEncodedJson() {
+        TrackerPayload payload = new TrackerPayload();
+        payload.add(Parameter.EVENT, "pv");
+        payload.add(Parameter.APP_ID, "app");
+        payload.add("foo", "bar");
+        payload.add("baz", "qux");
+        Map<String, String> map = payload.getMap();
+        assertEncodedJsonIsCurrent(payload);
+
+        map.put(Parameter.PLATFORM, "srv");
+        assertEncodedJsonIsCurrent(payload);
+        map.put("foo", "changed");
+        assertEncodedJsonIsCurrent(payload);
+        map.putIfAbsent("added", "value");
+        assertEncodedJsonIsCurrent(payload);
+        map.replace("added", "replaced");
+        assertEncodedJsonIsCurrent(payload);
+        map.merge("added", "!", String::concat);
+        assertEncodedJsonIsCurrent(payload);
+        map.remove(Parameter.PLATFORM);
+        assertEncodedJsonIsCurrent(payload);
+
+        Iterator<String> keys = map.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().equals(Parameter.APP_ID)) {
+                keys.remove();
+            }
+        }
+        assertEncodedJsonIsCurrent(payload);
+        map.keySet().remove("added");
+        assertEncodedJsonIsCurrent(payload);
+        map.values().remove("qux");
+        assertEncodedJsonIsCurrent(payload);
+        map.entrySet().removeIf(entry -> entry.getKey().equals(Parameter.EVENT));
+        assertEncodedJsonIsCurrent(payload);
+
+        // Entries are snapshots, so they can't be changed without going through the map
+        Map.Entry<String, String> entry = map.entrySet().iterator().next();
+        assertThrows(UnsupportedOperationException.class, () -> entry.setValue("value"));
+        assertEncodedJsonIsCurrent(payload);
+
+        map.clear();
+        assertEquals(0, payload.getMap().size());
+        assertEquals("{}", new String(payload.getEncodedJson(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testReleaseEncodedJsonEncodesAgainWhenNeeded() {
+        TrackerPayload payload = new TrackerPayload();
+        payload.add(Parameter.EVENT, "pv");
+        byte[] encoded = payload.getEncodedJson();
+        assertSame(encoded, payload.getEncodedJson());
+
+        payload.releaseEncodedJson();
+
+        assertNotSame(encoded, payload.getEncodedJson());
+        assertEncodedJsonIsCurrent(payload);
+    }
+
+    private void assertEncodedJsonIsCurrent(TrackerPayload payload) {
+        assertEquals(payload.toString(), new String(payload.getEncodedJson(), StandardCharsets.UTF_8));
+        assertEquals(payload.getByteSize(), payload.getEstimatedByteSize());
+    }
 }